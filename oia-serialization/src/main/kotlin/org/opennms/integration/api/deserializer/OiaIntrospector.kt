@@ -1,9 +1,9 @@
 package org.opennms.integration.api.deserializer
 
 import com.fasterxml.jackson.databind.annotation.JsonPOJOBuilder
+import com.fasterxml.jackson.databind.introspect.Annotated
 import com.fasterxml.jackson.databind.introspect.AnnotatedClass
 import com.fasterxml.jackson.databind.introspect.JacksonAnnotationIntrospector
-import org.opennms.integration.api.deserializer.proxies.TopologyEdgeBuilderProxy
 import org.opennms.integration.api.v1.model.*
 import org.opennms.integration.api.v1.model.immutables.*
 
@@ -12,6 +12,11 @@ const val SETTER_PREFIX = "set"
 
 object OiaIntrospector : JacksonAnnotationIntrospector() {
 
+    // Edges have an endpoint of one of several types which only a deserializer of their own can build directly
+    override fun findDeserializer(a: Annotated?): Any? =
+        if (a is AnnotatedClass && a.rawType == TopologyEdge::class.java) TopologyEdgeDeserializer::class.java
+        else super.findDeserializer(a)
+
     override fun findPOJOBuilder(ac: AnnotatedClass?): Class<*>? {
         requireNotNull(ac)
 
@@ -28,7 +33,6 @@ object OiaIntrospector : JacksonAnnotationIntrospector() {
             NodeAssetRecord::class.java -> ImmutableNodeAssetRecord.Builder::class.java
             NodeCriteria::class.java -> ImmutableNodeCriteria.Builder::class.java
             SnmpInterface::class.java -> ImmutableSnmpInterface.Builder::class.java
-            TopologyEdge::class.java -> TopologyEdgeBuilderProxy::class.java
             TopologyPort::class.java -> ImmutableTopologyPort.Builder::class.java
             TopologySegment::class.java -> ImmutableTopologySegment.Builder::class.java
 
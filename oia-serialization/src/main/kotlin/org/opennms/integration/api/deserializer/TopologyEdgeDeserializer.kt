@@ -0,0 +1,100 @@
+package org.opennms.integration.api.deserializer
+
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonToken
+import com.fasterxml.jackson.databind.DeserializationContext
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer
+import com.fasterxml.jackson.databind.util.TokenBuffer
+import org.opennms.integration.api.v1.model.Node
+import org.opennms.integration.api.v1.model.TopologyEdge
+import org.opennms.integration.api.v1.model.TopologyPort
+import org.opennms.integration.api.v1.model.TopologyProtocol
+import org.opennms.integration.api.v1.model.TopologySegment
+import org.opennms.integration.api.v1.model.immutables.ImmutableTopologyEdge
+
+/**
+ * Reads what the [org.opennms.integration.api.serializer.TopologyEdgeSerializer] writes, decoding each endpoint
+ * straight into the type given by its `sourceDeserializationType` or `targetDeserializationType`.
+ *
+ * The serializer writes the endpoint types ahead of the endpoints. An endpoint that comes ahead of its type anyway is
+ * buffered until the type is known.
+ */
+class TopologyEdgeDeserializer(t: Class<TopologyEdge>?) : StdDeserializer<TopologyEdge>(t) {
+    constructor() : this(TopologyEdge::class.java)
+
+    override fun deserialize(p: JsonParser, ctxt: DeserializationContext): TopologyEdge {
+        val builder = ImmutableTopologyEdge.newBuilder()
+        var sourceType: TopologyEdge.EndpointType? = null
+        var targetType: TopologyEdge.EndpointType? = null
+        var source: Any? = null
+        var target: Any? = null
+        var bufferedSource: TokenBuffer? = null
+        var bufferedTarget: TokenBuffer? = null
+
+        var token = p.currentToken
+        if (token == JsonToken.START_OBJECT) {
+            token = p.nextToken()
+        }
+        while (token == JsonToken.FIELD_NAME) {
+            val field = p.currentName
+            p.nextToken()
+            when (field) {
+                "id" -> builder.setId(p.valueAsString)
+                "tooltipText" -> builder.setTooltipText(p.valueAsString)
+                "protocol" -> builder.setProtocol(ctxt.readValue(p, TopologyProtocol::class.java))
+                "sourceDeserializationType" -> sourceType = ctxt.readValue(p, TopologyEdge.EndpointType::class.java)
+                "targetDeserializationType" -> targetType = ctxt.readValue(p, TopologyEdge.EndpointType::class.java)
+                "source" -> if (sourceType != null) {
+                    source = readEndpoint(sourceType, p, ctxt)
+                } else {
+                    bufferedSource = buffer(p, ctxt)
+                }
+                "target" -> if (targetType != null) {
+                    target = readEndpoint(targetType, p, ctxt)
+                } else {
+                    bufferedTarget = buffer(p, ctxt)
+                }
+                else -> p.skipChildren()
+            }
+            token = p.nextToken()
+        }
+
+        if (source == null && sourceType != null && bufferedSource != null) {
+            source = readBuffered(bufferedSource, sourceType, p, ctxt)
+        }
+        if (target == null && targetType != null && bufferedTarget != null) {
+            target = readBuffered(bufferedTarget, targetType, p, ctxt)
+        }
+
+        when (val endpoint = source) {
+            is Node -> builder.setSource(endpoint)
+            is TopologyPort -> builder.setSource(endpoint)
+            is TopologySegment -> builder.setSource(endpoint)
+            else -> return ctxt.reportInputMismatch(this, "Missing source of topology edge")
+        }
+        when (val endpoint = target) {
+            is Node -> builder.setTarget(endpoint)
+            is TopologyPort -> builder.setTarget(endpoint)
+            is TopologySegment -> builder.setTarget(endpoint)
+            else -> return ctxt.reportInputMismatch(this, "Missing target of topology edge")
+        }
+        return builder.build()
+    }
+
+    private fun readEndpoint(type: TopologyEdge.EndpointType, p: JsonParser, ctxt: DeserializationContext): Any? =
+        ctxt.readValue(p, when (type) {
+            TopologyEdge.EndpointType.NODE -> Node::class.java
+            TopologyEdge.EndpointType.PORT -> TopologyPort::class.java
+            TopologyEdge.EndpointType.SEGMENT -> TopologySegment::class.java
+        })
+
+    private fun buffer(p: JsonParser, ctxt: DeserializationContext) =
+        TokenBuffer(p, ctxt).apply { copyCurrentStructure(p) }
+
+    private fun readBuffered(buffer: TokenBuffer, type: TopologyEdge.EndpointType, p: JsonParser,
+                             ctxt: DeserializationContext) =
+        buffer.asParser(p.codec).use {
+            it.nextToken()
+            readEndpoint(type, it, ctxt)
+        }
+}
@@ -0,0 +1,64 @@
+package org.opennms.integration.api.serializer
+
+import com.fasterxml.jackson.databind.module.SimpleModule
+import org.opennms.integration.api.v1.model.Alarm
+import org.opennms.integration.api.v1.model.InMemoryEvent
+import org.opennms.integration.api.v1.model.Node
+import org.opennms.integration.api.v1.model.TopologyEdge
+import org.opennms.integration.api.v1.model.TopologyPort
+
+/**
+ * The optional fields of the OIA model that the serializers of [oiaSerializers] write. The fields every consumer needs
+ * (ids, labels, severities and the like) are always written, the optional ones only when included.
+ *
+ * Fields are named after the type and the JSON field, e.g. `Node.ipInterfaces`.
+ */
+class Projection(fields: Collection<String>) {
+    private val fields = fields.toSet()
+
+    init {
+        val unknown = this.fields - OPTIONAL_FIELDS
+        require(unknown.isEmpty()) { "Unknown optional fields '$unknown', expected some of '$OPTIONAL_FIELDS'" }
+    }
+
+    fun includes(field: String) = field in fields
+
+    override fun toString() = fields.joinToString(",")
+
+    companion object {
+        @JvmField
+        val OPTIONAL_FIELDS = setOf(
+            "Node.assetRecord", "Node.ipInterfaces", "Node.snmpInterfaces", "Node.metaData",
+            "Alarm.type", "Alarm.managedObjectInstance", "Alarm.managedObjectType", "Alarm.attributes",
+            "Alarm.lastEvent",
+            "InMemoryEvent.parameters",
+            "TopologyPort.ifName", "TopologyPort.ifAddress", "TopologyPort.nodeCriteria"
+        )
+
+        @JvmField
+        val NONE = Projection(emptySet())
+
+        @JvmField
+        val ALL = Projection(OPTIONAL_FIELDS)
+
+        /**
+         * Parses a comma separated list of optional fields, `*` for all of them.
+         */
+        fun parse(fields: String): Projection {
+            val names = fields.split(',').map { it.trim() }.filter { it.isNotEmpty() }
+            return if (names == listOf("*")) ALL else Projection(names)
+        }
+    }
+}
+
+/**
+ * A module with the serializers to write the OIA model with, the ones of the types with optional fields writing the
+ * given projection of them.
+ */
+fun oiaSerializers(projection: Projection = Projection.NONE): SimpleModule = SimpleModule().apply {
+    addSerializer(TopologyEdge::class.java, TopologyEdgeSerializer())
+    addSerializer(Node::class.java, NodeSerializer(projection))
+    addSerializer(Alarm::class.java, AlarmSerializer(projection))
+    addSerializer(InMemoryEvent::class.java, InMemoryEventSerializer(projection))
+    addSerializer(TopologyPort::class.java, TopologyPortSerializer(projection))
+}
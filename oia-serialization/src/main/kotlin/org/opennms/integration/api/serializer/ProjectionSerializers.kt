@@ -0,0 +1,112 @@
+package org.opennms.integration.api.serializer
+
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.databind.SerializerProvider
+import com.fasterxml.jackson.databind.ser.std.StdSerializer
+import org.opennms.integration.api.v1.model.Alarm
+import org.opennms.integration.api.v1.model.InMemoryEvent
+import org.opennms.integration.api.v1.model.Node
+import org.opennms.integration.api.v1.model.TopologyPort
+import java.util.Date
+
+// The serializers below write the fields under the names of the setters of the OIA builders so that the
+// OiaIntrospector can read them back. Fields that aren't set are left out, the builders default them anyway.
+
+class NodeSerializer(projection: Projection) : StdSerializer<Node>(Node::class.java) {
+    private val assetRecord = projection.includes("Node.assetRecord")
+    private val ipInterfaces = projection.includes("Node.ipInterfaces")
+    private val snmpInterfaces = projection.includes("Node.snmpInterfaces")
+    private val metaData = projection.includes("Node.metaData")
+
+    override fun serialize(value: Node, gen: JsonGenerator, provider: SerializerProvider) {
+        gen.writeStartObject()
+        value.id?.let { gen.writeNumberField("id", it) }
+        writeString(gen, "foreignSource", value.foreignSource)
+        writeString(gen, "foreignId", value.foreignId)
+        writeString(gen, "label", value.label)
+        writeString(gen, "location", value.location)
+        if (assetRecord) writeObject(gen, provider, "assetRecord", value.assetRecord)
+        if (ipInterfaces) writeObject(gen, provider, "ipInterfaces", value.ipInterfaces)
+        if (snmpInterfaces) writeObject(gen, provider, "snmpInterfaces", value.snmpInterfaces)
+        if (metaData) writeObject(gen, provider, "metaData", value.metaData)
+        gen.writeEndObject()
+    }
+}
+
+class AlarmSerializer(projection: Projection) : StdSerializer<Alarm>(Alarm::class.java) {
+    private val type = projection.includes("Alarm.type")
+    private val managedObjectInstance = projection.includes("Alarm.managedObjectInstance")
+    private val managedObjectType = projection.includes("Alarm.managedObjectType")
+    private val attributes = projection.includes("Alarm.attributes")
+    private val lastEvent = projection.includes("Alarm.lastEvent")
+
+    override fun serialize(value: Alarm, gen: JsonGenerator, provider: SerializerProvider) {
+        gen.writeStartObject()
+        value.id?.let { gen.writeNumberField("id", it) }
+        writeString(gen, "reductionKey", value.reductionKey)
+        writeObject(gen, provider, "node", value.node)
+        value.severity?.let { gen.writeStringField("severity", it.name) }
+        if (type) value.type?.let { gen.writeStringField("type", it.name) }
+        if (managedObjectInstance) writeString(gen, "managedObjectInstance", value.managedObjectInstance)
+        if (managedObjectType) writeString(gen, "managedObjectType", value.managedObjectType)
+        if (attributes) writeObject(gen, provider, "attributes", value.attributes)
+        value.relatedAlarms?.takeIf { it.isNotEmpty() }?.let { related ->
+            gen.writeArrayFieldStart("relatedAlarms")
+            related.forEach { serialize(it, gen, provider) }
+            gen.writeEndArray()
+        }
+        writeString(gen, "logMessage", value.logMessage)
+        writeString(gen, "description", value.description)
+        writeDate(gen, provider, "lastEventTime", value.lastEventTime)
+        writeDate(gen, provider, "firstEventTime", value.firstEventTime)
+        if (lastEvent) writeObject(gen, provider, "lastEvent", value.lastEvent)
+        gen.writeEndObject()
+    }
+}
+
+class InMemoryEventSerializer(projection: Projection) : StdSerializer<InMemoryEvent>(InMemoryEvent::class.java) {
+    private val parameters = projection.includes("InMemoryEvent.parameters")
+
+    override fun serialize(value: InMemoryEvent, gen: JsonGenerator, provider: SerializerProvider) {
+        gen.writeStartObject()
+        writeString(gen, "uei", value.uei)
+        // Required by the builder
+        writeString(gen, "source", value.source)
+        value.nodeId?.let { gen.writeNumberField("nodeId", it) }
+        value.severity?.let { gen.writeStringField("severity", it.name) }
+        if (parameters) writeObject(gen, provider, "parameters", value.parameters)
+        gen.writeEndObject()
+    }
+}
+
+class TopologyPortSerializer(projection: Projection) : StdSerializer<TopologyPort>(TopologyPort::class.java) {
+    private val ifName = projection.includes("TopologyPort.ifName")
+    private val ifAddress = projection.includes("TopologyPort.ifAddress")
+    private val nodeCriteria = projection.includes("TopologyPort.nodeCriteria")
+
+    override fun serialize(value: TopologyPort, gen: JsonGenerator, provider: SerializerProvider) {
+        gen.writeStartObject()
+        writeString(gen, "id", value.id)
+        writeString(gen, "tooltipText", value.tooltipText)
+        value.ifIndex?.let { gen.writeNumberField("ifIndex", it) }
+        if (ifName) writeString(gen, "ifName", value.ifName)
+        if (ifAddress) writeString(gen, "ifAddress", value.ifAddress)
+        if (nodeCriteria) writeObject(gen, provider, "nodeCriteria", value.nodeCriteria)
+        gen.writeEndObject()
+    }
+}
+
+private fun writeString(gen: JsonGenerator, name: String, value: String?) {
+    if (value != null) gen.writeStringField(name, value)
+}
+
+private fun writeObject(gen: JsonGenerator, provider: SerializerProvider, name: String, value: Any?) {
+    if (value != null) provider.defaultSerializeField(name, value, gen)
+}
+
+private fun writeDate(gen: JsonGenerator, provider: SerializerProvider, name: String, value: Date?) {
+    if (value != null) {
+        gen.writeFieldName(name)
+        provider.defaultSerializeDateValue(value, gen)
+    }
+}
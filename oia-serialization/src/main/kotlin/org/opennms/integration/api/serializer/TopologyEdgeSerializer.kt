@@ -53,10 +53,12 @@ class TopologyEdgeSerializer(t: Class<TopologyEdge>?) : StdSerializer<TopologyEd
             }
         })
 
-        gen.writeObjectField("source", source)
-        gen.writeObjectField("target", target)
-        gen.writeObjectField("sourceDeserializationType", sourceDeserializationType)
-        gen.writeObjectField("targetDeserializationType", targetDeserializationType)
+        // The types go first so that the endpoints can be read straight into them. Written through the provider
+        // rather than the generator, which would start serializing over again for each of them
+        gen.writeStringField("sourceDeserializationType", sourceDeserializationType.name)
+        gen.writeStringField("targetDeserializationType", targetDeserializationType.name)
+        provider.defaultSerializeField("source", source, gen)
+        provider.defaultSerializeField("target", target, gen)
 
         gen.writeEndObject();
     }
@@ -0,0 +1,24 @@
+package org.opennms.oia.streaming.benchmarks
+
+import org.openjdk.jmh.profile.GCProfiler
+import org.openjdk.jmh.results.format.ResultFormatType
+import org.openjdk.jmh.runner.Runner
+import org.openjdk.jmh.runner.options.CommandLineOptions
+import org.openjdk.jmh.runner.options.OptionsBuilder
+
+/**
+ * Runs the benchmarks with the usual JMH command line, e.g. `java -jar benchmarks.jar CodecBenchmark -p codec=SMILE`,
+ * except that the allocation rates are reported alongside the throughput and the results are written to
+ * `jmh-result.json` unless asked otherwise.
+ */
+fun main(args: Array<String>) {
+    val options = CommandLineOptions(*args)
+    val builder = OptionsBuilder().parent(options)
+    if (options.profilers.isEmpty()) {
+        builder.addProfiler(GCProfiler::class.java)
+    }
+    if (!options.resultFormat.hasValue()) {
+        builder.resultFormat(ResultFormatType.JSON).result("jmh-result.json")
+    }
+    Runner(builder.build()).run()
+}
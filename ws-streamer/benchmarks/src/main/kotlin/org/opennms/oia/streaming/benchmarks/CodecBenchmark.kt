@@ -0,0 +1,111 @@
+package org.opennms.oia.streaming.benchmarks
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.opennms.integration.api.serializer.oiaSerializers
+import org.opennms.integration.api.v1.model.Alarm
+import org.opennms.integration.api.v1.model.InMemoryEvent
+import org.opennms.integration.api.v1.model.Node
+import org.opennms.integration.api.v1.model.TopologyEdge
+import org.opennms.oia.streaming.model.AlarmBrief
+import org.opennms.oia.streaming.model.AlarmDelete
+import org.opennms.oia.streaming.model.Codec
+import org.opennms.oia.streaming.model.Detail
+import org.opennms.oia.streaming.model.EventBrief
+import org.opennms.oia.streaming.model.EventSummary
+import org.opennms.oia.streaming.model.MessageType
+import org.opennms.oia.streaming.model.NodeBrief
+import org.opennms.oia.streaming.model.NodeDelete
+import org.opennms.oia.streaming.model.NormalizedTopology
+import org.opennms.oia.streaming.model.PooledEncoder
+import org.opennms.oia.streaming.model.SessionStats
+import org.opennms.oia.streaming.model.StreamMessage
+import org.opennms.oia.streaming.model.Topology
+import org.opennms.oia.streaming.model.TopologyBegin
+import org.opennms.oia.streaming.model.TopologyDenormalizer
+import org.opennms.oia.streaming.model.TopologyEnd
+import org.opennms.oia.streaming.model.deserializePayload
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import java.util.concurrent.TimeUnit
+
+/**
+ * Encodes every [Payload] the way the server does and decodes it back the way the client does, for every [Codec].
+ * [encodeMapper] encodes it the plain way for comparison, with a new generator and buffer for every message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+open class CodecBenchmark {
+    @Param
+    @JvmField
+    var payload = Payload.Alarm
+
+    @Param
+    @JvmField
+    var codec = Codec.JSON
+
+    private lateinit var message: StreamMessage
+    private lateinit var mapper: ObjectMapper
+    private lateinit var encoder: PooledEncoder
+    private lateinit var decoder: ObjectMapper
+    private lateinit var encoded: ByteArray
+
+    @Setup
+    fun setup() {
+        message = payload.message()
+        mapper = serverMapper(codec)
+        encoder = PooledEncoder(mapper)
+        decoder = codec.newMapper()
+        encoded = encoder.encode(message)
+    }
+
+    @Benchmark
+    fun encode(): ByteArray = encoder.encode(message)
+
+    @Benchmark
+    fun encodeMapper(): ByteArray = mapper.writeValueAsBytes(message)
+
+    @Benchmark
+    fun decode(): Any = decodePayload(decoder.readValue(encoded, StreamMessage::class.java))
+}
+
+/**
+ * The mapper the server encodes messages with.
+ */
+internal fun serverMapper(codec: Codec): ObjectMapper = codec.newMapper().registerModule(oiaSerializers())
+
+/**
+ * Deserializes the payload of a message to what the client hands on for its type.
+ */
+internal fun decodePayload(message: StreamMessage): Any = when (message.type) {
+    MessageType.Alarm -> message.deserializePayload<Alarm>()
+    MessageType.AlarmDelete -> message.deserializePayload<AlarmDelete>()
+    MessageType.Edge, MessageType.EdgeDelete -> message.deserializePayload<TopologyEdge>()
+    MessageType.Event -> message.deserializePayload<InMemoryEvent>()
+    MessageType.Topology, MessageType.TopologyChunk -> message.deserializePayload<Topology>()
+    MessageType.Node -> message.deserializePayload<Node>()
+    MessageType.Batch -> message.deserializePayload<List<StreamMessage>>().map { decodePayload(it) }
+    MessageType.TopologyBegin -> message.deserializePayload<TopologyBegin>()
+    MessageType.TopologyEnd -> message.deserializePayload<TopologyEnd>()
+    MessageType.EventSummary -> message.deserializePayload<EventSummary>()
+    MessageType.NodeDelete -> message.deserializePayload<NodeDelete>()
+    MessageType.Stats -> message.deserializePayload<SessionStats>()
+    MessageType.NormalizedTopologyChunk ->
+        TopologyDenormalizer().denormalize(message.deserializePayload<NormalizedTopology>())
+    MessageType.AlarmBrief -> message.deserializePayload<AlarmBrief>()
+    MessageType.NodeBrief -> message.deserializePayload<NodeBrief>()
+    MessageType.EventBrief -> message.deserializePayload<EventBrief>()
+    MessageType.Detail -> message.deserializePayload<Detail>()
+}
@@ -0,0 +1,58 @@
+package org.opennms.oia.streaming.benchmarks
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.opennms.integration.api.deserializer.oiaDeserializer
+import org.opennms.integration.api.v1.model.Alarm
+import org.opennms.integration.api.v1.model.Node
+import org.opennms.integration.api.v1.model.TopologyEdge
+import org.opennms.oia.streaming.model.Codec
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import java.util.concurrent.TimeUnit
+
+/**
+ * The OIA model on its own, without the message around it: the `TopologyEdgeSerializer` writing an edge and the
+ * `OiaIntrospector` reading edges (through the `TopologyEdgeDeserializer`), nodes and situations back.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+open class OiaSerializationBenchmark {
+    private lateinit var mapper: ObjectMapper
+    private lateinit var edge: TopologyEdge
+    private lateinit var encodedEdge: ByteArray
+    private lateinit var encodedNode: ByteArray
+    private lateinit var encodedSituation: ByteArray
+
+    @Setup
+    fun setup() {
+        mapper = serverMapper(Codec.JSON)
+        edge = Payload.Edge.message().payload as TopologyEdge
+        encodedEdge = mapper.writeValueAsBytes(edge)
+        encodedNode = mapper.writeValueAsBytes(Payload.Node.message().payload)
+        encodedSituation = mapper.writeValueAsBytes(Payload.Situation.message().payload)
+    }
+
+    @Benchmark
+    fun serializeEdge(): ByteArray = mapper.writeValueAsBytes(edge)
+
+    @Benchmark
+    fun deserializeEdge(): TopologyEdge = oiaDeserializer.readValue(encodedEdge, TopologyEdge::class.java)
+
+    @Benchmark
+    fun deserializeNode(): Node = oiaDeserializer.readValue(encodedNode, Node::class.java)
+
+    @Benchmark
+    fun deserializeSituation(): Alarm = oiaDeserializer.readValue(encodedSituation, Alarm::class.java)
+}
@@ -0,0 +1,163 @@
+package org.opennms.oia.streaming.benchmarks
+
+import org.opennms.integration.api.v1.model.Alarm
+import org.opennms.integration.api.v1.model.InMemoryEvent
+import org.opennms.integration.api.v1.model.Node
+import org.opennms.integration.api.v1.model.Severity
+import org.opennms.integration.api.v1.model.TopologyEdge
+import org.opennms.integration.api.v1.model.TopologyProtocol
+import org.opennms.integration.api.v1.model.immutables.ImmutableAlarm
+import org.opennms.integration.api.v1.model.immutables.ImmutableEventParameter
+import org.opennms.integration.api.v1.model.immutables.ImmutableInMemoryEvent
+import org.opennms.integration.api.v1.model.immutables.ImmutableNode
+import org.opennms.integration.api.v1.model.immutables.ImmutableTopologyEdge
+import org.opennms.oia.streaming.model.Detail
+import org.opennms.oia.streaming.model.DetailType
+import org.opennms.oia.streaming.model.EventSummary
+import org.opennms.oia.streaming.model.MessageType
+import org.opennms.oia.streaming.model.SessionStats
+import org.opennms.oia.streaming.model.StreamMessage
+import org.opennms.oia.streaming.model.Topology
+import org.opennms.oia.streaming.model.TopologyBegin
+import org.opennms.oia.streaming.model.TopologyEnd
+import org.opennms.oia.streaming.model.TopologyNormalizer
+import org.opennms.oia.streaming.model.alarmDeleteMessage
+import org.opennms.oia.streaming.model.alarmMessage
+import org.opennms.oia.streaming.model.batchMessage
+import org.opennms.oia.streaming.model.detailMessage
+import org.opennms.oia.streaming.model.edgeDeleteMessage
+import org.opennms.oia.streaming.model.edgeMessage
+import org.opennms.oia.streaming.model.eventMessage
+import org.opennms.oia.streaming.model.eventSummaryMessage
+import org.opennms.oia.streaming.model.nodeDeleteMessage
+import org.opennms.oia.streaming.model.nodeMessage
+import org.opennms.oia.streaming.model.normalizedTopologyChunkMessage
+import org.opennms.oia.streaming.model.statsMessage
+import org.opennms.oia.streaming.model.topologyBeginMessage
+import org.opennms.oia.streaming.model.topologyChunkMessage
+import org.opennms.oia.streaming.model.topologyEndMessage
+import org.opennms.oia.streaming.model.toBrief
+import org.opennms.oia.streaming.model.topologyMessage
+import java.util.Date
+import kotlin.random.Random
+
+/**
+ * The messages the benchmarks encode and decode, shaped like what a mid-sized OpenNMS instance streams: nodes, LLDP
+ * edges between them, alarms on them and situations relating a good number of those alarms.
+ *
+ * Every message is built from a fixed seed so runs can be compared.
+ */
+enum class Payload(val message: () -> StreamMessage) {
+    Alarm({ alarmMessage(alarm(1)) }),
+    /** A situation relating [SITUATION_ALARMS] alarms. */
+    Situation({ alarmMessage(situation(SITUATION_ALARMS)) }),
+    AlarmDelete({ alarmDeleteMessage("uei.opennms.org/nodes/nodeDown::1", false) }),
+    Edge({ edgeMessage(edge(node(1), node(2))) }),
+    EdgeDelete({ edgeDeleteMessage(edge(node(1), node(2))) }),
+    Event({ eventMessage(event(1)) }),
+    Node({ nodeMessage(node(1)) }),
+    /** A whole topology of [TOPOLOGY_NODES] nodes as sent by a snapshot that is not chunked. */
+    Topology({ topologyMessage(topology(TOPOLOGY_NODES)) }),
+    /** One chunk of a streamed snapshot, as big as the server's default chunk. */
+    TopologyChunk({ topologyChunkMessage(topology(CHUNK_NODES)) }),
+    /** The whole [Topology] as the one chunk of a normalized snapshot. */
+    NormalizedTopology({ normalizedTopologyChunkMessage(TopologyNormalizer().normalize(topology(TOPOLOGY_NODES))) }),
+    /** The [TopologyChunk] as the first chunk of a normalized snapshot. */
+    NormalizedTopologyChunk({
+        normalizedTopologyChunkMessage(TopologyNormalizer().normalize(topology(CHUNK_NODES)))
+    }),
+    TopologyBegin({
+        topologyBeginMessage(TopologyBegin(TOPOLOGY_NODES, TOPOLOGY_NODES * EDGES_PER_NODE, TOPOLOGY_NODES / 10))
+    }),
+    TopologyEnd({ topologyEndMessage(TopologyEnd(TOPOLOGY_NODES / CHUNK_NODES)) }),
+    /** A batch of alarm, edge and event deltas as coalesced under load. */
+    Batch({ batchMessage((1..BATCH_SIZE).map { delta(it) }) }),
+    EventSummary({
+        eventSummaryMessage(EventSummary(1, 0, 10_000, (1..10).associate { "uei.opennms.org/bench/event$it" to it * 7 }))
+    }),
+    NodeDelete({ nodeDeleteMessage(1) }),
+    Stats({ statsMessage(stats()) }),
+    AlarmBrief({ alarmMessage(alarm(1)).toBrief()!! }),
+    NodeBrief({ nodeMessage(node(1)).toBrief()!! }),
+    EventBrief({ eventMessage(event(1)).copy(seq = 1).toBrief()!! }),
+    /** The [Batch] as sent to sessions that asked for briefs. */
+    BriefBatch({ batchMessage((1..BATCH_SIZE).map { delta(it).let { delta -> delta.toBrief() ?: delta } }) }),
+    Detail({ alarm(1).let { detailMessage(Detail(DetailType.Alarm, it.reductionKey, alarm = it)) } });
+
+    companion object {
+        const val TOPOLOGY_NODES = 5000
+        const val EDGES_PER_NODE = 2
+        const val CHUNK_NODES = 500
+        const val SITUATION_ALARMS = 100
+        const val BATCH_SIZE = 50
+    }
+}
+
+private fun node(id: Int): Node = ImmutableNode.newBuilder()
+    .setId(id)
+    .setForeignSource("bench")
+    .setForeignId(id.toString())
+    .setLabel("node-$id.example.org")
+    .setLocation("location-${id % 10}")
+    .build()
+
+private fun edge(source: Node, target: Node): TopologyEdge = ImmutableTopologyEdge.newBuilder()
+    .setId("${source.id}-${target.id}")
+    .setProtocol(TopologyProtocol.LLDP)
+    .setTooltipText("${source.label} to ${target.label}")
+    .setSource(source)
+    .setTarget(target)
+    .build()
+
+private fun alarm(id: Int, node: Node = node(id)): Alarm = ImmutableAlarm.newBuilder()
+    .setId(id)
+    .setReductionKey("uei.opennms.org/nodes/nodeDown::${node.id}")
+    .setNode(node)
+    .setSeverity(Severity.values()[id % Severity.values().size])
+    .setLogMessage("Node ${node.label} is down.")
+    .setDescription("All interfaces on node ${node.label} are down because of a network related problem.")
+    .setFirstEventTime(Date(0))
+    .setLastEventTime(Date(id * 1000L))
+    .build()
+
+private fun situation(related: Int): Alarm = ImmutableAlarm.newBuilder()
+    .setId(0)
+    .setReductionKey("uei.opennms.org/alarms/situation::bench")
+    .setSeverity(Severity.CRITICAL)
+    .setLogMessage("Correlated $related alarms.")
+    .setDescription("A situation relating the alarms of $related nodes.")
+    .setLastEventTime(Date(0))
+    .setRelatedAlarms((1..related).map { alarm(it) })
+    .build()
+
+private fun event(id: Int): InMemoryEvent = ImmutableInMemoryEvent.newBuilder()
+    .setUei("uei.opennms.org/bench/event${id % 10}")
+    .setSource("bench")
+    .setSeverity(Severity.WARNING)
+    .setNodeId(id)
+    .addParameter(ImmutableEventParameter.newInstance("ifIndex", id.toString()))
+    .addParameter(ImmutableEventParameter.newInstance("ifDescr", "eth$id"))
+    .build()
+
+/**
+ * A topology of [nodes] nodes each attached to [Payload.EDGES_PER_NODE] of the ones before it and an alarm on one
+ * node in ten.
+ */
+private fun topology(nodes: Int): Topology {
+    val random = Random(42)
+    val all = (1..nodes).map { node(it) }
+    val edges = all.drop(1).mapIndexed { i, node ->
+        (1..Payload.EDGES_PER_NODE).map { all[random.nextInt(i + 1)] }.distinct().map { edge(node, it) }
+    }.flatten()
+    val alarms = all.filter { it.id % 10 == 0 }.map { alarm(it.id, it) }
+    return Topology(all.toSet(), edges.toSet(), alarms.toSet())
+}
+
+private fun delta(i: Int): StreamMessage = when (i % 3) {
+    0 -> alarmMessage(alarm(i))
+    1 -> edgeMessage(edge(node(i), node(i + 1)))
+    else -> eventMessage(event(i))
+}.copy(seq = i.toLong())
+
+private fun stats() = SessionStats(12, 100_000, 25_000_000, 10, 1, 250.0, 2_000, 15_000,
+    MessageType.values().associate { it to 1000L })
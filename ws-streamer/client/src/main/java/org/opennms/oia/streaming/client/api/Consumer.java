@@ -13,6 +13,14 @@ public interface Consumer {
      */
     void accept(Graph<Vertex, Edge> graph, Collection<Alarm> alarms, Collection<Situation> situations);
 
+    /**
+     * Invoked for each chunk of the topology as it is received so that a partial network can be shown before all of
+     * it is in. {@link #accept} is still invoked with the whole topology once the last chunk has been received.
+     */
+    default void acceptTopologyChunk(Collection<Vertex> vertices, Collection<Edge> edges, Collection<Alarm> alarms,
+                                     Collection<Situation> situations) {
+    }
+
     /**
      * Invoked when the vertex is added or updated.
      *
@@ -45,4 +53,11 @@ public interface Consumer {
      */
     void acceptEvent(Event e);
 
+    /**
+     * Invoked instead of {@link #acceptEvent} for the events of a vertex that is raising too many of them, once per
+     * window.
+     */
+    default void acceptEventSummary(EventSummary summary) {
+    }
+
 }
@@ -12,4 +12,11 @@ public interface Event {
 
     String getVertexId();
 
+    /**
+     * The id to fetch the detail of the event with, only known for events received in brief.
+     */
+    default String getId() {
+        return null;
+    }
+
 }
@@ -0,0 +1,19 @@
+package org.opennms.oia.streaming.client.api.model;
+
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * The events of a vertex that were summarized rather than sent one by one, because it was raising too many of them.
+ */
+public interface EventSummary {
+
+    String getVertexId();
+
+    Date getStart();
+
+    Date getEnd();
+
+    Map<String, Integer> getCountsByUEI();
+
+}
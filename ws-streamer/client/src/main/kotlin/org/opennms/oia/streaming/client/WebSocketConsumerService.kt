@@ -6,6 +6,8 @@ import com.google.common.collect.Maps
 import edu.uci.ics.jung.graph.Graph
 import edu.uci.ics.jung.graph.SparseMultigraph
 import org.java_websocket.client.WebSocketClient
+import org.java_websocket.drafts.Draft_6455
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension
 import org.java_websocket.handshake.ServerHandshake
 import org.opennms.integration.api.v1.model.*
 import org.opennms.oia.streaming.client.api.Consumer
@@ -21,12 +23,33 @@ import java.net.URI
 import java.nio.ByteBuffer
 import java.util.*
 
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.concurrent.CopyOnWriteArrayList
 import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.locks.ReentrantLock
 import kotlin.concurrent.withLock
 
-class WebSocketConsumerService(websocketUri: String) : ConsumerService {
+/**
+ * @param codec the codec to ask the server to encode messages with
+ * @param compress whether to ask the server to put large frames in the compressed envelope, only useful when
+ * permessage-deflate can't be negotiated
+ * @param criteria what to ask the server to send, everything if null
+ * @param normalize whether to ask the server for snapshots in the normalized encoding, which sends each node once
+ * @param brief whether to ask the server for alarm, node and event updates in their brief form, leaving the rest of them
+ * to [requestDetail]
+ * @param detailCacheSize how many of the details fetched to keep around for when they are asked for again
+ */
+class WebSocketConsumerService @JvmOverloads constructor(
+    websocketUri: String,
+    private val codec: Codec = Codec.JSON,
+    private val compress: Boolean = false,
+    private val criteria: FilterCriteria? = null,
+    private val normalize: Boolean = false,
+    private val brief: Boolean = false,
+    private val detailCacheSize: Int = 100
+) : ConsumerService {
 
     private val client: WebSocketClient = StreamerClient(URI(websocketUri))
 
@@ -34,6 +57,8 @@ class WebSocketConsumerService(websocketUri: String) : ConsumerService {
 
     private val mapper = jacksonObjectMapper()
 
+    private val codecMapper = codec.newMapper()
+
     private val vertices = mutableMapOf<String, Vertex>()
 
     private val edges = mutableMapOf<String, Edge>()
@@ -48,8 +73,32 @@ class WebSocketConsumerService(websocketUri: String) : ConsumerService {
 
     private val initialized = AtomicBoolean(false)
 
+    // Holds the tables of the normalized snapshot being received
+    private var denormalizer = TopologyDenormalizer()
+
     private val cacheLock = ReentrantLock()
 
+    private val connected = AtomicBoolean(false)
+
+    /**
+     * The sequence number of the last message applied, sent on reconnect so that the server can replay what was missed
+     * instead of a whole snapshot. Null until a snapshot has been received in full.
+     */
+    @Volatile
+    var lastSeq: Long? = null
+        private set
+
+    // Replies come back in the order the requests were sent
+    private val pendingStats = ConcurrentLinkedQueue<CompletableFuture<SessionStats>>()
+
+    private val pendingDetails = ConcurrentHashMap<Pair<DetailType, String>, CompletableFuture<Detail>>()
+
+    // The details fetched most recently, dropped when an update to what they are the detail of comes in
+    private val detailCache = object : LinkedHashMap<Pair<DetailType, String>, Detail>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Pair<DetailType, String>, Detail>) =
+            size > detailCacheSize
+    }
+
     override fun accept(consumer: Consumer) {
         log.info("Adding consumer.")
         consumers.add(consumer)
@@ -73,8 +122,13 @@ class WebSocketConsumerService(websocketUri: String) : ConsumerService {
 
         log.info("Attempting to connect.")
         try {
-            // Initiates the web socket connection; does not block.
-            client.connect()
+            // Initiates the web socket connection; does not block. The client can only connect once, after that it
+            // reconnects and resumes from the last message it saw.
+            if (connected.getAndSet(true)) {
+                client.reconnect()
+            } else {
+                client.connect()
+            }
         } catch (e: InterruptedException) {
             log.info("Interrupted while attempting to connect")
         }
@@ -94,34 +148,82 @@ class WebSocketConsumerService(websocketUri: String) : ConsumerService {
         }
     }
 
+    /**
+     * Asks the server for the numbers of this client's session, which has to be subscribed. They are sent behind
+     * whatever the server already has queued for the session.
+     */
+    fun requestStats(): CompletableFuture<SessionStats> {
+        val future = CompletableFuture<SessionStats>()
+        pendingStats.add(future)
+        try {
+            client.send(mapper.writeValueAsString(statsRequest()))
+        } catch (e: Exception) {
+            pendingStats.remove(future)
+            future.completeExceptionally(e)
+        }
+        return future
+    }
+
+    /**
+     * Fetches the whole of an alarm, node or event, e.g. when the user picks one only received in brief. Answered from
+     * the cache when it was fetched recently and hasn't changed since.
+     *
+     * The detail holds nothing but the type and id when the server doesn't have it (any more).
+     *
+     * @param id the reduction key of an alarm, the id of a node's vertex or the id of an event received in brief
+     */
+    fun requestDetail(type: DetailType, id: String): CompletableFuture<Detail> {
+        val key = type to id
+        synchronized(detailCache) { detailCache[key] }?.let { return CompletableFuture.completedFuture(it) }
+
+        var requested = false
+        val future = pendingDetails.computeIfAbsent(key) {
+            requested = true
+            CompletableFuture()
+        }
+        if (requested) {
+            try {
+                client.send(mapper.writeValueAsString(detailRequest(type, id)))
+            } catch (e: Exception) {
+                pendingDetails.remove(key, future)
+                future.completeExceptionally(e)
+            }
+        }
+        return future
+    }
+
     inner class StreamerClient(serverURI: URI) :
-        org.java_websocket.client.WebSocketClient(serverURI) {
+        org.java_websocket.client.WebSocketClient(serverURI, Draft_6455(PerMessageDeflateExtension())) {
 
         override fun onOpen(handshakedata: ServerHandshake) {
             log.info("open: status '${handshakedata.httpStatus}'")
-            client.send(mapper.writeValueAsString(subscribeRequest()))
+            // Leave the defaults implied so that servers that can't negotiate them still accept the request
+            val request = subscribeRequest(criteria, codec = if (codec == Codec.JSON) null else codec,
+                compress = if (compress) true else null, resumeFrom = lastSeq,
+                normalize = if (normalize) true else null, brief = if (brief) true else null)
+            client.send(mapper.writeValueAsString(request))
         }
 
         override fun onMessage(message: String) {
             log.info("message: $message")
 
-            val response = mapper.readValue<StreamMessage>(message)
-
-            when(response.type) {
-                MessageType.Alarm -> processAlarm(response)
-                MessageType.AlarmDelete -> processAlarmDelete(response)
-                MessageType.Edge -> processEdge(response)
-                MessageType.EdgeDelete -> processEdgeDelete(response)
-                MessageType.Event -> processEvent(response)
-                MessageType.Topology -> processTopology(response)
-                MessageType.Node -> processNode(response)
-                else -> log.warn("Unsupported message type '${response.type}'")
-            }
+            process(mapper.readValue(message))
         }
 
         override fun onMessage(bytes: ByteBuffer?) {
             requireNotNull(bytes)
-            onMessage(String(bytes.array()))
+            log.info("message: ${bytes.remaining()} bytes")
+
+            var array = bytes.array()
+            var offset = bytes.arrayOffset() + bytes.position()
+            var length = bytes.remaining()
+            if (CompressedEnvelope.isWrapped(array, offset, length)) {
+                array = CompressedEnvelope.unwrap(array, offset, length)
+                offset = 0
+                length = array.size
+            }
+
+            process(codecMapper.readValue(array, offset, length, StreamMessage::class.java))
         }
 
         override fun onClose(code: Int, reason: String, remote: Boolean) {
@@ -135,9 +237,50 @@ class WebSocketConsumerService(websocketUri: String) : ConsumerService {
         }
     }
 
+    private fun process(message: StreamMessage) {
+        when(message.type) {
+            MessageType.Alarm -> processAlarm(message)
+            MessageType.AlarmDelete -> processAlarmDelete(message)
+            MessageType.Edge -> processEdge(message)
+            MessageType.EdgeDelete -> processEdgeDelete(message)
+            MessageType.Event -> processEvent(message)
+            MessageType.Topology -> processTopology(message)
+            MessageType.Node -> processNode(message)
+            MessageType.Batch -> processBatch(message)
+            MessageType.TopologyBegin -> processTopologyBegin(message)
+            MessageType.TopologyChunk -> processTopologyChunk(message)
+            MessageType.TopologyEnd -> processTopologyEnd(message)
+            MessageType.EventSummary -> processEventSummary(message)
+            MessageType.NodeDelete -> processNodeDelete(message)
+            MessageType.Stats -> processStats(message)
+            MessageType.NormalizedTopologyChunk -> processNormalizedTopologyChunk(message)
+            MessageType.AlarmBrief -> processAlarmBrief(message)
+            MessageType.NodeBrief -> processNodeBrief(message)
+            MessageType.EventBrief -> processEventBrief(message)
+            MessageType.Detail -> processDetail(message)
+            else -> log.warn("Unsupported message type '${message.type}'")
+        }
+
+        // Deltas can arrive slightly out of order when they were conflated on the server
+        if (message.type != MessageType.TopologyEnd) {
+            message.seq?.let { seq -> lastSeq?.let { lastSeq = maxOf(it, seq) } }
+        }
+    }
+
+    fun processBatch(message: StreamMessage) {
+        val messages = message.deserializePayload<List<StreamMessage>>()
+        log.info("Processing batch of ${messages.size} messages")
+
+        // Apply the whole batch in order without letting anything else touch the cache part way through
+        cacheLock.withLock {
+            messages.forEach { process(it) }
+        }
+    }
+
     fun processAlarm(message: StreamMessage) {
         val alarm = message.deserializePayload<Alarm>()
         log.info("Processing alarm ${alarm.reductionKey}")
+        evictDetail(DetailType.Alarm, alarm.reductionKey)
         consumers.forEach { c ->
             try {
                 if (alarm.isSituation) {
@@ -154,6 +297,7 @@ class WebSocketConsumerService(websocketUri: String) : ConsumerService {
     fun processAlarmDelete(message: StreamMessage) {
         val alarm = message.deserializePayload<AlarmDelete>()
         log.info("Processing alarm deletion ${alarm.reductionKey}")
+        evictDetail(DetailType.Alarm, alarm.reductionKey)
         consumers.forEach { c ->
             try {
                 if (alarm.isSituation) {
@@ -224,6 +368,19 @@ class WebSocketConsumerService(websocketUri: String) : ConsumerService {
         }
     }
 
+    fun processAlarmBrief(message: StreamMessage) {
+        val brief = message.deserializePayload<AlarmBrief>()
+        log.info("Processing alarm brief ${brief.reductionKey}")
+        evictDetail(DetailType.Alarm, brief.reductionKey)
+        consumers.forEach {
+            try {
+                it.acceptAlarm(convertAlarmBrief(brief))
+            } catch (e: Error) {
+                log.warn("Consumer unable to process alarm brief ${brief.reductionKey} : $e")
+            }
+        }
+    }
+
     fun processEvent(message: StreamMessage) {
         val event = message.deserializePayload<InMemoryEvent>()
         log.info("Processing event ${event.uei}")
@@ -236,6 +393,30 @@ class WebSocketConsumerService(websocketUri: String) : ConsumerService {
         }
     }
 
+    fun processEventBrief(message: StreamMessage) {
+        val brief = message.deserializePayload<EventBrief>()
+        log.info("Processing event brief ${brief.uei}")
+        consumers.forEach {
+            try {
+                it.acceptEvent(convertEventBrief(brief))
+            } catch (e: Error) {
+                log.warn("Consumer unable to process event brief ${brief.uei} : $e")
+            }
+        }
+    }
+
+    fun processEventSummary(message: StreamMessage) {
+        val summary = message.deserializePayload<EventSummary>()
+        log.info("Processing summary of ${summary.counts.values.sum()} events for node ${summary.nodeId}")
+        consumers.forEach {
+            try {
+                it.acceptEventSummary(convertEventSummary(summary))
+            } catch (e: Error) {
+                log.warn("Consumer unable to process event summary for node ${summary.nodeId} : $e")
+            }
+        }
+    }
+
     fun processTopology(message: StreamMessage) {
         log.info("Processing topology")
         val topology = message.deserializePayload<Topology>()
@@ -310,11 +491,114 @@ class WebSocketConsumerService(websocketUri: String) : ConsumerService {
         initialized.set(true)
     }
 
+    fun processTopologyBegin(message: StreamMessage) {
+        val begin = message.deserializePayload<TopologyBegin>()
+        log.info("Processing topology begin with ${begin.nodes} nodes, ${begin.edges} edges " +
+                "and ${begin.alarms} alarms")
+
+        // Consumers added while the chunks are coming in get the whole topology at the end
+        initialized.set(false)
+        // Can't resume from a partial snapshot
+        lastSeq = null
+
+        cacheLock.withLock {
+            edges.clear()
+            vertices.clear()
+            initialAlarms.clear()
+            initialSituations.clear()
+            graph = SparseMultigraph<Vertex, Edge>()
+            denormalizer = TopologyDenormalizer()
+        }
+    }
+
+    fun processTopologyChunk(message: StreamMessage) {
+        log.info("Processing topology chunk")
+        applyTopologyChunk(message.deserializePayload())
+    }
+
+    fun processNormalizedTopologyChunk(message: StreamMessage) {
+        log.info("Processing normalized topology chunk")
+        cacheLock.withLock {
+            applyTopologyChunk(denormalizer.denormalize(message.deserializePayload()))
+        }
+    }
+
+    private fun applyTopologyChunk(chunk: Topology) {
+        cacheLock.withLock {
+            val chunkVertices = mutableListOf<Vertex>()
+
+            chunk.nodes?.map { convertNode(it) }?.forEach { vertex ->
+                if (vertices.put(vertex.id, vertex) == null) {
+                    chunkVertices.add(vertex)
+                }
+                graph.addVertex(vertex)
+            }
+
+            val chunkEdges = chunk.edges?.map { convertTopologyEdge(it) }?.map { ve ->
+                edges[ve.edge.id] = ve.edge
+                listOf(ve.vertices.src, ve.vertices.dst).forEach { vertex ->
+                    if (vertices.putIfAbsent(vertex.id, vertex) == null) {
+                        chunkVertices.add(vertex)
+                    }
+                }
+                graph.addEdge(ve.edge, ve.edge.sourceVertex, ve.edge.targetVertex)
+                ve.edge
+            } ?: emptyList<Edge>()
+
+            val chunkAlarms = chunk.alarms?.filter { !it.isSituation }?.map { convertAlarm(it) } ?: emptyList()
+            initialAlarms.addAll(chunkAlarms)
+
+            val chunkSituations = chunk.alarms?.filter { it.isSituation }?.map { convertSituation(it) } ?: emptyList()
+            initialSituations.addAll(chunkSituations)
+
+            consumers.forEach {
+                try {
+                    it.acceptTopologyChunk(chunkVertices, chunkEdges, chunkAlarms, chunkSituations)
+                } catch (e: Error) {
+                    log.warn("Consumer unable to process topology chunk : $e")
+                }
+            }
+        }
+    }
+
+    fun processTopologyEnd(message: StreamMessage) {
+        val end = message.deserializePayload<TopologyEnd>()
+
+        cacheLock.withLock {
+            log.info("Graph contains ${graph.vertexCount} vertices, " +
+                    "${graph.edgeCount} edges, ${initialAlarms.size} alarms, " +
+                    "and ${initialSituations.size} situations after ${end.chunks} chunks")
+            // The tables aren't needed past the end of the snapshot
+            denormalizer = TopologyDenormalizer()
+
+            consumers.forEach {
+                try {
+                    it.accept(graph, initialAlarms, initialSituations)
+                } catch (e: Error) {
+                    log.warn("Consumer unable to process topology : $e")
+                }
+            }
+        }
+
+        lastSeq = message.seq
+        initialized.set(true)
+    }
+
     fun processNode(message: StreamMessage) {
         val node = message.deserializePayload<Node>()
         log.info("Processing node ${node.id}")
-        val convNode = convertNode(node)
+        evictDetail(DetailType.Node, node.id.toString())
+        applyVertex(convertNode(node))
+    }
 
+    fun processNodeBrief(message: StreamMessage) {
+        val brief = message.deserializePayload<NodeBrief>()
+        log.info("Processing node brief ${brief.id}")
+        evictDetail(DetailType.Node, brief.id.toString())
+        applyVertex(VertexImpl(id = brief.id.toString(), label = brief.label ?: "", type = Vertex.Type.Node))
+    }
+
+    private fun applyVertex(convNode: Vertex) {
         cacheLock.withLock {
             // TODO: support node update?
             if (vertices.containsKey(convNode.id)) {
@@ -330,11 +614,61 @@ class WebSocketConsumerService(websocketUri: String) : ConsumerService {
             try {
                 it.acceptVertex(convNode)
             } catch (e: Error) {
-                log.warn("Consumer unable to process node ${node.id} : $e")
+                log.warn("Consumer unable to process node ${convNode.id} : $e")
+            }
+        }
+    }
+
+    fun processNodeDelete(message: StreamMessage) {
+        val nodeId = message.deserializePayload<NodeDelete>().nodeId.toString()
+        log.info("Processing node delete $nodeId")
+        evictDetail(DetailType.Node, nodeId)
+
+        // The node's edges go along with it
+        val deletedEdges = cacheLock.withLock {
+            if (vertices.remove(nodeId) == null) {
+                log.debug("Vertex $nodeId does not exist")
+                return
+            }
+
+            val incident = edges.values.filter { it.sourceVertex.id == nodeId || it.targetVertex.id == nodeId }
+            incident.forEach { edges.remove(it.id) }
+            incident
+        }
+
+        consumers.forEach {
+            try {
+                deletedEdges.forEach { edge -> it.acceptDeletedEdge(edge.id) }
+                it.acceptDeletedVertex(nodeId)
+            } catch (e: Error) {
+                log.warn("Consumer unable to process node delete $nodeId : $e")
             }
         }
     }
 
+    fun processStats(message: StreamMessage) {
+        val stats = message.deserializePayload<SessionStats>()
+        log.info("Processing stats $stats")
+
+        pendingStats.poll()?.complete(stats) ?: log.debug("Received stats that weren't asked for")
+    }
+
+    fun processDetail(message: StreamMessage) {
+        val detail = message.deserializePayload<Detail>()
+        log.info("Processing detail of ${detail.type} ${detail.id}")
+        val key = requireNotNull(detail.type) to requireNotNull(detail.id)
+
+        // Only cached when there is something to show, the server may yet get hold of it
+        if (detail.alarm != null || detail.node != null || detail.event != null) {
+            synchronized(detailCache) { detailCache[key] = detail }
+        }
+        pendingDetails.remove(key)?.complete(detail) ?: log.debug("Received detail that wasn't asked for")
+    }
+
+    private fun evictDetail(type: DetailType, id: String) {
+        synchronized(detailCache) { detailCache.remove(type to id) }
+    }
+
     private fun convertTopologyEdge(topologyEdge : TopologyEdge) : EdgeVertex {
 
         lateinit var srcVertex: Vertex
@@ -458,6 +792,34 @@ class WebSocketConsumerService(websocketUri: String) : ConsumerService {
             }
         }
 
+    private fun convertAlarmBrief(brief: AlarmBrief) = object : org.opennms.oia.streaming.client.api.model.Alarm {
+        override fun getReductionKey() = brief.reductionKey
+
+        override fun getSeverity() = org.opennms.oia.streaming.client.api.model.Alarm.Severity.valueOf(
+            requireNotNull(brief.severity).name
+        )
+
+        // Left to the detail
+        override fun getDescription() = ""
+
+        override fun getLastUpdated() = brief.lastEventTime
+
+        override fun getVertexId() = brief.nodeId.toString()
+    }
+
+    private fun convertEventBrief(brief: EventBrief) = object : org.opennms.oia.streaming.client.api.model.Event {
+        override fun getUEI() = brief.uei
+
+        // Left to the detail
+        override fun getDescription() = ""
+
+        override fun getTime() = Date()
+
+        override fun getVertexId() = brief.nodeId.toString()
+
+        override fun getId() = brief.id.toString()
+    }
+
     private fun convertEvent(event: InMemoryEvent) = object : org.opennms.oia.streaming.client.api.model.Event {
         override fun getUEI(): String {
             return event.uei
@@ -478,6 +840,17 @@ class WebSocketConsumerService(websocketUri: String) : ConsumerService {
         }
     }
 
+    private fun convertEventSummary(summary: EventSummary) =
+        object : org.opennms.oia.streaming.client.api.model.EventSummary {
+            override fun getVertexId() = summary.nodeId.toString()
+
+            override fun getStart() = Date(summary.start)
+
+            override fun getEnd() = Date(summary.end)
+
+            override fun getCountsByUEI() = summary.counts
+        }
+
     private fun convertSituation(situation: Alarm) = object : Situation {
         override fun getReductionKey(): String {
             return situation.reductionKey
@@ -1,26 +1,56 @@
 package org.opennms.oia.streaming.client;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
 import org.opennms.integration.api.v1.config.events.AlarmType;
+import org.opennms.integration.api.serializer.Projection;
+import org.opennms.integration.api.serializer.ProjectionKt;
+import org.opennms.integration.api.serializer.TopologyEdgeSerializer;
 import org.opennms.integration.api.v1.model.*;
+import org.opennms.integration.api.v1.model.immutables.ImmutableAlarm;
+import org.opennms.integration.api.v1.model.immutables.ImmutableEventParameter;
+import org.opennms.integration.api.v1.model.immutables.ImmutableInMemoryEvent;
+import org.opennms.integration.api.v1.model.immutables.ImmutableMetaData;
+import org.opennms.integration.api.v1.model.immutables.ImmutableNode;
+import org.opennms.integration.api.v1.model.immutables.ImmutableTopologyPort;
+import org.opennms.integration.api.v1.model.immutables.ImmutableTopologyEdge;
 import org.opennms.oia.streaming.client.api.Consumer;
 import org.opennms.oia.streaming.client.api.model.*;
 import org.opennms.oia.streaming.client.api.model.Alarm;
+import org.opennms.oia.streaming.model.AlarmBrief;
 import org.opennms.oia.streaming.model.AlarmDelete;
+import org.opennms.oia.streaming.model.Codec;
+import org.opennms.oia.streaming.model.Detail;
+import org.opennms.oia.streaming.model.DetailType;
+import org.opennms.oia.streaming.model.EventBrief;
 import org.opennms.oia.streaming.model.MessageType;
+import org.opennms.oia.streaming.model.NodeBrief;
+import org.opennms.oia.streaming.model.NodeDelete;
 import org.opennms.oia.streaming.model.StreamMessage;
 import org.opennms.oia.streaming.model.Topology;
+import org.opennms.oia.streaming.model.TopologyBegin;
+import org.opennms.oia.streaming.model.TopologyEnd;
+import org.opennms.oia.streaming.model.TopologyNormalizer;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 
 import edu.uci.ics.jung.graph.Graph;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThan;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyObject;
 import static org.mockito.Mockito.*;
 
@@ -60,6 +90,38 @@ public class ConsumerServiceTest {
         wsConsumer.dismiss(consumer);
     }
 
+    @Test
+    public void testChunkedTopology() {
+        ArgumentCaptor<Graph<Vertex, Edge>> graphCap = ArgumentCaptor.forClass((Class) Graph.class);
+        ArgumentCaptor<List<Alarm>> alarmCap = ArgumentCaptor.forClass((Class) List.class);
+        ArgumentCaptor<List<Situation>> situationCap = ArgumentCaptor.forClass((Class) List.class);
+
+        Topology topology = (Topology) generateTopology().getPayload();
+
+        wsConsumer.accept(consumer);
+        wsConsumer.processTopologyBegin(new StreamMessage(MessageType.TopologyBegin, new TopologyBegin(
+                topology.getNodes().size(), topology.getEdges().size(), topology.getAlarms().size())));
+        wsConsumer.processTopologyChunk(new StreamMessage(MessageType.TopologyChunk,
+                new Topology(topology.getNodes(), null, null)));
+        wsConsumer.processTopologyChunk(new StreamMessage(MessageType.TopologyChunk,
+                new Topology(null, topology.getEdges(), topology.getAlarms())));
+
+        // Each chunk is handed over as it arrives...
+        verify(consumer, times(2)).acceptTopologyChunk(anyObject(), anyObject(), anyObject(), anyObject());
+        verify(consumer, never()).accept(anyObject(), anyObject(), anyObject());
+
+        wsConsumer.processTopologyEnd(new StreamMessage(MessageType.TopologyEnd, new TopologyEnd(2)));
+
+        // ...and the whole topology once the last one is in
+        verify(consumer, times(1)).accept(graphCap.capture(), alarmCap.capture(), situationCap.capture());
+
+        assertThat(alarmCap.getValue(), hasSize(1));
+        assertThat(situationCap.getValue(), hasSize(1));
+
+        assertEquals(5, graphCap.getValue().getEdgeCount());
+        assertEquals(8, graphCap.getValue().getVertexCount());
+    }
+
     @Test
     public void testAlarm() {
         ArgumentCaptor<Alarm> alarmCap = ArgumentCaptor.forClass((Class) Alarm.class);
@@ -251,6 +313,359 @@ public class ConsumerServiceTest {
         assertEquals(event.getNodeId().toString(), eventCap.getValue().getVertexId());
     }
 
+    @Test
+    public void testEventSummary() {
+        ArgumentCaptor<EventSummary> summaryCap = ArgumentCaptor.forClass(EventSummary.class);
+
+        wsConsumer.accept(consumer);
+
+        Map<String, Integer> counts = Collections.singletonMap("test-uei", 120);
+        wsConsumer.processEventSummary(new StreamMessage(MessageType.EventSummary,
+                new org.opennms.oia.streaming.model.EventSummary(10, 1000, 6000, counts)));
+
+        verify(consumer, times(1)).acceptEventSummary(summaryCap.capture());
+        assertEquals("10", summaryCap.getValue().getVertexId());
+        assertEquals(new Date(1000), summaryCap.getValue().getStart());
+        assertEquals(new Date(6000), summaryCap.getValue().getEnd());
+        assertEquals(counts, summaryCap.getValue().getCountsByUEI());
+    }
+
+    @Test
+    public void testBatch() {
+        wsConsumer.processTopology(generateTopology());
+        wsConsumer.accept(consumer);
+
+        int numVerticesOrig = wsConsumer.numVertices();
+
+        Node firstNode = generateNode(50, "node-50-label");
+        Node secondNode = generateNode(51, "node-51-label");
+
+        wsConsumer.processBatch(new StreamMessage(MessageType.Batch, Arrays.asList(
+                new StreamMessage(MessageType.Node, firstNode),
+                new StreamMessage(MessageType.AlarmDelete, new AlarmDelete("reduc-key-0", false)),
+                new StreamMessage(MessageType.Node, secondNode))));
+
+        // The deltas are applied in the order they appear in the batch
+        ArgumentCaptor<Vertex> vertexCap = ArgumentCaptor.forClass((Class) Vertex.class);
+        InOrder inOrder = inOrder(consumer);
+        inOrder.verify(consumer).acceptVertex(vertexCap.capture());
+        inOrder.verify(consumer).acceptDeletedAlarm("reduc-key-0");
+        inOrder.verify(consumer).acceptVertex(vertexCap.capture());
+
+        assertEquals(Arrays.asList(firstNode.getId().toString(), secondNode.getId().toString()),
+                vertexCap.getAllValues().stream().map(Vertex::getId).collect(Collectors.toList()));
+        assertEquals(numVerticesOrig + 2, wsConsumer.numVertices());
+    }
+
+    @Test
+    public void testDecodedBatch() throws IOException {
+        ArgumentCaptor<Edge> edgeCap = ArgumentCaptor.forClass((Class) Edge.class);
+
+        TopologyEdge edge = generateTopologyEdge("edge-6", TopologyProtocol.ALL,
+                generateNode(25, "node-25-label"), TopologyEdge.EndpointType.NODE,
+                generatePort(26), TopologyEdge.EndpointType.PORT);
+        org.opennms.integration.api.v1.model.Alarm situation = ImmutableAlarm.newBuilder()
+                .setId(102)
+                .setReductionKey("reduc-key-2")
+                .setSeverity(Severity.MAJOR)
+                .setRelatedAlarms(Arrays.asList(
+                        ImmutableAlarm.newBuilder().setId(100).setReductionKey("reduc-key-0").build(),
+                        ImmutableAlarm.newBuilder().setId(101).setReductionKey("reduc-key-1").build()))
+                .build();
+        StreamMessage batch = new StreamMessage(MessageType.Batch, Arrays.asList(
+                new StreamMessage(MessageType.Edge, edge, 1L),
+                new StreamMessage(MessageType.AlarmDelete, new AlarmDelete("reduc-key-0", false), 2L),
+                new StreamMessage(MessageType.Alarm, situation, 3L)));
+
+        for (Codec codec : Codec.values()) {
+            // Encoded as the server does
+            ObjectMapper encoder = codec.newMapper().registerModule(new SimpleModule()
+                    .addSerializer(TopologyEdge.class, new TopologyEdgeSerializer()));
+            StreamMessage decoded = codec.newMapper().readValue(encoder.writeValueAsBytes(batch), StreamMessage.class);
+
+            // The payloads are read straight into their types
+            List<StreamMessage> messages = (List<StreamMessage>) decoded.getPayload();
+            assertThat(messages.get(0).getPayload(), instanceOf(TopologyEdge.class));
+            assertEquals(new AlarmDelete("reduc-key-0", false), messages.get(1).getPayload());
+            assertThat(((org.opennms.integration.api.v1.model.Alarm) messages.get(2).getPayload()).getRelatedAlarms(),
+                    hasSize(2));
+            assertEquals(Long.valueOf(3), messages.get(2).getSeq());
+
+            // A fresh graph for each codec, the edge would otherwise already be known
+            WebSocketConsumerService service = new WebSocketConsumerService("ws://localhost:8080");
+            service.accept(consumer);
+            service.processBatch(decoded);
+        }
+
+        verify(consumer, times(Codec.values().length)).acceptEdge(edgeCap.capture());
+        for (Edge decodedEdge : edgeCap.getAllValues()) {
+            assertEquals("26", decodedEdge.getTargetVertex().getId());
+        }
+        verify(consumer, times(Codec.values().length)).acceptSituation(anyObject());
+    }
+
+    @Test
+    public void testDecodedPayloadAheadOfType() throws IOException {
+        StreamMessage message = new ObjectMapper().readValue(
+                "{\"payload\":{\"nodeId\":20},\"seq\":3,\"type\":\"NodeDelete\"}", StreamMessage.class);
+
+        assertEquals(new StreamMessage(MessageType.NodeDelete, new NodeDelete(20), 3L), message);
+    }
+
+    @Test
+    public void testDecodedEdgeWithEndpointsAheadOfTypes() throws IOException {
+        ArgumentCaptor<Edge> edgeCap = ArgumentCaptor.forClass((Class) Edge.class);
+        wsConsumer.accept(consumer);
+
+        // As written before the endpoint types were moved ahead of the endpoints
+        StreamMessage message = new ObjectMapper().readValue("{\"type\":\"Edge\",\"payload\":{\"id\":\"edge-7\"," +
+                "\"tooltipText\":null,\"protocol\":\"LLDP\",\"source\":{\"id\":30,\"label\":\"node-30-label\"}," +
+                "\"target\":{\"id\":\"31\",\"ifIndex\":2}," +
+                "\"sourceDeserializationType\":\"NODE\",\"targetDeserializationType\":\"PORT\"}}", StreamMessage.class);
+        wsConsumer.processEdge(message);
+
+        verify(consumer, times(1)).acceptEdge(edgeCap.capture());
+        assertEquals("30", edgeCap.getValue().getSourceVertex().getId());
+        assertEquals("31", edgeCap.getValue().getTargetVertex().getId());
+    }
+
+    @Test
+    public void testNormalizedTopology() throws IOException {
+        ArgumentCaptor<Graph<Vertex, Edge>> graphCap = ArgumentCaptor.forClass((Class) Graph.class);
+        ArgumentCaptor<List<Alarm>> alarmCap = ArgumentCaptor.forClass((Class) List.class);
+        ArgumentCaptor<List<Situation>> situationCap = ArgumentCaptor.forClass((Class) List.class);
+
+        List<org.opennms.integration.api.v1.model.Node> nodes = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            nodes.add(ImmutableNode.newBuilder().setId(60 + i).setLabel("node-" + (60 + i) + "-label")
+                    .setLocation("location-" + (i % 2)).setForeignSource("fs").setForeignId(Integer.toString(i))
+                    .build());
+        }
+        Set<TopologyEdge> edges = new LinkedHashSet<>();
+        for (int i = 1; i < nodes.size(); i++) {
+            edges.add(ImmutableTopologyEdge.newBuilder().setId("edge-" + (60 + i)).setProtocol(TopologyProtocol.LLDP)
+                    .setSource(nodes.get(i)).setTarget(nodes.get(i - 1)).build());
+        }
+        edges.add(ImmutableTopologyEdge.newBuilder().setId("edge-70").setProtocol(TopologyProtocol.LLDP)
+                .setSource(nodes.get(0)).setTarget(generatePort(70)).build());
+        org.opennms.integration.api.v1.model.Alarm alarm = ImmutableAlarm.newBuilder().setId(200)
+                .setReductionKey("reduc-key-200").setSeverity(Severity.MINOR).setNode(nodes.get(9)).build();
+        // Related to an alarm that isn't part of the topology, on a node that isn't either
+        org.opennms.integration.api.v1.model.Alarm situation = ImmutableAlarm.newBuilder().setId(202)
+                .setReductionKey("reduc-key-202").setSeverity(Severity.MAJOR).setNode(nodes.get(9))
+                .setRelatedAlarms(Arrays.asList(alarm, ImmutableAlarm.newBuilder().setId(201)
+                        .setReductionKey("reduc-key-201").setNode(generateNode(71, "node-71-label")).build()))
+                .build();
+
+        // The edges of the first chunk refer to nodes of the second
+        Topology first = new Topology(new LinkedHashSet<>(nodes.subList(0, 5)), edges,
+                new LinkedHashSet<>(Collections.singletonList(situation)));
+        Topology second = new Topology(new LinkedHashSet<>(nodes.subList(5, 10)), null,
+                new LinkedHashSet<>(Collections.singletonList(alarm)));
+
+        for (Codec codec : Codec.values()) {
+            // Encoded as the server does
+            ObjectMapper encoder = codec.newMapper().registerModule(new SimpleModule()
+                    .addSerializer(TopologyEdge.class, new TopologyEdgeSerializer()));
+            TopologyNormalizer normalizer = new TopologyNormalizer();
+            List<StreamMessage> chunks = new ArrayList<>();
+            for (Topology chunk : Arrays.asList(first, second)) {
+                byte[] plain = encoder.writeValueAsBytes(new StreamMessage(MessageType.TopologyChunk, chunk));
+                byte[] normalized = encoder.writeValueAsBytes(new StreamMessage(
+                        MessageType.NormalizedTopologyChunk, normalizer.normalize(chunk)));
+                assertThat(normalized.length, lessThan(plain.length));
+                chunks.add(codec.newMapper().readValue(normalized, StreamMessage.class));
+            }
+
+            WebSocketConsumerService service = new WebSocketConsumerService("ws://localhost:8080");
+            service.accept(consumer);
+            service.processTopologyBegin(new StreamMessage(MessageType.TopologyBegin, new TopologyBegin(10, 10, 2)));
+            chunks.forEach(service::processNormalizedTopologyChunk);
+            service.processTopologyEnd(new StreamMessage(MessageType.TopologyEnd, new TopologyEnd(2)));
+        }
+
+        verify(consumer, times(Codec.values().length)).accept(
+                graphCap.capture(), alarmCap.capture(), situationCap.capture());
+        for (Graph<Vertex, Edge> graph : graphCap.getAllValues()) {
+            assertEquals(10, graph.getEdgeCount());
+            assertEquals(11, graph.getVertexCount());
+            assertEquals("node-65-label", graph.getVertices().stream()
+                    .filter(v -> v.getId().equals("65")).findFirst().get().getLabel());
+        }
+        for (List<Alarm> alarms : alarmCap.getAllValues()) {
+            assertThat(alarms, hasSize(1));
+            assertEquals("69", alarms.get(0).getVertexId());
+        }
+        for (List<Situation> situations : situationCap.getAllValues()) {
+            assertThat(situations, hasSize(1));
+            assertEquals(new HashSet<>(Arrays.asList("69", "71")), situations.get(0).getRelatedAlarms().stream()
+                    .map(Alarm::getVertexId).collect(Collectors.toSet()));
+        }
+    }
+
+    @Test
+    public void testDecodedProjection() throws IOException {
+        org.opennms.integration.api.v1.model.Node node = ImmutableNode.newBuilder().setId(80).setLabel("node-80-label")
+                .setLocation("location-0").setForeignSource("fs").setForeignId("80")
+                .addMetaData(ImmutableMetaData.newBuilder().setContext("requisition").setKey("key").setValue("value")
+                        .build())
+                .build();
+        org.opennms.integration.api.v1.model.Alarm alarm = ImmutableAlarm.newBuilder().setId(300)
+                .setReductionKey("reduc-key-300").setSeverity(Severity.MAJOR).setNode(node)
+                .setDescription("description").setLastEventTime(new Date(1000)).setManagedObjectType("node")
+                .addAttribute("attribute", "value")
+                .build();
+        TopologyEdge edge = ImmutableTopologyEdge.newBuilder().setId("edge-80").setProtocol(TopologyProtocol.LLDP)
+                .setSource(node).setTarget(ImmutableTopologyPort.newBuilder().setId("81").setIfIndex(3)
+                        .setIfName("eth3").build())
+                .build();
+        InMemoryEvent event = ImmutableInMemoryEvent.newBuilder().setUei("uei.opennms.org/test").setSource("test")
+                .setNodeId(80).addParameter(ImmutableEventParameter.newBuilder().setName("name").setValue("value")
+                        .build())
+                .build();
+        StreamMessage batch = new StreamMessage(MessageType.Batch, Arrays.asList(
+                new StreamMessage(MessageType.Alarm, alarm), new StreamMessage(MessageType.Edge, edge),
+                new StreamMessage(MessageType.Event, event)));
+
+        for (Codec codec : Codec.values()) {
+            for (Projection projection : Arrays.asList(Projection.NONE, Projection.ALL)) {
+                boolean all = projection == Projection.ALL;
+                ObjectMapper encoder = codec.newMapper().registerModule(ProjectionKt.oiaSerializers(projection));
+                List<StreamMessage> messages = (List<StreamMessage>) codec.newMapper()
+                        .readValue(encoder.writeValueAsBytes(batch), StreamMessage.class).getPayload();
+
+                // What the clients use is always there...
+                org.opennms.integration.api.v1.model.Alarm decodedAlarm =
+                        (org.opennms.integration.api.v1.model.Alarm) messages.get(0).getPayload();
+                assertEquals("reduc-key-300", decodedAlarm.getReductionKey());
+                assertEquals(Severity.MAJOR, decodedAlarm.getSeverity());
+                assertEquals("description", decodedAlarm.getDescription());
+                assertEquals(new Date(1000), decodedAlarm.getLastEventTime());
+                assertEquals("node-80-label", decodedAlarm.getNode().getLabel());
+                assertEquals("location-0", decodedAlarm.getNode().getLocation());
+
+                // ...the rest only when included
+                assertEquals(all ? "node" : null, decodedAlarm.getManagedObjectType());
+                assertEquals(all ? 1 : 0, decodedAlarm.getAttributes().size());
+                assertEquals(all ? 1 : 0, decodedAlarm.getNode().getMetaData().size());
+
+                TopologyEdge decodedEdge = (TopologyEdge) messages.get(1).getPayload();
+                assertEquals("edge-80", decodedEdge.getId());
+                decodedEdge.visitEndpoints(new TopologyEdge.EndpointVisitor() {
+                    @Override
+                    public void visitTarget(TopologyPort port) {
+                        assertEquals("81", port.getId());
+                        assertEquals(Integer.valueOf(3), port.getIfIndex());
+                        assertEquals(all ? "eth3" : null, port.getIfName());
+                    }
+                });
+
+                InMemoryEvent decodedEvent = (InMemoryEvent) messages.get(2).getPayload();
+                assertEquals("uei.opennms.org/test", decodedEvent.getUei());
+                assertEquals("test", decodedEvent.getSource());
+                assertEquals(Integer.valueOf(80), decodedEvent.getNodeId());
+                assertEquals(all ? 1 : 0, decodedEvent.getParameters().size());
+            }
+        }
+    }
+
+    @Test
+    public void testBriefs() {
+        ArgumentCaptor<Alarm> alarmCap = ArgumentCaptor.forClass((Class) Alarm.class);
+        ArgumentCaptor<Vertex> vertexCap = ArgumentCaptor.forClass((Class) Vertex.class);
+        ArgumentCaptor<Event> eventCap = ArgumentCaptor.forClass((Class) Event.class);
+
+        wsConsumer.accept(consumer);
+
+        wsConsumer.processAlarmBrief(new StreamMessage(MessageType.AlarmBrief,
+                new AlarmBrief(101, "reduc-key-101", Severity.MAJOR, 10, new Date(1000))));
+        wsConsumer.processNodeBrief(new StreamMessage(MessageType.NodeBrief,
+                new NodeBrief(50, "node-50-label", "location-0")));
+        wsConsumer.processEventBrief(new StreamMessage(MessageType.EventBrief,
+                new EventBrief(7, "test-uei", 10, Severity.WARNING)));
+
+        verify(consumer, times(1)).acceptAlarm(alarmCap.capture());
+        assertEquals("reduc-key-101", alarmCap.getValue().getReductionKey());
+        assertEquals(Alarm.Severity.MAJOR, alarmCap.getValue().getSeverity());
+        assertEquals("10", alarmCap.getValue().getVertexId());
+        assertEquals(new Date(1000), alarmCap.getValue().getLastUpdated());
+
+        verify(consumer, times(1)).acceptVertex(vertexCap.capture());
+        assertEquals("50", vertexCap.getValue().getId());
+        assertEquals("node-50-label", vertexCap.getValue().getLabel());
+
+        verify(consumer, times(1)).acceptEvent(eventCap.capture());
+        assertEquals("test-uei", eventCap.getValue().getUEI());
+        assertEquals("10", eventCap.getValue().getVertexId());
+        assertEquals("7", eventCap.getValue().getId());
+    }
+
+    @Test
+    public void testDetailCache() {
+        org.opennms.integration.api.v1.model.Alarm alarm = generateAlarm(101, "reduc-key-101", false);
+        wsConsumer.processDetail(new StreamMessage(MessageType.Detail,
+                new Detail(DetailType.Alarm, "reduc-key-101", alarm, null, null)));
+
+        // Answered locally, the client isn't even connected
+        CompletableFuture<Detail> cached = wsConsumer.requestDetail(DetailType.Alarm, "reduc-key-101");
+        assertEquals(alarm, cached.getNow(null).getAlarm());
+
+        // An update makes it stale, so it has to be fetched again
+        wsConsumer.processAlarmBrief(new StreamMessage(MessageType.AlarmBrief,
+                new AlarmBrief(101, "reduc-key-101", Severity.MAJOR, 10, new Date(1000))));
+        assertTrue(wsConsumer.requestDetail(DetailType.Alarm, "reduc-key-101").isCompletedExceptionally());
+
+        // Not found isn't cached
+        wsConsumer.processDetail(new StreamMessage(MessageType.Detail,
+                new Detail(DetailType.Node, "50", null, null, null)));
+        assertTrue(wsConsumer.requestDetail(DetailType.Node, "50").isCompletedExceptionally());
+    }
+
+    @Test
+    public void testNodeDelete() {
+        wsConsumer.processTopology(generateTopology());
+        wsConsumer.accept(consumer);
+
+        int numVerticesOrig = wsConsumer.numVertices();
+        int numEdgesOrig = wsConsumer.numEdges();
+
+        wsConsumer.processNodeDelete(new StreamMessage(MessageType.NodeDelete, new NodeDelete(20)));
+
+        // The node's edges are deleted along with it
+        verify(consumer, times(1)).acceptDeletedEdge("edge-1-ALL");
+        verify(consumer, times(1)).acceptDeletedEdge("edge-2-ALL");
+        verify(consumer, times(1)).acceptDeletedVertex("20");
+        assertEquals(numVerticesOrig - 1, wsConsumer.numVertices());
+        assertEquals(numEdgesOrig - 2, wsConsumer.numEdges());
+
+        // Deleting it again is a no-op
+        wsConsumer.processNodeDelete(new StreamMessage(MessageType.NodeDelete, new NodeDelete(20)));
+        verify(consumer, times(1)).acceptDeletedVertex("20");
+    }
+
+    @Test
+    public void testResumePosition() {
+        wsConsumer.processTopologyBegin(new StreamMessage(MessageType.TopologyBegin, new TopologyBegin(0, 0, 0)));
+        assertNull(wsConsumer.getLastSeq());
+
+        // Only a complete snapshot gives a position to resume from
+        wsConsumer.processBatch(new StreamMessage(MessageType.Batch, Collections.singletonList(
+                new StreamMessage(MessageType.Node, generateNode(50, "node-50-label"), 5L))));
+        assertNull(wsConsumer.getLastSeq());
+
+        wsConsumer.processTopologyEnd(new StreamMessage(MessageType.TopologyEnd, new TopologyEnd(0), 10L));
+        assertEquals(Long.valueOf(10), wsConsumer.getLastSeq());
+
+        // Conflated deltas can arrive out of order, the position never goes back
+        wsConsumer.processBatch(new StreamMessage(MessageType.Batch, Arrays.asList(
+                new StreamMessage(MessageType.Node, generateNode(51, "node-51-label"), 12L),
+                new StreamMessage(MessageType.Node, generateNode(52, "node-52-label"), 11L))));
+        assertEquals(Long.valueOf(12), wsConsumer.getLastSeq());
+
+        wsConsumer.processTopologyBegin(new StreamMessage(MessageType.TopologyBegin, new TopologyBegin(0, 0, 0)));
+        assertNull(wsConsumer.getLastSeq());
+    }
+
     private StreamMessage generateTopology() {
 
         Set<org.opennms.integration.api.v1.model.Node> nodes = new HashSet<>();
@@ -28,7 +28,14 @@
 
 package org.opennms.oia.streaming.itest;
 
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import edu.uci.ics.jung.graph.Graph;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.handshake.ServerHandshake;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.opennms.integration.api.v1.dao.AlarmDao;
@@ -38,6 +45,7 @@ import org.opennms.integration.api.v1.events.EventSubscriptionService;
 import org.opennms.integration.api.v1.model.*;
 import org.opennms.integration.api.v1.model.Alarm;
 import org.opennms.integration.api.v1.model.immutables.ImmutableAlarm;
+import org.opennms.integration.api.v1.model.immutables.ImmutableEventParameter;
 import org.opennms.integration.api.v1.model.immutables.ImmutableInMemoryEvent;
 import org.opennms.integration.api.v1.model.immutables.ImmutableNode;
 import org.opennms.integration.api.v1.model.immutables.ImmutableTopologyEdge;
@@ -45,12 +53,27 @@ import org.opennms.oia.streaming.OiaWebSocketServer;
 import org.opennms.oia.streaming.client.WebSocketConsumerService;
 import org.opennms.oia.streaming.client.api.ConsumerService;
 import org.opennms.oia.streaming.client.api.model.*;
+import org.opennms.oia.streaming.model.Codec;
+import org.opennms.oia.streaming.model.Detail;
+import org.opennms.oia.streaming.model.DetailType;
+import org.opennms.oia.streaming.model.FilterCriteria;
+import org.opennms.oia.streaming.model.MessageType;
+import org.opennms.oia.streaming.model.SessionStats;
 import org.springframework.util.SocketUtils;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
@@ -117,7 +140,7 @@ public class ClientServerTest {
     );
 
     @BeforeAll
-    public static void setupMocks() {
+    public static void setupMocks() throws InterruptedException {
         List<org.opennms.integration.api.v1.model.Alarm> alarmsAndSituations = new ArrayList<>();
         alarmsAndSituations.addAll(initialAlarms);
         alarmsAndSituations.addAll(initialSituations);
@@ -125,6 +148,53 @@ public class ClientServerTest {
 
         when(mockedNodeDao.getNodes()).thenReturn(initialNodes);
         when(mockedEdgeDao.getEdges()).thenReturn(initialEdges);
+
+        warmUp();
+    }
+
+    /**
+     * Starts the server and waits for it to listen, the server binds in the background and the client doesn't retry a
+     * refused connection.
+     */
+    private static void startListening(OiaWebSocketServer server, int port) {
+        server.start();
+        await().atMost(10, TimeUnit.SECONDS).ignoreExceptions().until(() -> {
+            try (Socket ignored = new Socket("localhost", port)) {
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Streams the initial topology once so that the tests, which expect it within a second, don't pay for loading and
+     * JITing the server and client in a cold JVM, whichever of them runs first.
+     */
+    private static void warmUp() throws InterruptedException {
+        int port = SocketUtils.findAvailableTcpPort();
+
+        OiaWebSocketServer server = new OiaWebSocketServer(port, mockedAlarmDao, mockedNodeDao, mockedEdgeDao,
+                mockedEventSubscriptionService);
+        startListening(server, port);
+
+        ConsumerService consumerService = new WebSocketConsumerService("ws://localhost:" + port);
+        consumerService.start();
+
+        AtomicBoolean received = new AtomicBoolean(false);
+        consumerService.accept(new NoOpConsumer() {
+            @Override
+            public void accept(Graph<Vertex, Edge> graph,
+                               Collection<org.opennms.oia.streaming.client.api.model.Alarm> alarms,
+                               Collection<Situation> situations) {
+                received.set(true);
+            }
+        });
+
+        try {
+            await().atMost(30, TimeUnit.SECONDS).until(received::get);
+        } finally {
+            consumerService.stop();
+            server.stop();
+        }
     }
 
     @Test
@@ -133,7 +203,7 @@ public class ClientServerTest {
 
         OiaWebSocketServer server = new OiaWebSocketServer(port, mockedAlarmDao, mockedNodeDao, mockedEdgeDao,
                 mockedEventSubscriptionService);
-        server.start();
+        startListening(server, port);
 
         ConsumerService consumerService = new WebSocketConsumerService("ws://localhost:" + port);
         consumerService.start();
@@ -198,13 +268,612 @@ public class ClientServerTest {
         }
     }
 
+    @Test
+    public void canStreamInCompressedEnvelope() throws InterruptedException, IOException {
+        int port = SocketUtils.findAvailableTcpPort();
+
+        OiaWebSocketServer server = new OiaWebSocketServer(port, mockedAlarmDao, mockedNodeDao, mockedEdgeDao,
+                mockedEventSubscriptionService);
+        // The envelope is only used when the socket isn't deflating already
+        server.setPerMessageDeflate(false);
+        server.setCompressionThreshold(256);
+        startListening(server, port);
+
+        ConsumerService consumerService = new WebSocketConsumerService("ws://localhost:" + port, Codec.JSON, true);
+        consumerService.start();
+
+        AtomicBoolean received = new AtomicBoolean(false);
+        AtomicReference<Graph<Vertex, Edge>> receivedGraph = new AtomicReference<>(null);
+        AtomicReference<String> receivedAlarm = new AtomicReference<>(null);
+
+        consumerService.accept(new NoOpConsumer() {
+            @Override
+            public void accept(Graph<Vertex, Edge> graph,
+                               Collection<org.opennms.oia.streaming.client.api.model.Alarm> alarms,
+                               Collection<Situation> situations) {
+                receivedGraph.set(graph);
+                received.set(true);
+            }
+
+            @Override
+            public void acceptAlarm(org.opennms.oia.streaming.client.api.model.Alarm alarm) {
+                receivedAlarm.set(alarm.getReductionKey());
+            }
+        });
+
+        try {
+            // The snapshot is above the threshold...
+            await().atMost(1, TimeUnit.SECONDS).until(received::get);
+            assertThat(receivedGraph.get().getVertices(), hasSize(2));
+
+            // ...while a single alarm is not
+            server.handleNewOrUpdatedAlarm(ImmutableAlarm.newBuilder()
+                    .setId(300)
+                    .setReductionKey("envelope-alarm")
+                    .setNode(initialNodeA)
+                    .build());
+
+            await().atMost(1, TimeUnit.SECONDS).until(() -> receivedAlarm.get() != null);
+            assertEquals("envelope-alarm", receivedAlarm.get());
+        } finally {
+            consumerService.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void sendsDeflatedBatchesAtTheirLength() throws Exception {
+        int port = SocketUtils.findAvailableTcpPort();
+
+        OiaWebSocketServer server = new OiaWebSocketServer(port, mockedAlarmDao, mockedNodeDao, mockedEdgeDao,
+                mockedEventSubscriptionService);
+        server.setPerMessageDeflate(true);
+        startListening(server, port);
+
+        ObjectMapper mapper = new ObjectMapper().enable(DeserializationFeature.FAIL_ON_TRAILING_TOKENS);
+        List<byte[]> frames = Collections.synchronizedList(new ArrayList<>());
+        AtomicBoolean snapshotEnded = new AtomicBoolean(false);
+        WebSocketClient client = new WebSocketClient(new URI("ws://localhost:" + port),
+                new Draft_6455(new PerMessageDeflateExtension())) {
+            @Override
+            public void onOpen(ServerHandshake handshake) {
+                send("{\"action\":\"SUBSCRIBE\"}");
+            }
+
+            @Override
+            public void onMessage(String message) {
+            }
+
+            @Override
+            public void onMessage(ByteBuffer bytes) {
+                byte[] frame = new byte[bytes.remaining()];
+                bytes.get(frame);
+                frames.add(frame);
+                if (new String(frame, StandardCharsets.UTF_8).contains(MessageType.TopologyEnd.name())) {
+                    snapshotEnded.set(true);
+                }
+            }
+
+            @Override
+            public void onClose(int code, String reason, boolean remote) {
+            }
+
+            @Override
+            public void onError(Exception e) {
+            }
+        };
+
+        try {
+            assertTrue(client.connectBlocking(5, TimeUnit.SECONDS));
+            await().atMost(5, TimeUnit.SECONDS).until(snapshotEnded::get);
+
+            // A batch below the deflate threshold, then one above it
+            for (int count : new int[]{2, 50}) {
+                frames.clear();
+                for (int i = 0; i < count; i++) {
+                    server.handleNewOrUpdatedAlarm(ImmutableAlarm.newBuilder()
+                            .setId(400 + i)
+                            .setReductionKey("deflated-alarm-" + count + "-" + i)
+                            .setNode(initialNodeA)
+                            .setDescription("Deflated alarm " + i + " of a batch of " + count)
+                            .build());
+                }
+
+                await().atMost(5, TimeUnit.SECONDS).until(() -> {
+                    synchronized (frames) {
+                        int received = 0;
+                        for (byte[] frame : frames) {
+                            JsonNode message = mapper.readTree(frame);
+                            boolean batch = MessageType.Batch.name().equals(message.get("type").asText());
+                            received += batch ? message.get("payload").size() : 1;
+                        }
+                        return received >= count;
+                    }
+                });
+                synchronized (frames) {
+                    boolean batched = false;
+                    for (byte[] frame : frames) {
+                        // Fails on anything trailing the message, which is then encoded back to the same length
+                        JsonNode message = mapper.readTree(frame);
+                        batched |= MessageType.Batch.name().equals(message.get("type").asText());
+                        assertEquals(mapper.writeValueAsBytes(message).length, frame.length);
+                    }
+                    assertTrue(batched);
+                }
+            }
+        } finally {
+            client.closeBlocking();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void canStreamWithEachCodec() throws InterruptedException, IOException {
+        for (Codec codec : Codec.values()) {
+            int port = SocketUtils.findAvailableTcpPort();
+
+            OiaWebSocketServer server = new OiaWebSocketServer(port, mockedAlarmDao, mockedNodeDao, mockedEdgeDao,
+                    mockedEventSubscriptionService);
+            startListening(server, port);
+
+            ConsumerService consumerService = new WebSocketConsumerService("ws://localhost:" + port, codec);
+            consumerService.start();
+
+            AtomicBoolean received = new AtomicBoolean(false);
+            AtomicReference<Graph<Vertex, Edge>> receivedGraph = new AtomicReference<>(null);
+            Set<String> receivedAlarms = Collections.synchronizedSet(new HashSet<>());
+
+            consumerService.accept(new NoOpConsumer() {
+                @Override
+                public void accept(Graph<Vertex, Edge> graph,
+                                   Collection<org.opennms.oia.streaming.client.api.model.Alarm> alarms,
+                                   Collection<Situation> situations) {
+                    receivedGraph.set(graph);
+                    received.set(true);
+                }
+
+                @Override
+                public void acceptAlarm(org.opennms.oia.streaming.client.api.model.Alarm alarm) {
+                    receivedAlarms.add(alarm.getReductionKey());
+                }
+            });
+
+            try {
+                await().atMost(1, TimeUnit.SECONDS).until(received::get);
+
+                assertThat(codec.name(), receivedGraph.get().getVertices(), hasSize(2));
+                assertThat(codec.name(), receivedGraph.get().getEdges(), hasSize(1));
+
+                // Published back to back so that they go out in the same batch
+                for (int i = 0; i < 5; i++) {
+                    server.handleNewOrUpdatedAlarm(ImmutableAlarm.newBuilder()
+                            .setId(200 + i)
+                            .setReductionKey("codec-alarm-" + i)
+                            .setNode(initialNodeA)
+                            .build());
+                }
+
+                await().atMost(1, TimeUnit.SECONDS).until(() -> receivedAlarms.size() == 5);
+            } finally {
+                consumerService.stop();
+                server.stop();
+            }
+        }
+    }
+
+    @Test
+    public void canResumeAfterReconnect() throws InterruptedException, IOException {
+        resumeAfterReconnect(Codec.JSON);
+    }
+
+    @Test
+    public void canResumeAfterReconnectWithOtherCodec() throws InterruptedException, IOException {
+        // The journal keeps deltas in JSON, they're transcoded for sessions using another codec
+        resumeAfterReconnect(Codec.CBOR);
+    }
+
+    private void resumeAfterReconnect(Codec codec) throws InterruptedException, IOException {
+        int port = SocketUtils.findAvailableTcpPort();
+
+        OiaWebSocketServer server = new OiaWebSocketServer(port, mockedAlarmDao, mockedNodeDao, mockedEdgeDao,
+                mockedEventSubscriptionService);
+        startListening(server, port);
+
+        WebSocketConsumerService consumerService = new WebSocketConsumerService("ws://localhost:" + port, codec);
+        consumerService.start();
+
+        AtomicBoolean received = new AtomicBoolean(false);
+        AtomicInteger snapshots = new AtomicInteger();
+        AtomicReference<String> receivedAlarm = new AtomicReference<>(null);
+
+        consumerService.accept(new NoOpConsumer() {
+            @Override
+            public void accept(Graph<Vertex, Edge> graph,
+                               Collection<org.opennms.oia.streaming.client.api.model.Alarm> alarms,
+                               Collection<Situation> situations) {
+                snapshots.incrementAndGet();
+                received.set(true);
+            }
+
+            @Override
+            public void acceptAlarm(org.opennms.oia.streaming.client.api.model.Alarm alarm) {
+                receivedAlarm.set(alarm.getReductionKey());
+            }
+        });
+
+        try {
+            await().atMost(1, TimeUnit.SECONDS).until(received::get);
+            assertNotNull(consumerService.getLastSeq());
+
+            consumerService.stop();
+
+            // Published while the client is away, critical so that it goes out (and into the journal) right away
+            server.handleNewOrUpdatedAlarm(ImmutableAlarm.newBuilder()
+                    .setId(400)
+                    .setReductionKey("missed-alarm")
+                    .setSeverity(Severity.CRITICAL)
+                    .setNode(initialNodeA)
+                    .build());
+            // Replayed from its encoding once the journal has let go of the alarm itself
+            await().atMost(1, TimeUnit.SECONDS).until(() -> server.getCacheSizes().get("journalBytes") > 0);
+
+            consumerService.start();
+
+            // The missed alarm is replayed without sending the topology over again
+            await().atMost(1, TimeUnit.SECONDS).until(() -> receivedAlarm.get() != null);
+            assertEquals("missed-alarm", receivedAlarm.get());
+            assertEquals(1, snapshots.get());
+        } finally {
+            consumerService.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void suppressesUnchangedAlarms() throws InterruptedException {
+        int port = SocketUtils.findAvailableTcpPort();
+
+        OiaWebSocketServer server = new OiaWebSocketServer(port, mockedAlarmDao, mockedNodeDao, mockedEdgeDao,
+                mockedEventSubscriptionService);
+        // Otherwise the updates could be coalesced before they are counted as sent
+        server.setCoalesceWindowMs(0);
+        startListening(server, port);
+
+        try {
+            Alarm alarm = ImmutableAlarm.newBuilder()
+                    .setId(500)
+                    .setReductionKey("repeated-alarm")
+                    .setSeverity(Severity.MINOR)
+                    .setNode(initialNodeA)
+                    .build();
+            server.handleNewOrUpdatedAlarm(alarm);
+            server.handleNewOrUpdatedAlarm(ImmutableAlarm.newBuilderFrom(alarm).build());
+            Alarm major = ImmutableAlarm.newBuilderFrom(alarm).setSeverity(Severity.MAJOR).build();
+            server.handleNewOrUpdatedAlarm(major);
+
+            await().atMost(1, TimeUnit.SECONDS).until(() -> server.getSentAlarmUpdates() == 2);
+            assertEquals(1, server.getSuppressedAlarmUpdates());
+
+            // Any other field clients see changing is an update too
+            Alarm firstEvent = ImmutableAlarm.newBuilderFrom(major).setFirstEventTime(new Date(1000)).build();
+            server.handleNewOrUpdatedAlarm(firstEvent);
+            server.handleNewOrUpdatedAlarm(ImmutableAlarm.newBuilderFrom(firstEvent)
+                    .setNode(ImmutableNode.newBuilderFrom(initialNodeA).setLabel(TEST_LABEL + "-renamed").build())
+                    .build());
+            await().atMost(1, TimeUnit.SECONDS).until(() -> server.getSentAlarmUpdates() == 4);
+            assertEquals(1, server.getSuppressedAlarmUpdates());
+
+            // A delete without a reduction key is ignored rather than failing the callback
+            server.handleDeletedAlarm(alarm.getId(), null);
+
+            // The initial alarms are already known, so a snapshot of them doesn't go out again
+            server.handleAlarmSnapshot(new ArrayList<>(initialAlarms));
+            await().atMost(1, TimeUnit.SECONDS).until(() -> server.getSuppressedAlarmUpdates() == 3);
+            assertEquals(4, server.getSentAlarmUpdates());
+            // While the alarm missing from it is deleted
+            await().atMost(1, TimeUnit.SECONDS)
+                    .until(() -> server.getCacheSizes().get("alarms") == initialAlarms.size());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void filtersByMinimumSeverity() throws InterruptedException {
+        int port = SocketUtils.findAvailableTcpPort();
+
+        OiaWebSocketServer server = new OiaWebSocketServer(port, mockedAlarmDao, mockedNodeDao, mockedEdgeDao,
+                mockedEventSubscriptionService);
+        server.setCoalesceWindowMs(0);
+        startListening(server, port);
+
+        ConsumerService consumerService = new WebSocketConsumerService("ws://localhost:" + port, Codec.JSON, false,
+                new FilterCriteria(null, Severity.MAJOR));
+        consumerService.start();
+
+        AtomicBoolean received = new AtomicBoolean(false);
+        AtomicReference<Graph<Vertex, Edge>> receivedGraph = new AtomicReference<>(null);
+        AtomicInteger receivedSnapshotAlarms = new AtomicInteger(-1);
+        List<String> receivedAlarms = Collections.synchronizedList(new ArrayList<>());
+        List<String> deletedAlarms = Collections.synchronizedList(new ArrayList<>());
+
+        consumerService.accept(new NoOpConsumer() {
+            @Override
+            public void accept(Graph<Vertex, Edge> graph,
+                               Collection<org.opennms.oia.streaming.client.api.model.Alarm> alarms,
+                               Collection<Situation> situations) {
+                receivedGraph.set(graph);
+                receivedSnapshotAlarms.set(alarms.size());
+                received.set(true);
+            }
+
+            @Override
+            public void acceptAlarm(org.opennms.oia.streaming.client.api.model.Alarm alarm) {
+                receivedAlarms.add(alarm.getReductionKey());
+            }
+
+            @Override
+            public void acceptDeletedAlarm(String reductionKey) {
+                deletedAlarms.add(reductionKey);
+            }
+        });
+
+        try {
+            await().atMost(1, TimeUnit.SECONDS).until(received::get);
+            // The topology is all there, without the initial alarms which have no severity
+            assertThat(receivedGraph.get().getVertices(), hasSize(2));
+            assertEquals(0, receivedSnapshotAlarms.get());
+
+            Alarm major = ImmutableAlarm.newBuilder()
+                    .setId(600)
+                    .setReductionKey("major-alarm")
+                    .setSeverity(Severity.MAJOR)
+                    .setNode(initialNodeA)
+                    .build();
+            server.handleNewOrUpdatedAlarm(ImmutableAlarm.newBuilder()
+                    .setId(601)
+                    .setReductionKey("minor-alarm")
+                    .setSeverity(Severity.MINOR)
+                    .setNode(initialNodeA)
+                    .build());
+            server.handleNewOrUpdatedAlarm(major);
+            await().atMost(1, TimeUnit.SECONDS).until(() -> receivedAlarms.contains("major-alarm"));
+
+            // Dropping below the minimum severity takes the alarm away
+            server.handleNewOrUpdatedAlarm(ImmutableAlarm.newBuilderFrom(major).setSeverity(Severity.MINOR).build());
+            await().atMost(1, TimeUnit.SECONDS).until(() -> deletedAlarms.contains("major-alarm"));
+
+            assertEquals(Collections.singletonList("major-alarm"), receivedAlarms);
+        } finally {
+            consumerService.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void streamsFocusNeighborhood() throws InterruptedException {
+        int port = SocketUtils.findAvailableTcpPort();
+
+        OiaWebSocketServer server = new OiaWebSocketServer(port, mockedAlarmDao, mockedNodeDao, mockedEdgeDao,
+                mockedEventSubscriptionService);
+        startListening(server, port);
+
+        FilterCriteria criteria = new FilterCriteria(null, null, null, null, null, null, initialNodeA.getId(), 1);
+        ConsumerService consumerService = new WebSocketConsumerService("ws://localhost:" + port, Codec.JSON, false,
+                criteria);
+        consumerService.start();
+
+        AtomicBoolean received = new AtomicBoolean(false);
+        AtomicReference<Graph<Vertex, Edge>> receivedGraph = new AtomicReference<>(null);
+        Set<String> vertices = Collections.synchronizedSet(new HashSet<>());
+
+        consumerService.accept(new NoOpConsumer() {
+            @Override
+            public void accept(Graph<Vertex, Edge> graph,
+                               Collection<org.opennms.oia.streaming.client.api.model.Alarm> alarms,
+                               Collection<Situation> situations) {
+                receivedGraph.set(graph);
+                received.set(true);
+            }
+
+            @Override
+            public void acceptVertex(Vertex vertex) {
+                vertices.add(vertex.getId());
+            }
+
+            @Override
+            public void acceptDeletedVertex(String vertexId) {
+                vertices.remove(vertexId);
+            }
+        });
+
+        Node nodeB = ImmutableNode.newBuilder()
+                .setId(3)
+                .setLocation(TEST_LOCATION)
+                .setLabel(TEST_LABEL + "-b")
+                .build();
+        Node nodeC = ImmutableNode.newBuilder()
+                .setId(4)
+                .setLocation(TEST_LOCATION)
+                .setLabel(TEST_LABEL + "-c")
+                .build();
+        TopologyEdge zToC = ImmutableTopologyEdge.newBuilder()
+                .setId("z-c")
+                .setProtocol(TopologyProtocol.USERDEFINED)
+                .setSource(initialNodeZ)
+                .setTarget(nodeC)
+                .build();
+        TopologyEdge aToB = ImmutableTopologyEdge.newBuilder()
+                .setId("a-b")
+                .setProtocol(TopologyProtocol.USERDEFINED)
+                .setSource(initialNodeA)
+                .setTarget(nodeB)
+                .build();
+
+        try {
+            await().atMost(1, TimeUnit.SECONDS).until(received::get);
+            assertThat(receivedGraph.get().getVertices(), hasSize(2));
+
+            // Two hops away from the focus, not sent
+            server.onEdgeAddedOrUpdated(zToC);
+            // One hop away, enters the neighborhood...
+            server.onEdgeAddedOrUpdated(aToB);
+            await().atMost(1, TimeUnit.SECONDS).until(() -> vertices.contains("3"));
+
+            // ...and leaves it again
+            server.onEdgeDeleted(aToB);
+            await().atMost(1, TimeUnit.SECONDS).until(() -> !vertices.contains("3"));
+            assertFalse(vertices.contains("4"));
+        } finally {
+            consumerService.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void reportsSessionStats() throws Exception {
+        int port = SocketUtils.findAvailableTcpPort();
+
+        OiaWebSocketServer server = new OiaWebSocketServer(port, mockedAlarmDao, mockedNodeDao, mockedEdgeDao,
+                mockedEventSubscriptionService);
+        startListening(server, port);
+
+        WebSocketConsumerService consumerService = new WebSocketConsumerService("ws://localhost:" + port);
+        consumerService.start();
+
+        AtomicBoolean received = new AtomicBoolean(false);
+        AtomicReference<String> receivedAlarm = new AtomicReference<>(null);
+
+        consumerService.accept(new NoOpConsumer() {
+            @Override
+            public void accept(Graph<Vertex, Edge> graph,
+                               Collection<org.opennms.oia.streaming.client.api.model.Alarm> alarms,
+                               Collection<Situation> situations) {
+                received.set(true);
+            }
+
+            @Override
+            public void acceptAlarm(org.opennms.oia.streaming.client.api.model.Alarm alarm) {
+                receivedAlarm.set(alarm.getReductionKey());
+            }
+        });
+
+        try {
+            await().atMost(1, TimeUnit.SECONDS).until(received::get);
+            server.handleNewOrUpdatedAlarm(ImmutableAlarm.newBuilder()
+                    .setId(700)
+                    .setReductionKey("stats-alarm")
+                    .setNode(initialNodeA)
+                    .build());
+            await().atMost(1, TimeUnit.SECONDS).until(() -> receivedAlarm.get() != null);
+
+            SessionStats stats = consumerService.requestStats().get(1, TimeUnit.SECONDS);
+            assertEquals(Long.valueOf(1), stats.getMessagesByType().get(MessageType.Alarm));
+            assertEquals(Long.valueOf(1), stats.getMessagesByType().get(MessageType.TopologyEnd));
+            assertThat(stats.getBytesSent(), greaterThan(0L));
+            assertEquals(0, stats.getMessagesDropped());
+
+            // The same numbers are there over JMX
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName serverName = new ObjectName("org.opennms.oia.streaming:type=Server,port=" + port);
+            assertEquals(1, mBeanServer.getAttribute(serverName, "SessionCount"));
+            assertThat((CompositeData[]) mBeanServer.getAttribute(serverName, "StageMetrics"), arrayWithSize(6));
+            assertEquals(1, mBeanServer.queryNames(
+                    new ObjectName("org.opennms.oia.streaming:type=Session,port=" + port + ",*"), null).size());
+        } finally {
+            consumerService.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void streamsBriefsWithDetailOnDemand() throws Exception {
+        int port = SocketUtils.findAvailableTcpPort();
+
+        OiaWebSocketServer server = new OiaWebSocketServer(port, mockedAlarmDao, mockedNodeDao, mockedEdgeDao,
+                mockedEventSubscriptionService);
+        startListening(server, port);
+
+        WebSocketConsumerService consumerService = new WebSocketConsumerService("ws://localhost:" + port,
+                Codec.JSON, false, new FilterCriteria(null, Severity.MAJOR), false, true);
+        consumerService.start();
+
+        AtomicBoolean received = new AtomicBoolean(false);
+        AtomicReference<org.opennms.oia.streaming.client.api.model.Alarm> receivedAlarm = new AtomicReference<>(null);
+        AtomicReference<Event> receivedEvent = new AtomicReference<>(null);
+
+        consumerService.accept(new NoOpConsumer() {
+            @Override
+            public void accept(Graph<Vertex, Edge> graph,
+                               Collection<org.opennms.oia.streaming.client.api.model.Alarm> alarms,
+                               Collection<Situation> situations) {
+                received.set(true);
+            }
+
+            @Override
+            public void acceptAlarm(org.opennms.oia.streaming.client.api.model.Alarm alarm) {
+                receivedAlarm.set(alarm);
+            }
+
+            @Override
+            public void acceptEvent(Event event) {
+                receivedEvent.set(event);
+            }
+        });
+
+        try {
+            await().atMost(1, TimeUnit.SECONDS).until(received::get);
+            // Has no brief (and isn't sent to this session), which mustn't hold up what is published after it
+            server.handleNewOrUpdatedAlarm(ImmutableAlarm.newBuilder()
+                    .setId(801)
+                    .setNode(initialNodeA)
+                    .setSeverity(Severity.NORMAL)
+                    .build());
+            server.handleNewOrUpdatedAlarm(ImmutableAlarm.newBuilder()
+                    .setId(800)
+                    .setReductionKey("brief-alarm")
+                    .setNode(initialNodeA)
+                    .setSeverity(Severity.MAJOR)
+                    .setDescription("The whole description")
+                    .build());
+            server.onEvent(ImmutableInMemoryEvent.newBuilder()
+                    .setUei("uei.opennms.org/test")
+                    .setSource("test")
+                    .setNodeId(initialNodeA.getId())
+                    .addParameter(ImmutableEventParameter.newInstance("name", "value"))
+                    .build());
+            await().atMost(1, TimeUnit.SECONDS).until(() -> receivedAlarm.get() != null && receivedEvent.get() != null);
+
+            // Only what is rendered comes in the stream...
+            assertEquals(org.opennms.oia.streaming.client.api.model.Alarm.Severity.MAJOR,
+                    receivedAlarm.get().getSeverity());
+            assertEquals("", receivedAlarm.get().getDescription());
+            assertEquals("uei.opennms.org/test", receivedEvent.get().getUEI());
+
+            // ...the rest is there on demand
+            Detail alarm = consumerService.requestDetail(DetailType.Alarm, "brief-alarm").get(1, TimeUnit.SECONDS);
+            assertEquals("The whole description", alarm.getAlarm().getDescription());
+            Detail event = consumerService.requestDetail(DetailType.Event, receivedEvent.get().getId())
+                    .get(1, TimeUnit.SECONDS);
+            assertEquals(1, event.getEvent().getParameters().size());
+            Detail node = consumerService.requestDetail(DetailType.Node, "1").get(1, TimeUnit.SECONDS);
+            assertEquals(TEST_LABEL + "-a", node.getNode().getLabel());
+
+            assertNull(consumerService.requestDetail(DetailType.Alarm, "missing").get(1, TimeUnit.SECONDS)
+                    .getAlarm());
+        } finally {
+            consumerService.stop();
+            server.stop();
+        }
+    }
+
 //    @Test
     public void canHandleAlarm() throws InterruptedException, IOException {
         int port = SocketUtils.findAvailableTcpPort();
 
         OiaWebSocketServer server = new OiaWebSocketServer(port, mockedAlarmDao, mockedNodeDao, mockedEdgeDao,
                 mockedEventSubscriptionService);
-        server.start();
+        startListening(server, port);
 
         ConsumerService consumerService = new WebSocketConsumerService("ws://localhost:" + port);
         consumerService.start();
@@ -292,7 +961,7 @@ public class ClientServerTest {
 
         OiaWebSocketServer server = new OiaWebSocketServer(port, mockedAlarmDao, mockedNodeDao, mockedEdgeDao,
                 mockedEventSubscriptionService);
-        server.start();
+        startListening(server, port);
 
         ConsumerService consumerService = new WebSocketConsumerService("ws://localhost:" + port);
         consumerService.start();
@@ -342,7 +1011,7 @@ public class ClientServerTest {
 
         OiaWebSocketServer server = new OiaWebSocketServer(port, mockedAlarmDao, mockedNodeDao, mockedEdgeDao,
                 mockedEventSubscriptionService);
-        server.start();
+        startListening(server, port);
 
         ConsumerService consumerService = new WebSocketConsumerService("ws://localhost:" + port);
         consumerService.start();
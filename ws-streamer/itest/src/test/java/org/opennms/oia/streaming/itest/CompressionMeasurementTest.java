@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.oia.streaming.itest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import org.junit.jupiter.api.Test;
+import org.opennms.integration.api.serializer.TopologyEdgeSerializer;
+import org.opennms.integration.api.v1.model.Node;
+import org.opennms.integration.api.v1.model.TopologyEdge;
+import org.opennms.integration.api.v1.model.TopologyProtocol;
+import org.opennms.integration.api.v1.model.immutables.ImmutableNode;
+import org.opennms.integration.api.v1.model.immutables.ImmutableTopologyEdge;
+import org.opennms.oia.streaming.model.Codec;
+import org.opennms.oia.streaming.model.CompressedEnvelope;
+import org.opennms.oia.streaming.model.StreamMessageKt;
+import org.opennms.oia.streaming.model.Topology;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+
+/**
+ * Measures what compressing a large initial topology buys (bytes) and costs (CPU) for each codec and a few deflate
+ * levels. The numbers are logged so that compressionLevel and compressionThreshold can be tuned against them.
+ */
+public class CompressionMeasurementTest {
+    private static final Logger LOG = LoggerFactory.getLogger(CompressionMeasurementTest.class);
+
+    private static final int LOCATIONS = 20;
+    private static final int NODES_PER_LOCATION = 100;
+    private static final int ITERATIONS = 5;
+
+    @Test
+    public void measureSnapshotCompression() throws IOException {
+        byte[] tinyDelta = null;
+
+        for (Codec codec : Codec.values()) {
+            ObjectMapper mapper = codec.newMapper();
+            SimpleModule module = new SimpleModule();
+            module.addSerializer(TopologyEdge.class, new TopologyEdgeSerializer());
+            mapper.registerModule(module);
+
+            byte[] raw = mapper.writeValueAsBytes(StreamMessageKt.topologyMessage(generateTopology()));
+
+            for (int level : new int[]{1, 6, 9}) {
+                byte[] compressed = null;
+                long start = System.nanoTime();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    compressed = CompressedEnvelope.wrap(raw, level);
+                }
+                long compressMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) / ITERATIONS;
+
+                start = System.nanoTime();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    assertThat(CompressedEnvelope.unwrap(compressed).length, equalTo(raw.length));
+                }
+                long decompressMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) / ITERATIONS;
+
+                LOG.info(String.format("%-5s level %d: %,9d -> %,8d bytes (%4.1f%%), compress %,7d us, " +
+                                "decompress %,6d us", codec, level, raw.length, compressed.length,
+                        100.0 * compressed.length / raw.length, compressMicros, decompressMicros));
+
+                // The topology is highly repetitive so even the fastest level should do a lot better than half
+                assertThat(compressed.length, lessThan(raw.length / 2));
+            }
+
+            tinyDelta = mapper.writeValueAsBytes(StreamMessageKt.nodeMessage(node(1, "tiny")));
+        }
+
+        // Which is not true for small deltas, the reason for the threshold
+        byte[] compressedDelta = CompressedEnvelope.wrap(tinyDelta);
+        LOG.info(String.format("Single node delta: %,d -> %,d bytes", tinyDelta.length, compressedDelta.length));
+    }
+
+    private static Topology generateTopology() {
+        Set<Node> nodes = new HashSet<>();
+        Set<TopologyEdge> edges = new HashSet<>();
+
+        for (int location = 0; location < LOCATIONS; location++) {
+            Node previous = null;
+            for (int i = 0; i < NODES_PER_LOCATION; i++) {
+                Node node = node(location * NODES_PER_LOCATION + i, "location-" + location);
+                nodes.add(node);
+                if (previous != null) {
+                    edges.add(ImmutableTopologyEdge.newBuilder()
+                            .setId(previous.getId() + "-" + node.getId())
+                            .setProtocol(TopologyProtocol.LLDP)
+                            .setSource(previous)
+                            .setTarget(node)
+                            .build());
+                }
+                previous = node;
+            }
+        }
+
+        return new Topology(nodes, edges, null);
+    }
+
+    private static Node node(int id, String location) {
+        return ImmutableNode.newBuilder()
+                .setId(id)
+                .setForeignSource("measurement")
+                .setForeignId(Integer.toString(id))
+                .setLabel("node-" + id + ".example.org")
+                .setLocation(location)
+                .build();
+    }
+}
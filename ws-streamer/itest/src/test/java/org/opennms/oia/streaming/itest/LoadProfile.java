@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.oia.streaming.itest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.opennms.oia.streaming.model.Codec;
+
+/**
+ * The size of the network and the rate of change a {@link LoadTest} run is made with, read from system properties
+ * prefixed with {@code load.} so that a run can be scaled up from the command line, e.g.
+ * {@code mvn test -pl itest -Dtest=LoadTest -Dload.nodes=200000 -Dload.clients=20 -Dload.durationSeconds=60}.
+ *
+ * The defaults are small enough for the run to double as a smoke test in the regular build.
+ */
+public class LoadProfile {
+    /** Nodes in the network. */
+    public final int nodes = intProperty("nodes", 2000);
+    /** Edges each node attaches to the network with, as in the Barabási–Albert model. */
+    public final int edgesPerNode = intProperty("edgesPerNode", 2);
+    /** Locations the nodes are spread over. */
+    public final int locations = intProperty("locations", 10);
+    /** Concurrent clients subscribed to everything. */
+    public final int clients = intProperty("clients", 4);
+    public final int alarmsPerSecond = intProperty("alarmsPerSecond", 200);
+    public final int edgesPerSecond = intProperty("edgesPerSecond", 20);
+    public final int eventsPerSecond = intProperty("eventsPerSecond", 100);
+    /** How long the network is churned for once every client has its snapshot. */
+    public final int durationSeconds = intProperty("durationSeconds", 5);
+    public final Codec codec = Codec.valueOf(System.getProperty("load.codec", Codec.JSON.name()));
+    public final long seed = Long.getLong("load.seed", 42);
+    /** Where the report is written to. */
+    public final String report = System.getProperty("load.report", "target/load-report.json");
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("nodes", nodes);
+        map.put("edgesPerNode", edgesPerNode);
+        map.put("locations", locations);
+        map.put("clients", clients);
+        map.put("alarmsPerSecond", alarmsPerSecond);
+        map.put("edgesPerSecond", edgesPerSecond);
+        map.put("eventsPerSecond", eventsPerSecond);
+        map.put("durationSeconds", durationSeconds);
+        map.put("codec", codec);
+        map.put("seed", seed);
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+
+    private static int intProperty(String name, int defaultValue) {
+        return Integer.getInteger("load." + name, defaultValue);
+    }
+}
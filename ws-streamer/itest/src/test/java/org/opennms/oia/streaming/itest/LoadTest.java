@@ -0,0 +1,285 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.oia.streaming.itest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import edu.uci.ics.jung.graph.Graph;
+import org.junit.jupiter.api.Test;
+import org.opennms.oia.streaming.OiaWebSocketServer;
+import org.opennms.oia.streaming.StageMetrics;
+import org.opennms.oia.streaming.client.WebSocketConsumerService;
+import org.opennms.oia.streaming.client.api.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.SocketUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.awaitility.Awaitility.await;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Drives a {@link SimulatedNetwork} through a real server to a number of concurrent clients and reports how long
+ * alarms take to get from being raised to being handed to the clients' consumers, what gets through per second and
+ * how much heap the server and the clients take up. See {@link LoadProfile} for how to size a run.
+ *
+ * The report is logged and written as JSON to {@link LoadProfile#report}.
+ *
+ * Server and clients share the JVM, so their heap is told apart by when it was taken: the server's is what seeding it
+ * with the network added, the clients' is what subscribing them and sending them their snapshot added on top (which
+ * includes what the server keeps per session). Both are measured after a GC and are estimates.
+ */
+public class LoadTest {
+    private static final Logger LOG = LoggerFactory.getLogger(LoadTest.class);
+
+    private static final String LATENCY_PREFIX = "load:";
+    private static final long TICK_MS = 10;
+
+    private final LoadProfile profile = new LoadProfile();
+
+    private final LatencyRecorder alarmLatency = new LatencyRecorder();
+    private final AtomicLong alarmsReceived = new AtomicLong();
+    private final AtomicLong edgesReceived = new AtomicLong();
+    private final AtomicLong eventsReceived = new AtomicLong();
+    private final AtomicInteger incompleteSnapshots = new AtomicInteger();
+
+    @Test
+    public void measureEndToEnd() throws Exception {
+        LOG.info("Running load test with {}", profile);
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("profile", profile.toMap());
+
+        long baselineHeap = usedHeap();
+        SimulatedNetwork network = new SimulatedNetwork(profile);
+        long networkHeap = usedHeap();
+
+        int port = SocketUtils.findAvailableTcpPort();
+        OiaWebSocketServer server = new OiaWebSocketServer(port, network.alarmDao(), network.nodeDao(),
+                network.edgeDao(), network.eventSubscriptionService());
+        server.init();
+        long serverHeap = usedHeap();
+
+        List<WebSocketConsumerService> clients = new ArrayList<>();
+        ScheduledExecutorService churn = Executors.newSingleThreadScheduledExecutor();
+        try {
+            CountDownLatch snapshots = new CountDownLatch(profile.clients);
+            long snapshotStart = System.nanoTime();
+            for (int i = 0; i < profile.clients; i++) {
+                WebSocketConsumerService client = new WebSocketConsumerService("ws://localhost:" + port,
+                        profile.codec);
+                client.accept(new MeasuringConsumer(network.nodeCount(), snapshots));
+                clients.add(client);
+                client.start();
+            }
+
+            // Generous, the snapshot of a large network takes a while to generate and apply
+            long snapshotTimeout = Math.max(30, profile.nodes / 1000);
+            assertThat("Every client should receive its snapshot",
+                    snapshots.await(snapshotTimeout, TimeUnit.SECONDS), is(true));
+            long snapshotMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - snapshotStart);
+            long clientsHeap = usedHeap();
+
+            // Churned at a steady rate from a single thread, a few changes per tick
+            Counter alarms = new Counter(profile.alarmsPerSecond);
+            Counter edges = new Counter(profile.edgesPerSecond);
+            Counter events = new Counter(profile.eventsPerSecond);
+            long churnStart = System.nanoTime();
+            churn.scheduleAtFixedRate(() -> {
+                try {
+                    alarms.tick(() -> network.nextAlarm(server, LATENCY_PREFIX + System.nanoTime()));
+                    edges.tick(() -> network.nextEdge(server));
+                    events.tick(network::nextEvent);
+                } catch (Exception e) {
+                    LOG.warn("Failed to churn the network", e);
+                }
+            }, 0, TICK_MS, TimeUnit.MILLISECONDS);
+
+            Thread.sleep(TimeUnit.SECONDS.toMillis(profile.durationSeconds));
+            churn.shutdown();
+            churn.awaitTermination(10, TimeUnit.SECONDS);
+            double churnSeconds = (System.nanoTime() - churnStart) / 1e9;
+
+            // Let whatever is still in flight arrive, until nothing has for a while
+            awaitQuiet();
+            double elapsedSeconds = (System.nanoTime() - churnStart) / 1e9;
+
+            Map<String, Object> published = new LinkedHashMap<>();
+            published.put("alarms", alarms.count);
+            published.put("edges", edges.count);
+            published.put("events", events.count);
+            published.put("perSecond", (alarms.count + edges.count + events.count) / churnSeconds);
+            report.put("published", published);
+
+            // Across all clients, alarm updates and edges can be coalesced and events summarized on the way
+            Map<String, Object> received = new LinkedHashMap<>();
+            received.put("alarms", alarmsReceived.get());
+            received.put("edges", edgesReceived.get());
+            received.put("events", eventsReceived.get());
+            received.put("perSecond", (alarmsReceived.get() + edgesReceived.get() + eventsReceived.get())
+                    / elapsedSeconds);
+            report.put("received", received);
+
+            report.put("alarmLatencyMillis", alarmLatency.summary());
+            report.put("snapshotMillis", snapshotMillis);
+
+            Map<String, Object> heap = new LinkedHashMap<>();
+            heap.put("networkBytes", networkHeap - baselineHeap);
+            heap.put("serverBytes", serverHeap - networkHeap);
+            heap.put("bytesPerClient", (clientsHeap - serverHeap) / profile.clients);
+            heap.put("serverNodeTrackingBytes", server.getNodeTrackingHeapBytes());
+            report.put("heap", heap);
+
+            Map<String, Object> stages = new LinkedHashMap<>();
+            for (StageMetrics stage : server.getStageMetrics()) {
+                Map<String, Object> metrics = new LinkedHashMap<>();
+                metrics.put("processed", stage.getProcessed());
+                metrics.put("meanLatencyMicros", stage.getMeanLatencyMicros());
+                metrics.put("p99LatencyMicros", stage.getP99LatencyMicros());
+                metrics.put("maxLatencyMicros", stage.getMaxLatencyMicros());
+                stages.put(stage.getName(), metrics);
+            }
+            report.put("serverStages", stages);
+
+            writeReport(report);
+
+            assertEquals("Every snapshot should hold the whole network", 0, incompleteSnapshots.get());
+            assertThat(alarmLatency.count(), greaterThan(0));
+        } finally {
+            churn.shutdownNow();
+            clients.forEach(WebSocketConsumerService::stop);
+            server.destroy();
+        }
+    }
+
+    private void awaitQuiet() {
+        AtomicLong last = new AtomicLong(-1);
+        await().atMost(60, TimeUnit.SECONDS).pollInterval(500, TimeUnit.MILLISECONDS).until(() -> {
+            long now = alarmsReceived.get() + edgesReceived.get() + eventsReceived.get();
+            return last.getAndSet(now) == now;
+        });
+    }
+
+    private void writeReport(Map<String, Object> report) throws IOException {
+        ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+        File file = new File(profile.report);
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        mapper.writeValue(file, report);
+        LOG.info("Load test report written to {}:\n{}", file.getAbsolutePath(), mapper.writeValueAsString(report));
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Spreads a per second rate over the ticks, carrying over the fractions.
+     */
+    private static class Counter {
+        private final double perTick;
+        private double owed;
+        long count;
+
+        Counter(int perSecond) {
+            perTick = perSecond * TICK_MS / 1000.0;
+        }
+
+        void tick(Runnable change) {
+            owed += perTick;
+            while (owed >= 1) {
+                change.run();
+                owed--;
+                count++;
+            }
+        }
+    }
+
+    private class MeasuringConsumer extends NoOpConsumer {
+        private final int expectedVertices;
+        private final CountDownLatch snapshots;
+
+        MeasuringConsumer(int expectedVertices, CountDownLatch snapshots) {
+            this.expectedVertices = expectedVertices;
+            this.snapshots = snapshots;
+        }
+
+        @Override
+        public void accept(Graph<Vertex, Edge> graph, Collection<Alarm> alarms, Collection<Situation> situations) {
+            if (graph.getVertexCount() != expectedVertices) {
+                LOG.warn("Received snapshot with {} vertices instead of {}", graph.getVertexCount(), expectedVertices);
+                incompleteSnapshots.incrementAndGet();
+            }
+            snapshots.countDown();
+        }
+
+        @Override
+        public void acceptAlarm(Alarm alarm) {
+            long now = System.nanoTime();
+            alarmsReceived.incrementAndGet();
+            String description = alarm.getDescription();
+            if (description != null && description.startsWith(LATENCY_PREFIX)) {
+                alarmLatency.record(now - Long.parseLong(description.substring(LATENCY_PREFIX.length())));
+            }
+        }
+
+        @Override
+        public void acceptEdge(Edge e) {
+            edgesReceived.incrementAndGet();
+        }
+
+        @Override
+        public void acceptDeletedEdge(String edgeId) {
+            edgesReceived.incrementAndGet();
+        }
+
+        @Override
+        public void acceptEvent(Event e) {
+            eventsReceived.incrementAndGet();
+        }
+
+        @Override
+        public void acceptEventSummary(EventSummary summary) {
+            eventsReceived.addAndGet(summary.getCountsByUEI().values().stream().mapToInt(Integer::intValue).sum());
+        }
+    }
+}
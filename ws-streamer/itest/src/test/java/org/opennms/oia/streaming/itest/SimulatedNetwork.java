@@ -0,0 +1,337 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2020 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2020 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.oia.streaming.itest;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+import org.opennms.integration.api.v1.alarms.AlarmLifecycleListener;
+import org.opennms.integration.api.v1.dao.AlarmDao;
+import org.opennms.integration.api.v1.dao.EdgeDao;
+import org.opennms.integration.api.v1.dao.NodeDao;
+import org.opennms.integration.api.v1.events.EventListener;
+import org.opennms.integration.api.v1.events.EventSubscriptionService;
+import org.opennms.integration.api.v1.model.Alarm;
+import org.opennms.integration.api.v1.model.InMemoryEvent;
+import org.opennms.integration.api.v1.model.Node;
+import org.opennms.integration.api.v1.model.Severity;
+import org.opennms.integration.api.v1.model.TopologyEdge;
+import org.opennms.integration.api.v1.model.TopologyProtocol;
+import org.opennms.integration.api.v1.model.immutables.ImmutableAlarm;
+import org.opennms.integration.api.v1.model.immutables.ImmutableInMemoryEvent;
+import org.opennms.integration.api.v1.model.immutables.ImmutableNode;
+import org.opennms.integration.api.v1.model.immutables.ImmutableTopologyEdge;
+import org.opennms.integration.api.v1.topology.TopologyEdgeConsumer;
+
+/**
+ * An in-memory network standing in for OpenNMS, with the DAOs and the event subscription service reading from it.
+ *
+ * The nodes are connected as a scale-free graph grown by preferential attachment (Barabási–Albert): each node attaches
+ * to {@link LoadProfile#edgesPerNode} of the nodes before it, picked in proportion to how many edges they already have,
+ * which gives a few highly connected hubs and a long tail like real networks.
+ *
+ * The network is then churned by the {@code next*} methods, which change it and hand the change to the given listener
+ * the way OpenNMS would. Only ever churned from one thread.
+ */
+public class SimulatedNetwork {
+    private static final Severity[] SEVERITIES = {Severity.NORMAL, Severity.WARNING, Severity.MINOR, Severity.MAJOR,
+            Severity.CRITICAL};
+    private static final String UEI_PREFIX = "uei.opennms.org/load/";
+
+    private final Random random;
+    private final List<Node> nodes = new ArrayList<>();
+    private final Map<String, TopologyEdge> edges = new ConcurrentHashMap<>();
+    private final Map<Integer, Alarm> alarms = new ConcurrentHashMap<>();
+    private final List<EventListener> eventListeners = new CopyOnWriteArrayList<>();
+
+    // Every edge contributes both its endpoints, so picking from here picks nodes in proportion to their degree
+    private final List<Node> endpoints = new ArrayList<>();
+    private final List<String> edgeIds = new ArrayList<>();
+    private int nextAlarmId = 1;
+
+    public SimulatedNetwork(LoadProfile profile) {
+        random = new Random(profile.seed);
+
+        for (int id = 1; id <= profile.nodes; id++) {
+            Node node = ImmutableNode.newBuilder()
+                    .setId(id)
+                    .setForeignSource("load")
+                    .setForeignId(Integer.toString(id))
+                    .setLabel("node-" + id + ".example.org")
+                    .setLocation("location-" + id % profile.locations)
+                    .build();
+
+            Set<Node> targets = new HashSet<>();
+            int attachments = Math.min(profile.edgesPerNode, nodes.size());
+            while (targets.size() < attachments) {
+                targets.add(endpoints.isEmpty() ? nodes.get(random.nextInt(nodes.size()))
+                        : endpoints.get(random.nextInt(endpoints.size())));
+            }
+
+            nodes.add(node);
+            targets.forEach(target -> putEdge(node, target));
+        }
+    }
+
+    public int nodeCount() {
+        return nodes.size();
+    }
+
+    public int edgeCount() {
+        return edges.size();
+    }
+
+    /**
+     * Raises an alarm on a random node or updates one already raised, with a new severity.
+     *
+     * @param description carried along to the clients, e.g. to tell when the alarm was raised
+     */
+    public void nextAlarm(AlarmLifecycleListener listener, String description) {
+        Alarm previous = alarms.isEmpty() || random.nextInt(4) == 0 ? null
+                : alarms.get(1 + random.nextInt(nextAlarmId - 1));
+
+        int id = previous != null ? previous.getId() : nextAlarmId++;
+        Node node = previous != null ? previous.getNode() : randomNode();
+        Alarm alarm = ImmutableAlarm.newBuilder()
+                .setId(id)
+                .setReductionKey(UEI_PREFIX + "alarm::" + node.getId() + ":" + id)
+                .setNode(node)
+                .setSeverity(SEVERITIES[random.nextInt(SEVERITIES.length)])
+                .setDescription(description)
+                .setLastEventTime(new Date())
+                .build();
+        alarms.put(id, alarm);
+        listener.handleNewOrUpdatedAlarm(alarm);
+    }
+
+    /**
+     * Either adds an edge between two nodes picked by preferential attachment or removes a random one, keeping the
+     * number of edges about the same.
+     */
+    public void nextEdge(TopologyEdgeConsumer consumer) {
+        if (random.nextBoolean() && !edgeIds.isEmpty()) {
+            int i = random.nextInt(edgeIds.size());
+            String id = edgeIds.get(i);
+            // Swapped with the last one to remove it in constant time
+            edgeIds.set(i, edgeIds.get(edgeIds.size() - 1));
+            edgeIds.remove(edgeIds.size() - 1);
+            consumer.onEdgeDeleted(edges.remove(id));
+            return;
+        }
+
+        Node source = endpoints.get(random.nextInt(endpoints.size()));
+        Node target = randomNode();
+        if (source.getId().equals(target.getId())) {
+            return;
+        }
+        TopologyEdge edge = edges.get(edgeId(source, target));
+        // Either a new one or an update to one that is already there
+        consumer.onEdgeAddedOrUpdated(edge != null ? edge : putEdge(source, target));
+    }
+
+    /**
+     * Sends an event on a random node to the registered listeners.
+     */
+    public void nextEvent() {
+        InMemoryEvent event = ImmutableInMemoryEvent.newBuilder()
+                .setUei(UEI_PREFIX + "event" + random.nextInt(10))
+                .setSource("load")
+                .setNodeId(randomNode().getId())
+                .build();
+        eventListeners.forEach(listener -> listener.onEvent(event));
+    }
+
+    private Node randomNode() {
+        return nodes.get(random.nextInt(nodes.size()));
+    }
+
+    private TopologyEdge putEdge(Node source, Node target) {
+        TopologyEdge edge = ImmutableTopologyEdge.newBuilder()
+                .setId(edgeId(source, target))
+                .setProtocol(TopologyProtocol.LLDP)
+                .setSource(source)
+                .setTarget(target)
+                .build();
+        edges.put(edge.getId(), edge);
+        edgeIds.add(edge.getId());
+        endpoints.add(source);
+        endpoints.add(target);
+        return edge;
+    }
+
+    private static String edgeId(Node source, Node target) {
+        return source.getId() + "-" + target.getId();
+    }
+
+    public AlarmDao alarmDao() {
+        return new AlarmDao() {
+            @Override
+            public Long getAlarmCount() {
+                return (long) alarms.size();
+            }
+
+            @Override
+            public List<Alarm> getAlarms() {
+                return new ArrayList<>(alarms.values());
+            }
+        };
+    }
+
+    public NodeDao nodeDao() {
+        return new NodeDao() {
+            @Override
+            public String getDefaultLocationName() {
+                return "Default";
+            }
+
+            @Override
+            public List<Node> getNodes() {
+                return Collections.unmodifiableList(nodes);
+            }
+
+            @Override
+            public Long getNodeCount() {
+                return (long) nodes.size();
+            }
+
+            @Override
+            public List<Integer> getNodeIds() {
+                return nodes.stream().map(Node::getId).collect(Collectors.toList());
+            }
+
+            @Override
+            public Node getNodeByCriteria(String criteria) {
+                return null;
+            }
+
+            @Override
+            public Node getNodeById(Integer id) {
+                return id != null && id >= 1 && id <= nodes.size() ? nodes.get(id - 1) : null;
+            }
+
+            @Override
+            public Node getNodeByLabel(String label) {
+                return nodes.stream().filter(n -> n.getLabel().equals(label)).findFirst().orElse(null);
+            }
+
+            @Override
+            public Node getNodeByForeignSourceAndForeignId(String foreignSource, String foreignId) {
+                return nodes.stream()
+                        .filter(n -> n.getForeignSource().equals(foreignSource) && n.getForeignId().equals(foreignId))
+                        .findFirst().orElse(null);
+            }
+
+            @Override
+            public List<Node> getNodesInLocation(String location) {
+                return nodes.stream().filter(n -> n.getLocation().equals(location)).collect(Collectors.toList());
+            }
+
+            @Override
+            public List<Node> getNodesInForeignSource(String foreignSource) {
+                return nodes.stream().filter(n -> n.getForeignSource().equals(foreignSource))
+                        .collect(Collectors.toList());
+            }
+        };
+    }
+
+    public EdgeDao edgeDao() {
+        return new EdgeDao() {
+            @Override
+            public long getEdgeCount() {
+                return edges.size();
+            }
+
+            @Override
+            public long getEdgeCount(TopologyProtocol protocol) {
+                return getEdges(protocol).size();
+            }
+
+            @Override
+            public Set<TopologyEdge> getEdges() {
+                return new HashSet<>(edges.values());
+            }
+
+            @Override
+            public Set<TopologyEdge> getEdges(TopologyProtocol protocol) {
+                return edges.values().stream()
+                        .filter(e -> protocol == TopologyProtocol.ALL || e.getProtocol() == protocol)
+                        .collect(Collectors.toSet());
+            }
+
+            @Override
+            public Set<TopologyProtocol> getProtocols() {
+                return Collections.singleton(TopologyProtocol.LLDP);
+            }
+        };
+    }
+
+    /**
+     * Hands every event to every listener, whatever UEIs they subscribed to.
+     */
+    public EventSubscriptionService eventSubscriptionService() {
+        return new EventSubscriptionService() {
+            @Override
+            public void addEventListener(EventListener listener) {
+                eventListeners.add(listener);
+            }
+
+            @Override
+            public void addEventListener(EventListener listener, Collection<String> ueis) {
+                eventListeners.add(listener);
+            }
+
+            @Override
+            public void addEventListener(EventListener listener, String uei) {
+                eventListeners.add(listener);
+            }
+
+            @Override
+            public void removeEventListener(EventListener listener) {
+                eventListeners.remove(listener);
+            }
+
+            @Override
+            public void removeEventListener(EventListener listener, Collection<String> ueis) {
+                eventListeners.remove(listener);
+            }
+
+            @Override
+            public void removeEventListener(EventListener listener, String uei) {
+                eventListeners.remove(listener);
+            }
+
+            @Override
+            public boolean hasEventListener(String uei) {
+                return !eventListeners.isEmpty();
+            }
+        };
+    }
+}
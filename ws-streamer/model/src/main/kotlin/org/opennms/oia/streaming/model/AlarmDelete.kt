@@ -1,3 +1,6 @@
 package org.opennms.oia.streaming.model
 
-data class AlarmDelete(val reductionKey: String, val isSituation: Boolean)
\ No newline at end of file
+import com.fasterxml.jackson.annotation.JsonProperty
+
+// Jackson would otherwise write the "is" property as "situation" and then fail to read it back
+data class AlarmDelete(val reductionKey: String, @get:JsonProperty("isSituation") val isSituation: Boolean)
\ No newline at end of file
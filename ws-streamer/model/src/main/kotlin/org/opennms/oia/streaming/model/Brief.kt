@@ -0,0 +1,81 @@
+package org.opennms.oia.streaming.model
+
+import com.fasterxml.jackson.annotation.JsonInclude
+import org.opennms.integration.api.v1.model.Alarm
+import org.opennms.integration.api.v1.model.InMemoryEvent
+import org.opennms.integration.api.v1.model.Node
+import org.opennms.integration.api.v1.model.Severity
+import java.util.Date
+
+/**
+ * What clients render of an [Alarm], sent instead of the alarm to sessions that asked for briefs. The rest of it is
+ * fetched with a [RequestAction.DETAIL] request for the [reductionKey]. Alarms without an id or reduction key have no
+ * brief.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+data class AlarmBrief(
+    val id: Int,
+    val reductionKey: String,
+    val severity: Severity?,
+    val nodeId: Int?,
+    val lastEventTime: Date?
+) {
+    companion object {
+        fun of(alarm: Alarm): AlarmBrief? {
+            val id: Int? = alarm.id
+            val reductionKey: String? = alarm.reductionKey
+            if (id == null || reductionKey == null) {
+                return null
+            }
+            return AlarmBrief(id, reductionKey, alarm.severity, alarm.node?.id, alarm.lastEventTime)
+        }
+    }
+}
+
+/**
+ * What clients render of a [Node], see [AlarmBrief]. Its detail is fetched by its [id], nodes without one have no brief.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+data class NodeBrief(val id: Int, val label: String?, val location: String?) {
+    companion object {
+        fun of(node: Node): NodeBrief? {
+            val id: Int? = node.id
+            return id?.let { NodeBrief(it, node.label, node.location) }
+        }
+    }
+}
+
+/**
+ * What clients render of an [InMemoryEvent], see [AlarmBrief]. Events have no id of their own so they are given the
+ * sequence number of the message they were published in, which their detail is fetched by for as long as the server
+ * still has them.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+data class EventBrief(val id: Long, val uei: String, val nodeId: Int?, val severity: Severity?) {
+    companion object {
+        fun of(id: Long, event: InMemoryEvent): EventBrief? {
+            val uei: String? = event.uei
+            return uei?.let { EventBrief(id, it, event.nodeId, event.severity) }
+        }
+    }
+}
+
+enum class DetailType {
+    Alarm,
+    Node,
+    Event
+}
+
+/**
+ * The whole of the alarm, node or event with the given [type] and [id] (the reduction key of alarms), in reply to a
+ * [RequestAction.DETAIL] request. All of them are null when the server doesn't have it (any more) or the session isn't
+ * subscribed to it.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+data class Detail(
+    val type: DetailType? = null,
+    val id: String? = null,
+    val alarm: Alarm? = null,
+    val node: Node? = null,
+    val event: InMemoryEvent? = null
+)
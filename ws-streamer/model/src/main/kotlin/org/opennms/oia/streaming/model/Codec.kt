@@ -0,0 +1,35 @@
+package org.opennms.oia.streaming.model
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory
+import com.fasterxml.jackson.dataformat.smile.SmileFactory
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator
+import com.fasterxml.jackson.dataformat.smile.SmileParser
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import com.fasterxml.jackson.module.kotlin.registerKotlinModule
+
+/**
+ * The dataformat used for the messages on a stream, as negotiated by the subscriber. Requests are always JSON.
+ */
+enum class Codec {
+    JSON,
+    /**
+     * Smile without the header and shared string references, so that every encoded message stands on its own and can
+     * be spliced into a batch.
+     */
+    SMILE,
+    CBOR;
+
+    /**
+     * Creates a new mapper for this codec with the Kotlin module registered.
+     */
+    fun newMapper(): ObjectMapper = when (this) {
+        JSON -> jacksonObjectMapper()
+        SMILE -> ObjectMapper(SmileFactory()
+            .configure(SmileGenerator.Feature.WRITE_HEADER, false)
+            .configure(SmileGenerator.Feature.CHECK_SHARED_NAMES, false)
+            .configure(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES, false)
+            .configure(SmileParser.Feature.REQUIRE_HEADER, false)).registerKotlinModule()
+        CBOR -> ObjectMapper(CBORFactory()).registerKotlinModule()
+    }
+}
@@ -0,0 +1,43 @@
+package org.opennms.oia.streaming.model
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.util.zip.Deflater
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+
+/**
+ * The optional application level compressed envelope, a frame holding a GZIP stream of an encoded message (or batch).
+ *
+ * No codec starts a message with the GZIP magic so compressed frames can be told apart from plain ones by their first
+ * two bytes.
+ */
+object CompressedEnvelope {
+    private const val MAGIC_0 = 0x1f.toByte()
+    private const val MAGIC_1 = 0x8b.toByte()
+
+    @JvmStatic
+    @JvmOverloads
+    fun wrap(bytes: ByteArray, level: Int = Deflater.DEFAULT_COMPRESSION): ByteArray = wrap(bytes, 0, bytes.size, level)
+
+    @JvmStatic
+    fun wrap(bytes: ByteArray, offset: Int, length: Int, level: Int): ByteArray {
+        val out = ByteArrayOutputStream(length / 4)
+        object : GZIPOutputStream(out) {
+            init {
+                def.setLevel(level)
+            }
+        }.use { it.write(bytes, offset, length) }
+        return out.toByteArray()
+    }
+
+    @JvmStatic
+    @JvmOverloads
+    fun isWrapped(bytes: ByteArray, offset: Int = 0, length: Int = bytes.size - offset) =
+        length >= 2 && bytes[offset] == MAGIC_0 && bytes[offset + 1] == MAGIC_1
+
+    @JvmStatic
+    @JvmOverloads
+    fun unwrap(bytes: ByteArray, offset: Int = 0, length: Int = bytes.size - offset): ByteArray =
+        GZIPInputStream(ByteArrayInputStream(bytes, offset, length)).use { it.readBytes() }
+}
\ No newline at end of file
@@ -0,0 +1,10 @@
+package org.opennms.oia.streaming.model
+
+/**
+ * Stands in for the events of a node that is raising them faster than clients should be sent them one by one, with
+ * the number of events per UEI over a window.
+ *
+ * @param start the start of the window, in milliseconds since the epoch
+ * @param end the end of the window, in milliseconds since the epoch
+ */
+data class EventSummary(val nodeId: Int, val start: Long, val end: Long, val counts: Map<String, Int>)
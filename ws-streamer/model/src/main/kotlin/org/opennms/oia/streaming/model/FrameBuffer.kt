@@ -0,0 +1,54 @@
+package org.opennms.oia.streaming.model
+
+import java.io.OutputStream
+import java.nio.ByteBuffer
+
+/**
+ * An output stream into a heap [ByteBuffer] that is kept from one frame to the next, so that frames are encoded without
+ * allocating (and growing) a new buffer for each of them. [reset] rewinds it for the next frame.
+ */
+class FrameBuffer @JvmOverloads constructor(initialCapacity: Int = DEFAULT_CAPACITY) : OutputStream() {
+    private var buffer = ByteBuffer.allocate(initialCapacity)
+
+    val size: Int
+        get() = buffer.position()
+
+    val capacity: Int
+        get() = buffer.capacity()
+
+    override fun write(b: Int) {
+        ensureRemaining(1)
+        buffer.put(b.toByte())
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        ensureRemaining(len)
+        buffer.put(b, off, len)
+    }
+
+    fun reset() {
+        buffer.clear()
+    }
+
+    /**
+     * A copy of what was written, for keeping beyond the next [reset].
+     */
+    fun toByteArray(): ByteArray = buffer.array().copyOf(buffer.position())
+
+    /**
+     * What was written, without copying it. Only valid until the next write or [reset].
+     */
+    fun byteBuffer(): ByteBuffer = ByteBuffer.wrap(buffer.array(), 0, buffer.position())
+
+    private fun ensureRemaining(length: Int) {
+        if (buffer.remaining() < length) {
+            val grown = ByteBuffer.allocate(maxOf(buffer.capacity() * 2, buffer.position() + length))
+            grown.put(buffer.array(), 0, buffer.position())
+            buffer = grown
+        }
+    }
+
+    companion object {
+        const val DEFAULT_CAPACITY = 4096
+    }
+}
@@ -0,0 +1,3 @@
+package org.opennms.oia.streaming.model
+
+data class NodeDelete(val nodeId: Int)
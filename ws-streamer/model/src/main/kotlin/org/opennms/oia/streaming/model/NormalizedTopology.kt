@@ -0,0 +1,283 @@
+package org.opennms.oia.streaming.model
+
+import com.fasterxml.jackson.annotation.JsonInclude
+import org.opennms.integration.api.serializer.Projection
+import org.opennms.integration.api.v1.config.events.AlarmType
+import org.opennms.integration.api.v1.model.Alarm
+import org.opennms.integration.api.v1.model.DatabaseEvent
+import org.opennms.integration.api.v1.model.IpInterface
+import org.opennms.integration.api.v1.model.MetaData
+import org.opennms.integration.api.v1.model.Node
+import org.opennms.integration.api.v1.model.NodeAssetRecord
+import org.opennms.integration.api.v1.model.Severity
+import org.opennms.integration.api.v1.model.SnmpInterface
+import org.opennms.integration.api.v1.model.TopologyEdge
+import org.opennms.integration.api.v1.model.TopologyPort
+import org.opennms.integration.api.v1.model.TopologyProtocol
+import org.opennms.integration.api.v1.model.TopologySegment
+import org.opennms.integration.api.v1.model.immutables.ImmutableAlarm
+import org.opennms.integration.api.v1.model.immutables.ImmutableNode
+import org.opennms.integration.api.v1.model.immutables.ImmutableTopologyEdge
+import java.util.Date
+
+/**
+ * A chunk of a topology snapshot with every node written once and referred to by its id from the edges and alarms, the
+ * alarms related to situations referred to by their id as well and the strings that repeat across nodes and alarms
+ * (locations, foreign sources and managed object types) written once to a symbol table and referred to by their index.
+ *
+ * The tables carry over from one chunk of a snapshot to the next, so a chunk only holds the entries the chunks before
+ * it didn't. See [TopologyNormalizer] and [TopologyDenormalizer].
+ *
+ * Every property of these classes has a default so that they are read through their no-arg constructors, the Kotlin
+ * module's reflective constructor calls would cost more than reading the tables saves.
+ *
+ * @param strings the strings added to the symbol table, their indexes following on from those of the earlier chunks
+ * @param nodes the nodes of the topology
+ * @param referencedNodes the nodes the edges and alarms refer to that aren't part of the topology themselves
+ * @param relatedAlarms the alarms related to situations that aren't part of the topology themselves
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+data class NormalizedTopology(
+    val strings: List<String>? = null,
+    val nodes: List<NormalizedNode>? = null,
+    val referencedNodes: List<NormalizedNode>? = null,
+    val edges: List<NormalizedEdge>? = null,
+    val alarms: List<NormalizedAlarm>? = null,
+    val relatedAlarms: List<NormalizedAlarm>? = null
+)
+
+/**
+ * A [Node] with its location and foreign source referring to the symbol table.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+data class NormalizedNode(
+    val id: Int = 0,
+    val label: String? = null,
+    val location: Int? = null,
+    val foreignSource: Int? = null,
+    val foreignId: String? = null,
+    val assetRecord: NodeAssetRecord? = null,
+    val ipInterfaces: List<IpInterface>? = null,
+    val snmpInterfaces: List<SnmpInterface>? = null,
+    val metaData: List<MetaData>? = null
+)
+
+/**
+ * A [TopologyEdge] with its node endpoints referred to by id. Each end has either a node, a port or a segment.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+data class NormalizedEdge(
+    val id: String? = null,
+    val protocol: TopologyProtocol? = null,
+    val tooltipText: String? = null,
+    val sourceNode: Int? = null,
+    val sourcePort: TopologyPort? = null,
+    val sourceSegment: TopologySegment? = null,
+    val targetNode: Int? = null,
+    val targetPort: TopologyPort? = null,
+    val targetSegment: TopologySegment? = null
+)
+
+/**
+ * An [Alarm] with its node and related alarms referred to by id and its managed object type referring to the symbol
+ * table.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+data class NormalizedAlarm(
+    val id: Int? = null,
+    val reductionKey: String? = null,
+    val node: Int? = null,
+    val type: AlarmType? = null,
+    val managedObjectInstance: String? = null,
+    val managedObjectType: Int? = null,
+    val attributes: Map<String, String>? = null,
+    val severity: Severity? = null,
+    val relatedAlarms: List<Int>? = null,
+    val logMessage: String? = null,
+    val description: String? = null,
+    val lastEventTime: Date? = null,
+    val firstEventTime: Date? = null,
+    val lastEvent: DatabaseEvent? = null
+)
+
+/**
+ * Normalizes the chunks of one snapshot, in the order they are sent, keeping track of what the earlier chunks already
+ * put in the tables.
+ *
+ * @param projection the optional fields of the nodes and alarms to keep, as for the serializers of the OIA model
+ */
+class TopologyNormalizer(projection: Projection = Projection.ALL) {
+    private val assetRecord = projection.includes("Node.assetRecord")
+    private val ipInterfaces = projection.includes("Node.ipInterfaces")
+    private val snmpInterfaces = projection.includes("Node.snmpInterfaces")
+    private val metaData = projection.includes("Node.metaData")
+    private val alarmType = projection.includes("Alarm.type")
+    private val managedObjectInstance = projection.includes("Alarm.managedObjectInstance")
+    private val managedObjectType = projection.includes("Alarm.managedObjectType")
+    private val attributes = projection.includes("Alarm.attributes")
+    private val lastEvent = projection.includes("Alarm.lastEvent")
+
+    private val symbols = HashMap<String, Int>()
+    private val sentNodes = HashSet<Int>()
+    private val sentAlarms = HashSet<Int>()
+
+    fun normalize(chunk: Topology): NormalizedTopology {
+        val strings = ArrayList<String>()
+        val referencedNodes = ArrayList<NormalizedNode>()
+        val relatedAlarms = ArrayList<NormalizedAlarm>()
+
+        fun symbol(string: String?): Int? = string?.let {
+            symbols.getOrPut(it) {
+                strings.add(it)
+                symbols.size
+            }
+        }
+
+        fun normalize(node: Node) = NormalizedNode(node.id, node.label, symbol(node.location),
+            symbol(node.foreignSource), node.foreignId,
+            node.assetRecord.takeIf { assetRecord },
+            node.ipInterfaces?.takeIf { ipInterfaces && it.isNotEmpty() },
+            node.snmpInterfaces?.takeIf { snmpInterfaces && it.isNotEmpty() },
+            node.metaData?.takeIf { metaData && it.isNotEmpty() })
+
+        fun reference(node: Node?): Int? = node?.id?.also { id ->
+            if (sentNodes.add(id)) referencedNodes.add(normalize(node))
+        }
+
+        fun normalize(alarm: Alarm): NormalizedAlarm {
+            val related = alarm.relatedAlarms?.mapNotNull { related ->
+                related.id?.also { id -> if (sentAlarms.add(id)) relatedAlarms.add(normalize(related)) }
+            }
+            return NormalizedAlarm(alarm.id, alarm.reductionKey, reference(alarm.node),
+                alarm.type.takeIf { alarmType },
+                alarm.managedObjectInstance.takeIf { managedObjectInstance },
+                if (managedObjectType) symbol(alarm.managedObjectType) else null,
+                alarm.attributes?.takeIf { attributes && it.isNotEmpty() }, alarm.severity,
+                related?.takeIf { it.isNotEmpty() }, alarm.logMessage, alarm.description, alarm.lastEventTime,
+                alarm.firstEventTime, alarm.lastEvent.takeIf { lastEvent })
+        }
+
+        fun normalize(edge: TopologyEdge): NormalizedEdge {
+            var normalized = NormalizedEdge(edge.id, edge.protocol, edge.tooltipText)
+            edge.visitEndpoints(object : TopologyEdge.EndpointVisitor {
+                override fun visitSource(node: Node) {
+                    normalized = normalized.copy(sourceNode = reference(node))
+                }
+
+                override fun visitSource(port: TopologyPort) {
+                    normalized = normalized.copy(sourcePort = port)
+                }
+
+                override fun visitSource(segment: TopologySegment) {
+                    normalized = normalized.copy(sourceSegment = segment)
+                }
+
+                override fun visitTarget(node: Node) {
+                    normalized = normalized.copy(targetNode = reference(node))
+                }
+
+                override fun visitTarget(port: TopologyPort) {
+                    normalized = normalized.copy(targetPort = port)
+                }
+
+                override fun visitTarget(segment: TopologySegment) {
+                    normalized = normalized.copy(targetSegment = segment)
+                }
+            })
+            return normalized
+        }
+
+        // The chunk's own nodes and alarms are written in full, there is no need to add them to the tables again
+        chunk.nodes?.forEach { sentNodes.add(it.id) }
+        chunk.alarms?.forEach { alarm -> alarm.id?.let { sentAlarms.add(it) } }
+
+        val nodes = chunk.nodes?.map { normalize(it) }
+        val edges = chunk.edges?.map { normalize(it) }
+        val alarms = chunk.alarms?.map { normalize(it) }
+        return NormalizedTopology(
+            strings = if (strings.isNotEmpty()) strings else null,
+            nodes = nodes,
+            referencedNodes = if (referencedNodes.isNotEmpty()) referencedNodes else null,
+            edges = edges,
+            alarms = alarms,
+            relatedAlarms = if (relatedAlarms.isNotEmpty()) relatedAlarms else null
+        )
+    }
+}
+
+/**
+ * Turns the chunks of one snapshot back into [Topology]s of the OIA immutables, in the order they were sent.
+ */
+class TopologyDenormalizer {
+    private val strings = ArrayList<String>()
+    private val nodes = HashMap<Int, Node>()
+    private val alarms = HashMap<Int, NormalizedAlarm>()
+
+    fun denormalize(chunk: NormalizedTopology): Topology {
+        chunk.strings?.let { strings.addAll(it) }
+        chunk.nodes?.forEach { nodes[it.id] = denormalize(it) }
+        chunk.referencedNodes?.forEach { nodes[it.id] = denormalize(it) }
+        // Situations can come ahead of the alarms they relate in the same chunk
+        chunk.alarms?.forEach { alarm -> alarm.id?.let { alarms[it] = alarm } }
+        chunk.relatedAlarms?.forEach { alarm -> alarm.id?.let { alarms[it] = alarm } }
+
+        return Topology(
+            nodes = chunk.nodes?.mapTo(LinkedHashSet()) { nodes.getValue(it.id) },
+            edges = chunk.edges?.mapTo(LinkedHashSet()) { denormalize(it) },
+            alarms = chunk.alarms?.mapTo(LinkedHashSet()) { denormalize(it) }
+        )
+    }
+
+    private fun symbol(index: Int?) = index?.let { strings[it] }
+
+    private fun node(id: Int) = nodes[id] ?: throw IllegalArgumentException("Unknown node '$id'")
+
+    private fun denormalize(node: NormalizedNode): Node = ImmutableNode.newBuilder()
+        .setId(node.id)
+        .setLabel(node.label)
+        .setLocation(symbol(node.location))
+        .setForeignSource(symbol(node.foreignSource))
+        .setForeignId(node.foreignId)
+        .setAssetRecord(node.assetRecord)
+        .setIpInterfaces(node.ipInterfaces)
+        .setSnmpInterfaces(node.snmpInterfaces)
+        .setMetaData(node.metaData)
+        .build()
+
+    private fun denormalize(edge: NormalizedEdge): TopologyEdge {
+        val builder = ImmutableTopologyEdge.newBuilder()
+            .setId(edge.id)
+            .setProtocol(edge.protocol)
+            .setTooltipText(edge.tooltipText)
+        when {
+            edge.sourceNode != null -> builder.setSource(node(edge.sourceNode))
+            edge.sourcePort != null -> builder.setSource(edge.sourcePort)
+            edge.sourceSegment != null -> builder.setSource(edge.sourceSegment)
+        }
+        when {
+            edge.targetNode != null -> builder.setTarget(node(edge.targetNode))
+            edge.targetPort != null -> builder.setTarget(edge.targetPort)
+            edge.targetSegment != null -> builder.setTarget(edge.targetSegment)
+        }
+        return builder.build()
+    }
+
+    private fun denormalize(alarm: NormalizedAlarm): Alarm = ImmutableAlarm.newBuilder()
+        .setId(alarm.id)
+        .setReductionKey(alarm.reductionKey)
+        .setNode(alarm.node?.let { node(it) })
+        .setType(alarm.type)
+        .setManagedObjectInstance(alarm.managedObjectInstance)
+        .setManagedObjectType(symbol(alarm.managedObjectType))
+        .setAttributes(alarm.attributes)
+        .setSeverity(alarm.severity)
+        .setRelatedAlarms(alarm.relatedAlarms?.map { id ->
+            denormalize(alarms[id] ?: throw IllegalArgumentException("Unknown related alarm '$id'"))
+        })
+        .setLogMessage(alarm.logMessage)
+        .setDescription(alarm.description)
+        .setLastEventTime(alarm.lastEventTime)
+        .setFirstEventTime(alarm.firstEventTime)
+        .setLastEvent(alarm.lastEvent)
+        .build()
+}
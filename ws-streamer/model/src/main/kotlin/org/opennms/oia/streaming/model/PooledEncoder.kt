@@ -0,0 +1,50 @@
+package org.opennms.oia.streaming.model
+
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.core.json.JsonGeneratorImpl
+import com.fasterxml.jackson.databind.ObjectMapper
+
+/**
+ * Encodes values the way [ObjectMapper.writeValueAsBytes] does, except that each thread keeps its generator and the
+ * [FrameBuffer] it writes into from one value to the next. Once the buffers have grown to fit the values, only the
+ * returned bytes are allocated.
+ *
+ * @param maxRetainedCapacity buffers that grew past this for a large value are let go of rather than kept
+ */
+class PooledEncoder @JvmOverloads constructor(
+    private val mapper: ObjectMapper,
+    private val maxRetainedCapacity: Int = DEFAULT_MAX_RETAINED_CAPACITY
+) {
+    private class State(val buffer: FrameBuffer, val generator: JsonGenerator)
+
+    private val states = ThreadLocal<State>()
+
+    fun encode(value: Any?): ByteArray {
+        val state = states.get() ?: newState()
+        var reusable = false
+        try {
+            mapper.writeValue(state.generator, value)
+            state.generator.flush()
+            val bytes = state.buffer.toByteArray()
+            reusable = state.buffer.capacity <= maxRetainedCapacity
+            return bytes
+        } finally {
+            // After a failure the generator may be left halfway through the value so it is started over
+            if (reusable) state.buffer.reset() else states.remove()
+        }
+    }
+
+    private fun newState(): State {
+        val buffer = FrameBuffer()
+        val generator = mapper.factory.createGenerator(buffer)
+        if (generator is JsonGeneratorImpl) {
+            // Values are written one after the other into the same generator, each on its own
+            generator.setRootValueSeparator(null)
+        }
+        return State(buffer, generator).also { states.set(it) }
+    }
+
+    companion object {
+        const val DEFAULT_MAX_RETAINED_CAPACITY = 64 * 1024
+    }
+}
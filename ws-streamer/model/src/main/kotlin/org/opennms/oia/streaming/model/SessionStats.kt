@@ -0,0 +1,23 @@
+package org.opennms.oia.streaming.model
+
+/**
+ * The numbers of a single session as the server sees them, sent in reply to a [RequestAction.STATS] request.
+ *
+ * @param queueDepth the messages waiting to be written to the session when the request was handled
+ * @param bytesSent the encoded size of the messages sent, before any compression
+ * @param messagesDropped the updates dropped because the session fell behind
+ * @param resyncs the snapshots sent in place of the updates the session fell too far behind on
+ * @param meanSendLatencyMicros how long messages took on average from being published to being handed to the socket
+ * @param messagesByType the messages sent per type, batches counted by what is in them
+ */
+data class SessionStats(
+    val queueDepth: Int,
+    val messagesSent: Long,
+    val bytesSent: Long,
+    val messagesDropped: Long,
+    val resyncs: Long,
+    val meanSendLatencyMicros: Double,
+    val p99SendLatencyMicros: Long,
+    val maxSendLatencyMicros: Long,
+    val messagesByType: Map<MessageType, Long>
+)
@@ -1,6 +1,8 @@
 package org.opennms.oia.streaming.model
 
+import com.fasterxml.jackson.annotation.JsonInclude
 import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize
 import com.fasterxml.jackson.module.kotlin.convertValue
 import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
 import org.opennms.integration.api.deserializer.oiaDeserializer
@@ -16,10 +18,57 @@ enum class MessageType {
     EdgeDelete,
     Event,
     Topology,
-    Node
+    Node,
+    /**
+     * An ordered list of deltas sent together in one frame, to be applied in order.
+     */
+    Batch,
+    /**
+     * A topology snapshot streamed as a [TopologyBegin], any number of chunks (each a partial [Topology]) and a
+     * [TopologyEnd]. Chunks can be applied as they arrive.
+     */
+    TopologyBegin,
+    TopologyChunk,
+    TopologyEnd,
+    /**
+     * An [EventSummary] sent instead of the events of a node raising too many of them.
+     */
+    EventSummary,
+    /**
+     * A [NodeDelete] for a node the subscriber is no longer sent, along with its edges.
+     */
+    NodeDelete,
+    /**
+     * The [SessionStats] of the session, in reply to a [RequestAction.STATS] request.
+     */
+    Stats,
+    /**
+     * A [TopologyChunk] in the [NormalizedTopology] encoding, sent instead to sessions that asked for it.
+     */
+    NormalizedTopologyChunk,
+    /**
+     * An [AlarmBrief], [NodeBrief] or [EventBrief] sent instead of the alarm, node or event to sessions that asked for
+     * briefs.
+     */
+    AlarmBrief,
+    NodeBrief,
+    EventBrief,
+    /**
+     * The [Detail] of an alarm, node or event, in reply to a [RequestAction.DETAIL] request.
+     */
+    Detail
 }
 
-data class StreamMessage(val type: MessageType, val payload: Any)
+/**
+ * @param seq the position of the message in the server's stream of deltas, increasing but not contiguous for a given
+ * session since sessions only receive the deltas they are subscribed to. Set on deltas and on [TopologyEnd], where it
+ * is the position the snapshot is current as of.
+ *
+ * When read the payload is deserialized to the type its [type] calls for right away, see [StreamMessageDeserializer].
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonDeserialize(using = StreamMessageDeserializer::class)
+data class StreamMessage @JvmOverloads constructor(val type: MessageType, val payload: Any, val seq: Long? = null)
 
 // Use these to generate a response
 fun alarmMessage(alarm: Alarm) = StreamMessage(MessageType.Alarm, alarm)
@@ -32,11 +81,52 @@ fun edgeDeleteMessage(edge: TopologyEdge) = StreamMessage(MessageType.EdgeDelete
 fun eventMessage(event: InMemoryEvent) = StreamMessage(MessageType.Event, event)
 fun topologyMessage(topology: Topology) = StreamMessage(MessageType.Topology, topology)
 fun nodeMessage(node: Node) = StreamMessage(MessageType.Node, node)
+fun batchMessage(messages: List<StreamMessage>) = StreamMessage(MessageType.Batch, messages)
+fun topologyBeginMessage(begin: TopologyBegin) = StreamMessage(MessageType.TopologyBegin, begin)
+fun topologyChunkMessage(chunk: Topology) = StreamMessage(MessageType.TopologyChunk, chunk)
+fun normalizedTopologyChunkMessage(chunk: NormalizedTopology) =
+    StreamMessage(MessageType.NormalizedTopologyChunk, chunk)
+fun topologyEndMessage(end: TopologyEnd) = StreamMessage(MessageType.TopologyEnd, end)
+fun eventSummaryMessage(summary: EventSummary) = StreamMessage(MessageType.EventSummary, summary)
+fun nodeDeleteMessage(nodeId: Int) = StreamMessage(MessageType.NodeDelete, NodeDelete(nodeId))
+fun statsMessage(stats: SessionStats) = StreamMessage(MessageType.Stats, stats)
+fun alarmBriefMessage(brief: AlarmBrief) = StreamMessage(MessageType.AlarmBrief, brief)
+fun nodeBriefMessage(brief: NodeBrief) = StreamMessage(MessageType.NodeBrief, brief)
+fun eventBriefMessage(brief: EventBrief) = StreamMessage(MessageType.EventBrief, brief)
+fun detailMessage(detail: Detail) = StreamMessage(MessageType.Detail, detail)
+
+/**
+ * The brief form of an alarm, node or event message with the same sequence number, or null if there is none. Situations
+ * are always sent whole since rendering them takes their related alarms, as are alarms, nodes and events missing what
+ * their brief identifies them by.
+ *
+ * Event briefs are identified by the sequence number, a brief taken before the message is stamped gets it when the
+ * brief is [stamped].
+ */
+fun StreamMessage.toBrief(): StreamMessage? = when (type) {
+    MessageType.Alarm ->
+        (payload as Alarm).takeIf { !it.isSituation }?.let { AlarmBrief.of(it) }?.let(::alarmBriefMessage)
+    MessageType.Node -> NodeBrief.of(payload as Node)?.let(::nodeBriefMessage)
+    MessageType.Event -> EventBrief.of(seq ?: 0, payload as InMemoryEvent)?.let(::eventBriefMessage)
+    else -> null
+}?.copy(seq = seq)
+
+/**
+ * The message with the given sequence number, which event briefs also take as the id of their event.
+ */
+fun StreamMessage.stamped(seq: Long): StreamMessage =
+    copy(seq = seq, payload = (payload as? EventBrief)?.copy(id = seq) ?: payload)
 
 val mapper: ObjectMapper by lazy { jacksonObjectMapper() }
 
+/**
+ * The payload as a [T], converted if the message was not read with its payload typed (e.g. built from a tree).
+ */
 inline fun <reified T> StreamMessage.deserializePayload(): T =
-    when (this.type) {
-        MessageType.AlarmDelete -> mapper.convertValue(this.payload)
+    if (this.payload is T) this.payload else when (this.type) {
+        MessageType.AlarmDelete, MessageType.Batch, MessageType.TopologyBegin, MessageType.TopologyEnd,
+        MessageType.EventSummary, MessageType.NodeDelete, MessageType.Stats, MessageType.AlarmBrief,
+        MessageType.NodeBrief, MessageType.EventBrief ->
+            mapper.convertValue(this.payload)
         else -> oiaDeserializer.convertValue(this.payload)
     }
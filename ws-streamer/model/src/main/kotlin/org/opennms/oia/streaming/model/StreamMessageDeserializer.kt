@@ -0,0 +1,90 @@
+package org.opennms.oia.streaming.model
+
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonToken
+import com.fasterxml.jackson.core.type.TypeReference
+import com.fasterxml.jackson.databind.DeserializationContext
+import com.fasterxml.jackson.databind.ObjectReader
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer
+import com.fasterxml.jackson.databind.util.TokenBuffer
+import org.opennms.integration.api.deserializer.oiaDeserializer
+import org.opennms.integration.api.v1.model.Alarm
+import org.opennms.integration.api.v1.model.InMemoryEvent
+import org.opennms.integration.api.v1.model.Node
+import org.opennms.integration.api.v1.model.TopologyEdge
+import java.util.EnumMap
+
+/**
+ * Reads a [StreamMessage] and its payload in a single pass, the payload straight into the type its [MessageType]
+ * calls for (the OIA immutables for the OIA model) instead of a tree of maps to be converted afterwards.
+ *
+ * The server always writes the type ahead of the payload. Should a payload come first anyway it is buffered until the
+ * type is known.
+ */
+internal class StreamMessageDeserializer : StdDeserializer<StreamMessage>(StreamMessage::class.java) {
+    override fun deserialize(p: JsonParser, ctxt: DeserializationContext): StreamMessage {
+        var type: MessageType? = null
+        var payload: Any? = null
+        var buffered: TokenBuffer? = null
+        var seq: Long? = null
+
+        var token = p.currentToken
+        if (token == JsonToken.START_OBJECT) {
+            token = p.nextToken()
+        }
+        while (token == JsonToken.FIELD_NAME) {
+            val field = p.currentName
+            p.nextToken()
+            when (field) {
+                "type" -> type = ctxt.readValue(p, MessageType::class.java)
+                "payload" -> if (type != null) {
+                    payload = readPayload(type, p)
+                } else {
+                    buffered = TokenBuffer(p, ctxt).apply { copyCurrentStructure(p) }
+                }
+                "seq" -> seq = if (p.currentToken == JsonToken.VALUE_NULL) null else p.longValue
+                else -> p.skipChildren()
+            }
+            token = p.nextToken()
+        }
+
+        if (type == null) {
+            return ctxt.reportInputMismatch(this, "Missing type of stream message")
+        }
+        if (buffered != null) {
+            payload = buffered.asParser(p.codec).use {
+                it.nextToken()
+                readPayload(type, it)
+            }
+        }
+        return StreamMessage(type, payload ?: ctxt.reportInputMismatch(this, "Missing payload of $type message"), seq)
+    }
+
+    private fun readPayload(type: MessageType, p: JsonParser): Any = readers.getValue(type).readValue(p)
+
+    companion object {
+        private val readers = EnumMap<MessageType, ObjectReader>(MessageType::class.java).apply {
+            MessageType.values().forEach { type ->
+                put(type, when (type) {
+                    MessageType.Alarm -> oiaDeserializer.readerFor(Alarm::class.java)
+                    MessageType.AlarmDelete -> mapper.readerFor(AlarmDelete::class.java)
+                    MessageType.Edge, MessageType.EdgeDelete -> oiaDeserializer.readerFor(TopologyEdge::class.java)
+                    MessageType.Event -> oiaDeserializer.readerFor(InMemoryEvent::class.java)
+                    MessageType.Topology, MessageType.TopologyChunk -> oiaDeserializer.readerFor(Topology::class.java)
+                    MessageType.Node -> oiaDeserializer.readerFor(Node::class.java)
+                    MessageType.Batch -> mapper.readerFor(object : TypeReference<List<StreamMessage>>() {})
+                    MessageType.TopologyBegin -> mapper.readerFor(TopologyBegin::class.java)
+                    MessageType.TopologyEnd -> mapper.readerFor(TopologyEnd::class.java)
+                    MessageType.EventSummary -> mapper.readerFor(EventSummary::class.java)
+                    MessageType.NodeDelete -> mapper.readerFor(NodeDelete::class.java)
+                    MessageType.Stats -> mapper.readerFor(SessionStats::class.java)
+                    MessageType.NormalizedTopologyChunk -> oiaDeserializer.readerFor(NormalizedTopology::class.java)
+                    MessageType.AlarmBrief -> mapper.readerFor(AlarmBrief::class.java)
+                    MessageType.NodeBrief -> mapper.readerFor(NodeBrief::class.java)
+                    MessageType.EventBrief -> mapper.readerFor(EventBrief::class.java)
+                    MessageType.Detail -> oiaDeserializer.readerFor(Detail::class.java)
+                })
+            }
+        }
+    }
+}
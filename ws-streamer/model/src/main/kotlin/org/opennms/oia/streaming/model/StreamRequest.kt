@@ -1,17 +1,112 @@
 package org.opennms.oia.streaming.model
 
 import com.fasterxml.jackson.annotation.JsonInclude
+import org.opennms.integration.api.v1.model.Severity
+import org.opennms.integration.api.v1.model.TopologyProtocol
 
 enum class RequestAction {
     SUBSCRIBE,
-    UNSUBSCRIBE
+    UNSUBSCRIBE,
+    /**
+     * Asks for the [SessionStats] of the session making the request, which has to be subscribed.
+     */
+    STATS,
+    /**
+     * Asks for the [Detail] of the alarm, node or event given by [StreamRequest.detailType] and
+     * [StreamRequest.detailId], which the session making the request has to be subscribed to.
+     */
+    DETAIL
 }
 
-data class FilterCriteria(val locations: Set<String>? = null)
+/**
+ * What the server should do when a subscriber falls behind and its outbound queue fills up.
+ */
+enum class OverflowPolicy {
+    /** Drop the oldest queued update. */
+    DROP_OLDEST,
+    /** Keep only the latest queued update for each alarm, node or edge. */
+    CONFLATE,
+    /** Close the connection. */
+    DISCONNECT
+}
+
+/**
+ * The kinds of vertex an edge can connect.
+ */
+enum class VertexType {
+    Node,
+    Port,
+    Segment
+}
 
+/**
+ * What a subscriber wants to be sent. Every dimension left null lets everything through, the ones that are set all have
+ * to match. Each dimension only applies to the messages it makes sense for, e.g. [minSeverity] doesn't keep nodes or
+ * edges from being sent.
+ */
 @JsonInclude(JsonInclude.Include.NON_NULL)
-data class StreamRequest(val action: RequestAction, val criteria: FilterCriteria? = null)
+data class FilterCriteria @JvmOverloads constructor(
+    /** The locations of the nodes, alarms and events, and of both ends of edges. */
+    val locations: Set<String>? = null,
+    /** The least severe alarms to send. Alarms falling below it are sent as deleted. */
+    val minSeverity: Severity? = null,
+    /** The foreign sources of the nodes, of the nodes alarms and events are on and of both ends of edges. */
+    val foreignSources: Set<String>? = null,
+    /** Prefixes of the UEIs of the events to send. */
+    val ueiPrefixes: Set<String>? = null,
+    /** The protocols of the edges to send. */
+    val edgeProtocols: Set<TopologyProtocol>? = null,
+    /** The kinds of vertex the edges sent can connect, on both ends. */
+    val vertexTypes: Set<VertexType>? = null,
+    /**
+     * The id of a node to only send the neighborhood of, i.e. the nodes within [hops] edges of it along with their
+     * edges, alarms and events. Nodes are added and removed as the neighborhood changes.
+     */
+    val focusNodeId: Int? = null,
+    /** How far the neighborhood of the [focusNodeId] reaches, 1 if not set. */
+    val hops: Int? = null
+)
+
+@JsonInclude(JsonInclude.Include.NON_NULL)
+data class StreamRequest(
+    val action: RequestAction,
+    val criteria: FilterCriteria? = null,
+    val overflowPolicy: OverflowPolicy? = null,
+    val codec: Codec? = null,
+    /**
+     * Whether large frames should be sent in the [CompressedEnvelope]. Ignored when the connection already negotiated
+     * permessage-deflate.
+     */
+    val compress: Boolean? = null,
+    /**
+     * The sequence number of the last message seen on a previous connection. The server replays what was missed since
+     * then instead of sending a snapshot if it still can.
+     */
+    val resumeFrom: Long? = null,
+    /**
+     * Whether the chunks of snapshots should be sent as [MessageType.NormalizedTopologyChunk]s.
+     */
+    val normalize: Boolean? = null,
+    /**
+     * Whether alarms, nodes and events should be sent as [AlarmBrief]s, [NodeBrief]s and [EventBrief]s, leaving the
+     * rest of them to [RequestAction.DETAIL] requests.
+     */
+    val brief: Boolean? = null,
+    val detailType: DetailType? = null,
+    val detailId: String? = null
+)
 
 // Use these to generate a request
-fun subscribeRequest(criteria: FilterCriteria? = null) = StreamRequest(RequestAction.SUBSCRIBE, criteria)
+fun subscribeRequest(
+    criteria: FilterCriteria? = null,
+    overflowPolicy: OverflowPolicy? = null,
+    codec: Codec? = null,
+    compress: Boolean? = null,
+    resumeFrom: Long? = null,
+    normalize: Boolean? = null,
+    brief: Boolean? = null
+) = StreamRequest(RequestAction.SUBSCRIBE, criteria, overflowPolicy, codec, compress, resumeFrom, normalize, brief)
+
 fun unsubscribeRequest(criteria: FilterCriteria? = null) = StreamRequest(RequestAction.UNSUBSCRIBE, criteria)
+fun statsRequest() = StreamRequest(RequestAction.STATS)
+fun detailRequest(type: DetailType, id: String) = StreamRequest(RequestAction.DETAIL, detailType = type, detailId = id)
@@ -10,4 +10,14 @@ data class Topology(
     val nodes: Set<Node>? = null,
     val edges: Set<TopologyEdge>? = null,
     val alarms: Set<Alarm>? = null
-)
\ No newline at end of file
+)
+
+/**
+ * Starts a topology snapshot that is streamed in chunks, with the size of the whole snapshot.
+ */
+data class TopologyBegin(val nodes: Int, val edges: Int, val alarms: Int)
+
+/**
+ * Ends a topology snapshot that was streamed in chunks.
+ */
+data class TopologyEnd(val chunks: Int)
\ No newline at end of file
@@ -0,0 +1,47 @@
+package org.opennms.oia.streaming
+
+/**
+ * The edges between nodes by the nodes they connect, so that the neighborhood of a node can be walked without going
+ * over every edge. Edges with a port or segment endpoint don't connect nodes and aren't indexed.
+ *
+ * Not thread safe, the [TopologyView] guards it along with the edges it is built from.
+ */
+internal class AdjacencyIndex {
+
+    // The edges of each node by key, along with the node at the other end
+    private val edgesByNode = HashMap<Int, HashMap<String, Int>>()
+
+    fun clear() = edgesByNode.clear()
+
+    fun add(key: String, sourceId: Int, targetId: Int) {
+        edgesByNode.getOrPut(sourceId) { HashMap() }[key] = targetId
+        edgesByNode.getOrPut(targetId) { HashMap() }[key] = sourceId
+    }
+
+    fun remove(key: String, sourceId: Int, targetId: Int) {
+        listOf(sourceId, targetId).forEach { nodeId ->
+            edgesByNode[nodeId]?.let { edges ->
+                edges.remove(key)
+                if (edges.isEmpty()) edgesByNode.remove(nodeId)
+            }
+        }
+    }
+
+    /**
+     * The keys of the edges connecting the node to others.
+     */
+    fun edges(nodeId: Int): Set<String> = edgesByNode[nodeId]?.keys ?: emptySet()
+
+    /**
+     * The ids of the nodes at most [hops] edges away from the given one, itself included.
+     */
+    fun neighborhood(nodeId: Int, hops: Int): Set<Int> {
+        val neighborhood = hashSetOf(nodeId)
+        var frontier = listOf(nodeId)
+        repeat(hops) {
+            frontier = frontier.flatMap { edgesByNode[it]?.values ?: emptyList<Int>() }.filter { neighborhood.add(it) }
+            if (frontier.isEmpty()) return neighborhood
+        }
+        return neighborhood
+    }
+}
@@ -0,0 +1,95 @@
+package org.opennms.oia.streaming
+
+import org.opennms.integration.api.serializer.Projection
+import org.opennms.integration.api.v1.model.Alarm
+import org.opennms.integration.api.v1.model.Node
+
+/**
+ * A 64 bit hash (FNV-1a) of the fields of an alarm that clients get to see, so that an update that doesn't change any
+ * of them can be told apart without holding on to the previous alarm or comparing whole alarms, which deep compares
+ * the node and related alarms.
+ *
+ * The fields are the ones the alarm serializer writes for the given [projection], the optional ones only when they are
+ * included. Those that are objects of their own are hashed by their hash code, which the OIA immutables derive from
+ * their values.
+ */
+internal class AlarmFingerprint(projection: Projection) {
+    private val type = projection.includes("Alarm.type")
+    private val managedObjectInstance = projection.includes("Alarm.managedObjectInstance")
+    private val managedObjectType = projection.includes("Alarm.managedObjectType")
+    private val attributes = projection.includes("Alarm.attributes")
+    private val lastEvent = projection.includes("Alarm.lastEvent")
+    private val assetRecord = projection.includes("Node.assetRecord")
+    private val ipInterfaces = projection.includes("Node.ipInterfaces")
+    private val snmpInterfaces = projection.includes("Node.snmpInterfaces")
+    private val metaData = projection.includes("Node.metaData")
+
+    fun of(alarm: Alarm): Long = fingerprint(OFFSET_BASIS, alarm)
+
+    private fun fingerprint(initial: Long, alarm: Alarm): Long {
+        var hash = initial
+        hash = mix(hash, alarm.id?.toLong())
+        hash = mix(hash, alarm.reductionKey)
+        hash = fingerprint(hash, alarm.node)
+        hash = mix(hash, alarm.severity?.ordinal?.toLong())
+        hash = mix(hash, if (alarm.isSituation) 1L else 0L)
+        if (type) hash = mix(hash, alarm.type?.ordinal?.toLong())
+        if (managedObjectInstance) hash = mix(hash, alarm.managedObjectInstance)
+        if (managedObjectType) hash = mix(hash, alarm.managedObjectType)
+        if (attributes) hash = mix(hash, alarm.attributes)
+        hash = mix(hash, alarm.description)
+        hash = mix(hash, alarm.logMessage)
+        hash = mix(hash, alarm.lastEventTime?.time)
+        hash = mix(hash, alarm.firstEventTime?.time)
+        if (lastEvent) hash = mix(hash, alarm.lastEvent)
+
+        alarm.relatedAlarms?.forEach { hash = fingerprint(hash, it) }
+        return hash
+    }
+
+    private fun fingerprint(initial: Long, node: Node?): Long {
+        if (node == null) {
+            return mix(initial, null as Long?)
+        }
+
+        var hash = initial
+        hash = mix(hash, node.id?.toLong())
+        hash = mix(hash, node.foreignSource)
+        hash = mix(hash, node.foreignId)
+        hash = mix(hash, node.label)
+        // The location also decides who receives the alarm
+        hash = mix(hash, node.location)
+        if (assetRecord) hash = mix(hash, node.assetRecord)
+        if (ipInterfaces) hash = mix(hash, node.ipInterfaces)
+        if (snmpInterfaces) hash = mix(hash, node.snmpInterfaces)
+        if (metaData) hash = mix(hash, node.metaData)
+        return hash
+    }
+
+    private fun mix(hash: Long, value: String?): Long {
+        if (value == null) {
+            return mix(hash, null as Long?)
+        }
+
+        var h = hash
+        value.forEach { h = (h xor it.toLong()) * PRIME }
+        // Separates the value from the next one so that shifting characters between fields changes the hash
+        return (h xor value.length.toLong()) * PRIME
+    }
+
+    private fun mix(hash: Long, value: Any?): Long = mix(hash, value?.hashCode()?.toLong())
+
+    private fun mix(hash: Long, value: Long?): Long {
+        var h = hash
+        val v = value ?: Long.MIN_VALUE
+        for (shift in 0 until 64 step 8) {
+            h = (h xor ((v ushr shift) and 0xff)) * PRIME
+        }
+        return h
+    }
+
+    private companion object {
+        const val OFFSET_BASIS = -0x340d631b7bdddcdbL
+        const val PRIME = 0x100000001b3L
+    }
+}
@@ -0,0 +1,66 @@
+package org.opennms.oia.streaming
+
+import org.slf4j.LoggerFactory
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+
+/**
+ * Coalesces updates to the same entity that arrive within a window so that only the latest one is emitted.
+ *
+ * Updates are keyed by entity (i.e. "alarm:42") and emitted in the order their keys were first seen once the window
+ * closes. Updates that should not wait (deletes, critical alarms) are emitted right away with [emitNow], which also
+ * drops anything pending for the same key.
+ *
+ * Each partition has a coalescer of its own, only ever used from the partition's thread, which is also the [scheduler]
+ * the window is flushed on. Emits therefore never overlap, so an update that is being flushed can't overtake a delete
+ * for the same entity, and nothing needs locking.
+ */
+internal class Coalescer(private val windowMs: Long, private val scheduler: ScheduledExecutorService) {
+
+    private val log = LoggerFactory.getLogger(Coalescer::class.java)
+
+    private val pending = LinkedHashMap<String, () -> Unit>()
+    private var flushScheduled = false
+
+    fun submit(key: String, action: () -> Unit) {
+        if (windowMs <= 0) {
+            emit(action)
+            return
+        }
+
+        pending[key] = action
+        if (!flushScheduled) {
+            flushScheduled = true
+            scheduler.schedule(::flush, windowMs, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    fun emitNow(key: String, action: () -> Unit) {
+        pending.remove(key)
+        emit(action)
+    }
+
+    /**
+     * Emits the pending update for the key (if any) without waiting for the window to close.
+     */
+    fun flush(key: String) {
+        pending.remove(key)?.let { emit(it) }
+    }
+
+    private fun flush() {
+        flushScheduled = false
+        val actions = pending.values.toList()
+        pending.clear()
+
+        log.trace("Flushing '${actions.size}' coalesced updates")
+        actions.forEach { emit(it) }
+    }
+
+    private fun emit(action: () -> Unit) {
+        try {
+            action()
+        } catch (e: Exception) {
+            log.warn("Failed to emit update", e)
+        }
+    }
+}
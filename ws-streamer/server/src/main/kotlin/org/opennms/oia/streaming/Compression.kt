@@ -0,0 +1,58 @@
+package org.opennms.oia.streaming
+
+import org.java_websocket.extensions.IExtension
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension
+import org.java_websocket.framing.DataFrame
+import org.java_websocket.framing.Framedata
+import org.opennms.oia.streaming.model.CompressedEnvelope
+import org.opennms.oia.streaming.model.FrameBuffer
+import java.nio.ByteBuffer
+import java.util.zip.Deflater
+
+/**
+ * Puts frames of at least [threshold] bytes in the [CompressedEnvelope], smaller frames are left as is since they
+ * would barely shrink and only cost CPU on both ends.
+ */
+internal class EnvelopeCompression(private val threshold: Int, private val level: Int) {
+    fun apply(bytes: ByteArray): ByteArray =
+        if (bytes.size < threshold) bytes else CompressedEnvelope.wrap(bytes, level)
+
+    fun apply(buffer: FrameBuffer): ByteBuffer {
+        val frame = buffer.byteBuffer()
+        return if (buffer.size < threshold) {
+            frame
+        } else {
+            ByteBuffer.wrap(CompressedEnvelope.wrap(frame.array(), frame.position(), frame.remaining(), level))
+        }
+    }
+}
+
+/**
+ * permessage-deflate with a configurable threshold and level.
+ *
+ * The stock extension forgets its settings when it is copied for each new connection so they are reapplied here. It
+ * also deflates the whole array behind a frame's payload, regardless of its position and limit, which would send the
+ * rest of a pooled [FrameBuffer] along with the frame. Such payloads are trimmed to their bounds first.
+ */
+internal class DeflateExtension(threshold: Int, private val level: Int) : PerMessageDeflateExtension() {
+    init {
+        setThreshold(threshold)
+        deflater = Deflater(level, true)
+    }
+
+    override fun encodeFrame(inputFrame: Framedata) {
+        val payload = inputFrame.payloadData
+        if (inputFrame is DataFrame && payload.hasArray() &&
+            (payload.arrayOffset() + payload.position() != 0 || payload.remaining() != payload.array().size)) {
+            if (payload.remaining() < threshold) {
+                // Left as is, just like the stock extension leaves payloads below the threshold
+                return
+            }
+            val start = payload.arrayOffset() + payload.position()
+            inputFrame.setPayload(ByteBuffer.wrap(payload.array().copyOfRange(start, start + payload.remaining())))
+        }
+        super.encodeFrame(inputFrame)
+    }
+
+    override fun copyInstance(): IExtension = DeflateExtension(threshold, level)
+}
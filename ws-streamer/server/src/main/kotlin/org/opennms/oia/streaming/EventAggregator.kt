@@ -0,0 +1,99 @@
+package org.opennms.oia.streaming
+
+import org.opennms.integration.api.v1.model.InMemoryEvent
+import org.opennms.integration.api.v1.model.Node
+import org.opennms.oia.streaming.model.EventSummary
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+
+/**
+ * Passes events through one by one until a node raises more than [threshold] of them within a window, after which its
+ * events are counted per UEI and emitted as an [EventSummary] at the end of every window instead. The node goes back
+ * to having its events passed through once a whole window stays at or below the threshold.
+ *
+ * Every window is rolled on the [scheduler] when it ends, whether or not the node raises another event, so that a node
+ * going quiet has its last summary sent and its window let go of.
+ *
+ * Not thread safe, it is meant to be used from the thread of the [scheduler] (i.e. a partition) only.
+ */
+internal class EventAggregator(
+    private val windowMs: Long,
+    private val threshold: Int,
+    private val scheduler: ScheduledExecutorService,
+    private val emitEvent: (Node, InMemoryEvent) -> Unit,
+    private val emitSummary: (Node, EventSummary) -> Unit,
+    private val clock: () -> Long = System::currentTimeMillis
+) {
+    private class Window(var node: Node, var start: Long) {
+        var events = 0
+        var summarizing = false
+        val counts = HashMap<String, Int>()
+    }
+
+    private val windows = HashMap<Int, Window>()
+
+    /**
+     * The nodes with a window open.
+     */
+    val windowCount: Int
+        get() = windows.size
+
+    fun submit(node: Node, event: InMemoryEvent) {
+        if (windowMs <= 0) {
+            emitEvent(node, event)
+            return
+        }
+
+        val now = clock()
+        windows[node.id]?.let { if (now - it.start >= windowMs) roll(node.id, it, now) }
+        val window = windows.getOrPut(node.id) { Window(node, now).also { scheduleRoll(node.id, it) } }
+        window.node = node
+
+        window.events++
+        if (window.events > threshold) {
+            window.summarizing = true
+        }
+
+        if (window.summarizing) {
+            window.counts.merge(event.uei ?: UNKNOWN_UEI, 1, Int::plus)
+        } else {
+            emitEvent(node, event)
+        }
+    }
+
+    /**
+     * Emits the summary of the window (if any) and starts a new one, in summary mode if the node was over the
+     * threshold in the one that ended.
+     */
+    private fun roll(nodeId: Int, window: Window, now: Long) {
+        if (window.counts.isNotEmpty()) {
+            emitSummary(window.node, EventSummary(nodeId, window.start, now, HashMap(window.counts)))
+            window.counts.clear()
+        }
+
+        window.summarizing = window.events > threshold
+        window.events = 0
+        window.start = now
+
+        if (window.summarizing) {
+            scheduleRoll(nodeId, window)
+        } else {
+            // Quiet nodes don't need a window until their next event
+            windows.remove(nodeId)
+        }
+    }
+
+    private fun scheduleRoll(nodeId: Int, window: Window) {
+        val start = window.start
+        scheduler.schedule({
+            // Unless the window was rolled by an event in the meantime
+            if (windows[nodeId] === window && window.start == start) {
+                roll(nodeId, window, clock())
+            }
+        }, windowMs - (clock() - start), TimeUnit.MILLISECONDS)
+    }
+
+    private companion object {
+        const val UNKNOWN_UEI = "unknown"
+    }
+}
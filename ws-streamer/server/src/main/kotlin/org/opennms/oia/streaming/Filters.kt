@@ -2,41 +2,154 @@ package org.opennms.oia.streaming
 
 import org.opennms.integration.api.v1.model.Alarm
 import org.opennms.integration.api.v1.model.Node
+import org.opennms.integration.api.v1.model.Severity
 import org.opennms.integration.api.v1.model.TopologyEdge
+import org.opennms.integration.api.v1.model.TopologyPort
+import org.opennms.integration.api.v1.model.TopologyProtocol
+import org.opennms.integration.api.v1.model.TopologySegment
 import org.opennms.oia.streaming.model.FilterCriteria
+import org.opennms.oia.streaming.model.VertexType
+import java.util.*
 
-internal fun filterAlarm(alarm: Alarm, filterCriteria: FilterCriteria) =
-    filterCriteria.locations?.contains(alarm.node.location) ?: true
+/**
+ * The node endpoints of an edge, resolved once so that they can be shared across all of the subscribers being
+ * considered for the edge. Port and segment endpoints resolve to null.
+ */
+internal class EdgeEndpoints private constructor() : TopologyEdge.EndpointVisitor {
+    var sourceNode: Node? = null
+        private set
+    var targetNode: Node? = null
+        private set
+    var sourceType: VertexType? = null
+        private set
+    var targetType: VertexType? = null
+        private set
 
-internal fun filterNode(node: Node, filterCriteria: FilterCriteria) =
-    filterCriteria.locations?.contains(node.location) ?: true
+    override fun visitSource(node: Node) {
+        sourceNode = node
+        sourceType = VertexType.Node
+    }
 
-internal fun filterEdge(edge: TopologyEdge, filterCriteria: FilterCriteria): Boolean {
-    if (filterCriteria.locations == null) {
-        return true
+    override fun visitSource(port: TopologyPort) {
+        sourceType = VertexType.Port
     }
 
-    var matchingEndpoints: Int = 0
+    override fun visitSource(segment: TopologySegment) {
+        sourceType = VertexType.Segment
+    }
 
-    val edgeVisitor = object : TopologyEdge.EndpointVisitor {
-        override fun visitSource(node: Node) {
-            if (filterCriteria.locations!!.contains(node.location)) {
-                matchingEndpoints++
-            }
-        }
+    override fun visitTarget(node: Node) {
+        targetNode = node
+        targetType = VertexType.Node
+    }
 
-        override fun visitTarget(node: Node) {
-            if (filterCriteria.locations!!.contains(node.location)) {
-                matchingEndpoints++
-            }
-        }
+    override fun visitTarget(port: TopologyPort) {
+        targetType = VertexType.Port
+    }
+
+    override fun visitTarget(segment: TopologySegment) {
+        targetType = VertexType.Segment
+    }
+
+    companion object {
+        fun of(edge: TopologyEdge) = EdgeEndpoints().apply { edge.visitEndpoints(this) }
+    }
+}
+
+/**
+ * The attributes of a message that subscribers filter on, extracted once per message so that they can be matched
+ * against every distinct [MessageFilter] without going back to the entity. Attributes that don't apply to the kind of
+ * message are null.
+ */
+internal class Subject private constructor(
+    val nodeIds: List<Int?>,
+    val locations: List<String?>,
+    val foreignSources: List<String?>,
+    val severity: Severity? = null,
+    val ueis: Collection<String>? = null,
+    val protocol: TopologyProtocol? = null,
+    val vertexTypes: List<VertexType?>? = null
+) {
+    companion object {
+        fun of(node: Node) = Subject(listOf(node.id), listOf(node.location), listOf(node.foreignSource))
+
+        // Alarms without a severity are as good as indeterminate
+        fun of(alarm: Alarm) = Subject(listOf(alarm.node?.id), listOf(alarm.node?.location),
+            listOf(alarm.node?.foreignSource), severity = alarm.severity ?: Severity.INDETERMINATE)
+
+        fun of(edge: TopologyEdge, endpoints: EdgeEndpoints) = Subject(
+            listOf(endpoints.sourceNode?.id, endpoints.targetNode?.id),
+            listOf(endpoints.sourceNode?.location, endpoints.targetNode?.location),
+            listOf(endpoints.sourceNode?.foreignSource, endpoints.targetNode?.foreignSource),
+            protocol = edge.protocol,
+            vertexTypes = listOf(endpoints.sourceType, endpoints.targetType)
+        )
+
+        fun ofEvents(node: Node, ueis: Collection<String>) =
+            Subject(listOf(node.id), listOf(node.location), listOf(node.foreignSource), ueis = ueis)
     }
+}
+
+/**
+ * [FilterCriteria] compiled into a predicate over a [Subject]. Only the dimensions that are set are checked, so a
+ * dimension nobody filters on costs nothing per message.
+ *
+ * Subscribers with the same criteria share one filter, which is what lets the [SubscriberRegistry] evaluate each
+ * distinct filter once per message rather than once per session.
+ */
+internal class MessageFilter private constructor(val criteria: FilterCriteria) {
+
+    val locations: Set<String>? = criteria.locations?.let { HashSet(it) }
 
-    edge.visitEndpoints(edgeVisitor)
+    val focus: Int? = criteria.focusNodeId
 
-    if (matchingEndpoints == 2) {
+    val hops = maxOf(0, criteria.hops ?: 1)
+
+    /**
+     * The ids of the nodes within [hops] of the [focus], kept current by the server as edges come and go. Null until
+     * the server first walks it, and always for filters without a focus.
+     */
+    @Volatile
+    var neighborhood: Set<Int>? = null
+
+    private val checks: List<(Subject) -> Boolean> = listOfNotNull(
+        locations?.let { locations -> { subject: Subject -> subject.locations.all { it in locations } } },
+        focus?.let { { subject: Subject -> neighborhood?.let { n -> subject.nodeIds.all { it in n } } ?: false } },
+        criteria.foreignSources?.let { HashSet(it) }?.let { foreignSources ->
+            { subject: Subject -> subject.foreignSources.all { it in foreignSources } }
+        },
+        criteria.minSeverity?.let { minSeverity ->
+            { subject: Subject -> subject.severity?.let { it >= minSeverity } ?: true }
+        },
+        criteria.ueiPrefixes?.toTypedArray()?.let { prefixes ->
+            { subject: Subject -> subject.ueis?.any { uei -> prefixes.any { uei.startsWith(it) } } ?: true }
+        },
+        criteria.edgeProtocols?.let { enumSetOf(it) }?.let { protocols ->
+            { subject: Subject -> subject.protocol?.let { it in protocols } ?: true }
+        },
+        criteria.vertexTypes?.let { enumSetOf(it) }?.let { vertexTypes ->
+            { subject: Subject -> subject.vertexTypes?.all { it in vertexTypes } ?: true }
+        }
+    )
+
+    /**
+     * Whether the filter is down to locations alone, which the [SubscriberRegistry] already accounts for by indexing.
+     */
+    val isLocationOnly = checks.size == (if (locations != null) 1 else 0)
+
+    fun matches(subject: Subject): Boolean {
+        for (check in checks) {
+            if (!check(subject)) return false
+        }
         return true
     }
 
-    return false
-}
\ No newline at end of file
+    override fun toString() = criteria.toString()
+
+    companion object {
+        fun compile(criteria: FilterCriteria) = MessageFilter(criteria)
+
+        private inline fun <reified E : Enum<E>> enumSetOf(values: Collection<E>): EnumSet<E> =
+            EnumSet.noneOf(E::class.java).apply { addAll(values) }
+    }
+}
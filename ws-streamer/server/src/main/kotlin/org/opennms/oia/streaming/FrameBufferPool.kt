@@ -0,0 +1,47 @@
+package org.opennms.oia.streaming
+
+import org.opennms.oia.streaming.model.FrameBuffer
+import java.util.ArrayDeque
+
+/**
+ * The buffers the session writers put their frames together in. A buffer is taken for a frame, handed to the socket
+ * (which copies it into the frame it writes before the send returns) and given back once sent, so that frames are put
+ * together without allocating.
+ *
+ * At most [maxPooled] buffers are kept, typically one per writer thread, and none that grew past
+ * [maxRetainedCapacity] for a large frame.
+ */
+internal class FrameBufferPool(private val maxPooled: Int, private val maxRetainedCapacity: Int) {
+    private val pooled = ArrayDeque<FrameBuffer>()
+
+    /**
+     * The number of buffers allocated because none were pooled.
+     */
+    @Volatile
+    var allocated = 0L
+        private set
+
+    fun acquire(): FrameBuffer = synchronized(pooled) { pooled.pollFirst() ?: FrameBuffer().also { allocated++ } }
+
+    fun release(buffer: FrameBuffer) {
+        if (buffer.capacity > maxRetainedCapacity) {
+            return
+        }
+
+        buffer.reset()
+        synchronized(pooled) {
+            if (pooled.size < maxPooled) {
+                pooled.addFirst(buffer)
+            }
+        }
+    }
+
+    inline fun <T> use(block: (FrameBuffer) -> T): T {
+        val buffer = acquire()
+        try {
+            return block(buffer)
+        } finally {
+            release(buffer)
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.opennms.oia.streaming
+
+import java.util.concurrent.atomic.LongAccumulator
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Counts non-negative values into power of two buckets, which is coarse but cheap enough to record from many threads
+ * at once without any locking. Percentiles are estimated as the upper bound of the bucket they fall in.
+ */
+internal class Histogram {
+
+    // Bucket i holds the values below 2^i that don't fit in a lower one
+    private val buckets = Array(BUCKETS) { LongAdder() }
+    private val total = LongAdder()
+    private val maxValue = LongAccumulator(Math::max, 0)
+
+    fun record(value: Long) {
+        val bucket = minOf(BUCKETS - 1, 64 - java.lang.Long.numberOfLeadingZeros(maxOf(0, value)))
+        buckets[bucket].increment()
+        total.add(value)
+        maxValue.accumulate(value)
+    }
+
+    val count: Long
+        get() = buckets.fold(0L) { count, bucket -> count + bucket.sum() }
+
+    val mean: Double
+        get() = count.let { if (it == 0L) 0.0 else total.sum().toDouble() / it }
+
+    val max: Long
+        get() = maxValue.get()
+
+    /**
+     * @param percentile from 0 to 100
+     */
+    fun percentile(percentile: Double): Long {
+        val counts = buckets.map { it.sum() }
+        val rank = Math.ceil(counts.sum() * percentile / 100).toLong()
+        var seen = 0L
+        counts.forEachIndexed { i, count ->
+            seen += count
+            if (count > 0 && seen >= rank) {
+                return minOf(max, (1L shl i) - 1)
+            }
+        }
+        return max
+    }
+
+    private companion object {
+        const val BUCKETS = 63
+    }
+}
@@ -0,0 +1,24 @@
+package org.opennms.oia.streaming
+
+/**
+ * A set of entities told apart by their ids, in the order they were added.
+ *
+ * The API models are immutables whose hash codes and equality take in every field (the node of an alarm, its
+ * assets and so on), a [HashSet] of them hashes each one whole. This only ever hashes the id.
+ */
+internal class IdSet<K, V>(private val id: (V) -> K) : AbstractMutableSet<V>() {
+
+    private val byId = LinkedHashMap<K, V>()
+
+    override val size: Int
+        get() = byId.size
+
+    /**
+     * @return whether the element was added, false if one with the same id was already there
+     */
+    override fun add(element: V): Boolean = byId.putIfAbsent(id(element), element) == null
+
+    override fun contains(element: V): Boolean = byId[id(element)]?.let { it == element } ?: false
+
+    override fun iterator(): MutableIterator<V> = byId.values.iterator()
+}
@@ -0,0 +1,138 @@
+package org.opennms.oia.streaming
+
+/**
+ * A compact set of ints along the lines of a Roaring bitmap. Values are bucketed by their high 16 bits and each bucket
+ * holds the low 16 bits as a sorted array while it is sparse, switching to a 65536 bit bitmap once the array would
+ * take up more room than that.
+ *
+ * Node ids are dense and small, so the set of nodes a session has been sent typically fits in a couple of buckets
+ * rather than a boxed hash set entry per node.
+ */
+internal class IntBitmap {
+
+    private var keys = CharArray(1)
+    private var containers = arrayOfNulls<Container>(1)
+    private var buckets = 0
+
+    var size = 0
+        private set
+
+    operator fun contains(value: Int): Boolean {
+        val i = keys.binarySearch(high(value), 0, buckets)
+        return i >= 0 && containers[i]!!.contains(low(value))
+    }
+
+    /**
+     * @return whether the value was added, false if it was already there
+     */
+    fun add(value: Int): Boolean {
+        var i = keys.binarySearch(high(value), 0, buckets)
+        if (i < 0) {
+            i = -(i + 1)
+            insertBucket(i, high(value))
+        }
+
+        containers[i] = containers[i]!!.add(low(value)) ?: return false
+        size++
+        return true
+    }
+
+    /**
+     * An estimate of the heap taken up by the set, including itself.
+     */
+    fun sizeInBytes(): Long {
+        var bytes = OBJECT_BYTES + ARRAY_BYTES + keys.size * 2L + ARRAY_BYTES + containers.size * REFERENCE_BYTES
+        for (i in 0 until buckets) {
+            bytes += containers[i]!!.sizeInBytes()
+        }
+        return bytes
+    }
+
+    private fun insertBucket(i: Int, key: Char) {
+        if (buckets == keys.size) {
+            keys = keys.copyOf(buckets * 2)
+            containers = containers.copyOf(buckets * 2)
+        }
+        System.arraycopy(keys, i, keys, i + 1, buckets - i)
+        System.arraycopy(containers, i, containers, i + 1, buckets - i)
+        keys[i] = key
+        containers[i] = ArrayContainer()
+        buckets++
+    }
+
+    private abstract class Container {
+        abstract fun contains(low: Int): Boolean
+
+        /**
+         * @return the container to use from here on, or null if the value was already there
+         */
+        abstract fun add(low: Int): Container?
+
+        abstract fun sizeInBytes(): Long
+    }
+
+    private class ArrayContainer : Container() {
+        private var values = CharArray(4)
+        private var size = 0
+
+        override fun contains(low: Int) = values.binarySearch(low.toChar(), 0, size) >= 0
+
+        override fun add(low: Int): Container? {
+            val i = values.binarySearch(low.toChar(), 0, size)
+            if (i >= 0) {
+                return null
+            }
+
+            if (size == MAX_ARRAY_SIZE) {
+                val bitmap = BitmapContainer()
+                for (j in 0 until size) {
+                    bitmap.add(values[j].toInt())
+                }
+                bitmap.add(low)
+                return bitmap
+            }
+
+            val insertAt = -(i + 1)
+            if (size == values.size) {
+                values = values.copyOf(minOf(size * 2, MAX_ARRAY_SIZE))
+            }
+            System.arraycopy(values, insertAt, values, insertAt + 1, size - insertAt)
+            values[insertAt] = low.toChar()
+            size++
+            return this
+        }
+
+        override fun sizeInBytes() = OBJECT_BYTES + ARRAY_BYTES + values.size * 2L
+    }
+
+    private class BitmapContainer : Container() {
+        private val words = LongArray(1 shl 10)
+
+        override fun contains(low: Int) = words[low ushr 6] and (1L shl low) != 0L
+
+        override fun add(low: Int): Container? {
+            val word = words[low ushr 6]
+            val bit = 1L shl low
+            if (word and bit != 0L) {
+                return null
+            }
+
+            words[low ushr 6] = word or bit
+            return this
+        }
+
+        override fun sizeInBytes() = OBJECT_BYTES + ARRAY_BYTES + words.size * 8L
+    }
+
+    private companion object {
+        // An array container is as big as a bitmap one (8 KiB) at this many values
+        const val MAX_ARRAY_SIZE = 4096
+
+        const val OBJECT_BYTES = 16L
+        const val ARRAY_BYTES = 16L
+        const val REFERENCE_BYTES = 8L
+
+        fun high(value: Int) = (value ushr 16).toChar()
+        fun low(value: Int) = value and 0xffff
+    }
+}
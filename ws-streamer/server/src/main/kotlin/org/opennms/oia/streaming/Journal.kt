@@ -0,0 +1,136 @@
+package org.opennms.oia.streaming
+
+import org.opennms.oia.streaming.model.Codec
+import org.opennms.oia.streaming.model.MessageType
+
+/**
+ * A ring buffer of the most recently published deltas, so that a client reconnecting shortly after dropping off can be
+ * sent what it missed rather than a whole new snapshot.
+ *
+ * Deltas are journaled whether or not anyone is subscribed to them at the time, along with who they were meant for so
+ * that a resuming session only gets the ones matching its filter.
+ *
+ * A delta is journaled as published and then [sealed][seal] with its JSON encoding (and that of its brief), from which
+ * on the journal keeps those bytes alone and lets go of the message and the payload it refers to. Sessions resuming
+ * with another codec are sent the JSON [transcoded][transcode]. The journal holds at most [capacity] deltas and at most
+ * [maxBytes] of sealed ones, the oldest are evicted to stay within both.
+ *
+ * Not thread safe, the server guards it together with the sequence numbers it hands out.
+ */
+internal class Journal(
+    private val capacity: Int,
+    private val maxBytes: Long,
+    private val transcode: (ByteArray, Codec) -> ByteArray
+) {
+
+    /**
+     * @param audience whether a session with the given filter would have been sent the message
+     */
+    class Entry(val seq: Long, message: OutboundMessage, val audience: (MessageFilter) -> Boolean) {
+        private val key = message.key
+        private val type = message.type
+        private val briefType = message.brief?.type
+        // Until sealed, after which only the encodings are kept
+        private var published: OutboundMessage? = message
+        private var json: ByteArray? = null
+        private var briefJson: ByteArray? = null
+
+        val size: Int
+            get() = (json?.size ?: 0) + (briefJson?.size ?: 0)
+
+        internal fun seal(json: ByteArray, briefJson: ByteArray?) {
+            this.json = json
+            this.briefJson = briefJson
+            published = null
+        }
+
+        /**
+         * The message to replay, built from the encodings once sealed. A message built from them is not kept so that
+         * the encodings of the resuming session's codec don't add up in the journal.
+         */
+        internal fun message(transcode: (ByteArray, Codec) -> ByteArray): OutboundMessage {
+            published?.let { return it }
+
+            val brief = briefJson?.let { encoded(briefType, null, it, transcode) }
+            return encoded(type, brief, json!!, transcode)
+        }
+
+        private fun encoded(type: MessageType?, brief: OutboundMessage?, json: ByteArray,
+                            transcode: (ByteArray, Codec) -> ByteArray) =
+            OutboundMessage(key, type, brief = brief, seq = seq) { codec ->
+                if (codec == Codec.JSON) json else transcode(json, codec)
+            }
+    }
+
+    private val entries = arrayOfNulls<Entry>(capacity)
+    private var head = 0
+    private var size = 0
+
+    val count: Int
+        get() = size
+
+    /**
+     * The encoded size of the sealed deltas in the journal.
+     */
+    var bytes = 0L
+        private set
+
+    fun append(entry: Entry) {
+        if (capacity == 0) {
+            return
+        }
+
+        if (size == capacity) {
+            evict()
+        }
+        entries[(head + size) % capacity] = entry
+        size++
+    }
+
+    /**
+     * Keeps the encodings of the entry rather than the message, unless it has been evicted already.
+     */
+    fun seal(entry: Entry, json: ByteArray, briefJson: ByteArray?) {
+        if (size == 0 || entry.seq < entries[head]!!.seq) {
+            return
+        }
+
+        entry.seal(json, briefJson)
+        bytes += entry.size
+        while (bytes > maxBytes && size > 0) {
+            evict()
+        }
+    }
+
+    /**
+     * The deltas published after [seq] that a session with the given filter would have received, or null if some of
+     * them are no longer in the journal.
+     *
+     * @param lastSeq the sequence number of the last delta published
+     */
+    fun since(seq: Long, lastSeq: Long, filter: MessageFilter): List<OutboundMessage>? {
+        if (seq == lastSeq) {
+            return emptyList()
+        }
+
+        // Either ahead of anything published here (i.e. from before a restart) or already evicted
+        val oldest = if (size == 0) null else entries[head]!!.seq
+        if (seq > lastSeq || oldest == null || seq < oldest - 1) {
+            return null
+        }
+
+        return (0 until size).asSequence()
+            .map { entries[(head + it) % capacity]!! }
+            .filter { it.seq > seq && it.audience(filter) }
+            .map { it.message(transcode) }
+            .toList()
+    }
+
+    private fun evict() {
+        val evicted = entries[head]!!
+        bytes -= evicted.size
+        entries[head] = null
+        head = (head + 1) % capacity
+        size--
+    }
+}
@@ -0,0 +1,42 @@
+package org.opennms.oia.streaming
+
+import org.opennms.oia.streaming.model.MessageType
+import java.util.*
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * The number of messages sent and their encoded size (before any compression) per message type.
+ */
+internal class MessageCounters {
+
+    private val messages = EnumMap<MessageType, LongAdder>(MessageType::class.java)
+    private val bytes = EnumMap<MessageType, LongAdder>(MessageType::class.java)
+
+    init {
+        MessageType.values().forEach {
+            messages[it] = LongAdder()
+            bytes[it] = LongAdder()
+        }
+    }
+
+    fun record(type: MessageType, size: Int) {
+        messages.getValue(type).increment()
+        bytes.getValue(type).add(size.toLong())
+    }
+
+    val totalMessages: Long
+        get() = messages.values.fold(0L) { total, count -> total + count.sum() }
+
+    val totalBytes: Long
+        get() = bytes.values.fold(0L) { total, count -> total + count.sum() }
+
+    /**
+     * The types any messages were sent of, with how many.
+     */
+    fun messagesByType(): Map<MessageType, Long> = nonZero(messages)
+
+    fun bytesByType(): Map<MessageType, Long> = nonZero(bytes)
+
+    private fun nonZero(counts: Map<MessageType, LongAdder>) =
+        counts.mapValues { it.value.sum() }.filterValues { it > 0 }
+}
@@ -1,12 +1,16 @@
 package org.opennms.oia.streaming
 
-import com.fasterxml.jackson.databind.module.SimpleModule
-import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
 import com.fasterxml.jackson.module.kotlin.readValue
 import org.java_websocket.WebSocket
+import org.java_websocket.WebSocketAdapter
+import org.java_websocket.drafts.Draft
+import org.java_websocket.drafts.Draft_6455
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension
 import org.java_websocket.handshake.ClientHandshake
+import org.java_websocket.server.DefaultWebSocketServerFactory
 import org.java_websocket.server.WebSocketServer
-import org.opennms.integration.api.serializer.TopologyEdgeSerializer
+import org.opennms.integration.api.serializer.Projection
+import org.opennms.integration.api.serializer.oiaSerializers
 import org.opennms.integration.api.v1.alarms.AlarmLifecycleListener
 import org.opennms.integration.api.v1.dao.AlarmDao
 import org.opennms.integration.api.v1.dao.EdgeDao
@@ -20,7 +24,15 @@ import org.slf4j.LoggerFactory
 import java.net.InetSocketAddress
 import java.util.*
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.LongAdder
 import java.util.concurrent.locks.ReentrantLock
+import java.util.zip.Deflater
+import javax.management.ObjectName
 import kotlin.concurrent.withLock
 
 class OiaWebSocketServer(
@@ -29,24 +41,215 @@ class OiaWebSocketServer(
     private val nodeDao: NodeDao,
     private val edgeDao: EdgeDao,
     private val eventSubscriptionService: EventSubscriptionService
-) : WebSocketServer(InetSocketAddress(port)), AlarmLifecycleListener, TopologyEdgeConsumer, EventListener {
+) : WebSocketServer(InetSocketAddress(port)), AlarmLifecycleListener, TopologyEdgeConsumer, EventListener,
+    StreamingServerMXBean {
 
     private val log = LoggerFactory.getLogger(OiaWebSocketServer::class.java)
 
-    private val mapper = jacksonObjectMapper().apply { 
-        val module = SimpleModule()
-        module.addSerializer(TopologyEdge::class.java, TopologyEdgeSerializer())
-        registerModule(module)
+    // Created once the properties are set, for the projection
+    private val mappers by lazy {
+        Codec.values().associate { codec -> codec to codec.newMapper().registerModule(oiaSerializers(projection)) }
     }
 
-    private val subscribers = ConcurrentHashMap<WebSocket, FilterCriteria>()
-    private val nodeIdsBySession = ConcurrentHashMap<WebSocket, MutableSet<Int>>()
+    // Requests are always JSON
+    private val mapper by lazy { mappers.getValue(Codec.JSON) }
 
-    private val nodeCache = ConcurrentHashMap<Int, Node>()
-    private val alarmCache = ConcurrentHashMap<Int, Alarm>()
+    // Messages are encoded by every thread with a generator and buffer of its own that are reused from one to the next
+    private val encoders by lazy { mappers.mapValues { (_, mapper) -> PooledEncoder(mapper) } }
 
-    private val alarmLock = ReentrantLock()
-    private val nodeLock = ReentrantLock()
+    // Details are sent whole, they are what the fields left out of the stream are fetched with
+    private val detailEncoders = Codec.values().associate { codec ->
+        codec to PooledEncoder(codec.newMapper().registerModule(oiaSerializers(Projection.ALL)))
+    }
+
+    var queueCapacity = 1000
+    var resyncThreshold = 5000
+    var socketBacklog = 64
+    var writerThreads = 2
+    var defaultOverflowPolicy = OverflowPolicy.DROP_OLDEST
+    var snapshotChunkSize = 500
+    var batchSize = 100
+    var batchDelayMs = 20L
+    var perMessageDeflate = true
+    var compressionThreshold = 1024
+    var compressionLevel = Deflater.DEFAULT_COMPRESSION
+    var coalesceWindowMs = 100L
+    var coalesceBypassSeverity = Severity.CRITICAL
+    var journalSize = 10000
+    var journalMaxBytes = 32L * 1024 * 1024
+    var partitionCount = Runtime.getRuntime().availableProcessors()
+    var nodeResolverThreads = 2
+    var missingNodeTtlMs = 60000L
+    var eventSummaryWindowMs = 5000L
+    var eventRateThreshold = 50
+    var partitionRingSize = 1024
+    var encoderThreads = 2
+    var eventDetailCacheSize = 1000
+
+    /**
+     * The optional fields of the OIA model to send along with the ones clients need, see [Projection.parse].
+     */
+    var includedFields: String
+        get() = projection.toString()
+        set(value) {
+            projection = Projection.parse(value)
+        }
+
+    private var projection = Projection.NONE
+
+    private val subscribers = SubscriberRegistry()
+    private val outboundQueues = ConcurrentHashMap<WebSocket, OutboundQueue>()
+    private val sessionBeans = ConcurrentHashMap<WebSocket, ObjectName>()
+    private lateinit var writerExecutor: ScheduledExecutorService
+    private lateinit var frameBuffers: FrameBufferPool
+    private lateinit var nodeResolver: ExecutorService
+    private var encoderExecutor: ExecutorService? = null
+
+    // Callbacks hand off to the partitions which route the messages to the sessions, the messages are then encoded
+    // and finally written by the session writers
+    private val routeStage = StageMetrics("route")
+    private val encodeStages = Codec.values().associate { it to StageMetrics("encode-${it.name.toLowerCase()}") }
+    private val writeStage = StageMetrics("write")
+    private val snapshotStage = StageMetrics("snapshot")
+
+    private val traffic = MessageCounters()
+    private val receiversPerBroadcast = Histogram()
+
+    /**
+     * How long messages take to get through each stage of the pipeline and how many have, along with how long
+     * snapshots take to generate.
+     */
+    override val stageMetrics: List<StageMetrics>
+        get() = listOf(routeStage) + encodeStages.values + listOf(writeStage, snapshotStage)
+
+    /**
+     * Tasks that didn't fit in the ring of their partition, a sign that [partitionRingSize] is too small.
+     */
+    override val partitionRingOverflows: Long
+        get() = if (::partitions.isInitialized) partitions.overflows else 0
+
+    /**
+     * The state of a partition, only ever touched from the partition's own thread.
+     */
+    private inner class Partition(executor: ScheduledExecutorService) {
+        val coalescer = Coalescer(coalesceWindowMs, executor)
+        val events = EventAggregator(eventSummaryWindowMs, eventRateThreshold, executor,
+            { node, event -> publishEvent(node, eventMessage(event), listOfNotNull(event.uei)) },
+            { node, summary -> publishEvent(node, eventSummaryMessage(summary), summary.counts.keys) })
+        // Events waiting on the node they refer to being looked up
+        val unresolvedEvents = HashMap<Int, MutableList<InMemoryEvent>>()
+        // Ids of nodes that couldn't be found, with when to look for them again
+        val missingNodes = HashMap<Int, Long>()
+        // The nodes of this partition that each session has been sent
+        private val nodeIdsBySession = HashMap<WebSocket, IntBitmap>()
+
+        fun hasSeen(conn: WebSocket, nodeId: Int) = nodeIdsBySession[conn]?.contains(nodeId) ?: false
+
+        fun markSeen(conn: WebSocket, nodeId: Int) {
+            val nodeIds = nodeIdsBySession.getOrPut(conn) {
+                IntBitmap().also { nodeTrackingBytes.add(it.sizeInBytes()) }
+            }
+            val before = nodeIds.sizeInBytes()
+            if (nodeIds.add(nodeId)) {
+                nodeTrackingBytes.add(nodeIds.sizeInBytes() - before)
+            }
+        }
+
+        fun release(conn: WebSocket): Long =
+            nodeIdsBySession.remove(conn)?.sizeInBytes()?.also { nodeTrackingBytes.add(-it) } ?: 0
+    }
+
+    // Handling is partitioned by node id, so that everything about a node (including its alarms) is handled in order
+    // while different nodes are handled in parallel
+    private lateinit var partitions: PartitionedExecutor<Partition>
+    // The partition each alarm was last handled on, for deletes which only come with the alarm id
+    private val alarmPartitionKeys = ConcurrentHashMap<Int, Int>()
+    // What clients last saw of each alarm, see AlarmFingerprint
+    private val alarmFingerprints = ConcurrentHashMap<Int, Long>()
+    private val alarmFingerprint by lazy { AlarmFingerprint(projection) }
+    // The alarms as last published, for telling the sessions that were sent an alarm it no longer matches their filter
+    private val publishedAlarms = ConcurrentHashMap<Int, Alarm>()
+
+    private val alarmUpdatesSent = LongAdder()
+    private val alarmUpdatesSuppressed = LongAdder()
+    private val nodeTrackingBytes = LongAdder()
+
+    /**
+     * Alarm updates broadcast so far.
+     */
+    override val sentAlarmUpdates: Long
+        get() = alarmUpdatesSent.sum()
+
+    /**
+     * Alarm updates not broadcast because nothing clients get to see had changed.
+     */
+    override val suppressedAlarmUpdates: Long
+        get() = alarmUpdatesSuppressed.sum()
+
+    /**
+     * Estimated heap taken up by tracking which nodes the sessions have been sent, in total and per session.
+     */
+    override val nodeTrackingHeapBytes: Long
+        get() = nodeTrackingBytes.sum()
+
+    val nodeTrackingHeapBytesPerSession: Long
+        get() = nodeTrackingHeapBytes / maxOf(1, outboundQueues.size)
+
+    override val sessionCount: Int
+        get() = subscribers.size
+
+    override val messagesSentByType: Map<String, Long>
+        get() = traffic.messagesByType().mapKeys { it.key.name }
+
+    override val bytesSentByType: Map<String, Long>
+        get() = traffic.bytesByType().mapKeys { it.key.name }
+
+    override val meanReceiversPerBroadcast: Double
+        get() = receiversPerBroadcast.mean
+
+    override val p99ReceiversPerBroadcast: Long
+        get() = receiversPerBroadcast.percentile(99.0)
+
+    override val maxReceiversPerBroadcast: Long
+        get() = receiversPerBroadcast.max
+
+    override val cacheSizes: Map<String, Int>
+        get() = mapOf(
+            "nodes" to topologyView.nodeCount,
+            "edges" to topologyView.edgeCount,
+            "alarms" to topologyView.alarmCount,
+            "journal" to if (::journal.isInitialized) journalLock.withLock { journal.count } else 0,
+            "journalBytes" to if (::journal.isInitialized) {
+                journalLock.withLock { journal.bytes.coerceAtMost(Int.MAX_VALUE.toLong()).toInt() }
+            } else 0,
+            "alarmFingerprints" to alarmFingerprints.size,
+            "publishedAlarms" to publishedAlarms.size,
+            "alarmPartitionKeys" to alarmPartitionKeys.size,
+            "filters" to subscribers.filterCount
+        )
+
+    private val topologyView = TopologyView()
+
+    // Guards the sequence numbers and the journal. A delta is journaled under it before it's offered to anyone, and a
+    // resuming session is replayed the journal under it, so a delta published while a session subscribes is either
+    // replayed to it or offered to it (or both, in which case the session's queue drops the second one).
+    private val journalLock = ReentrantLock()
+    private lateinit var journal: Journal
+    // Starting from the clock keeps sequence numbers increasing across restarts, so a client can never resume against
+    // a journal it didn't come from
+    private var seq = System.currentTimeMillis() shl 20
+    // Published deltas are offered in the order of their sequence numbers, whichever partition published them. Clients
+    // resume from the highest sequence number they got, which would otherwise skip one offered behind a later one.
+    private val offers = SequencedDispatcher(seq + 1)
+    // Sessions that asked for briefs, deltas are only briefed while there are any. Those published while the first one
+    // subscribes may go out whole.
+    private val briefSessions = AtomicInteger()
+    // The most recently published events by the sequence number their briefs refer to them by, also guarded by the
+    // journal lock. Unlike alarms and nodes the view doesn't keep them.
+    private val recentEvents = object : LinkedHashMap<Long, InMemoryEvent>() {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Long, InMemoryEvent>) =
+            size > eventDetailCacheSize
+    }
 
     fun init() {
         eventSubscriptionService.addEventListener(this)
@@ -58,103 +261,336 @@ class OiaWebSocketServer(
         stop()
     }
 
-    private fun subscribeConnection(conn: WebSocket, filterCriteria: FilterCriteria) {
+    override fun start() {
+        // Seed the view once up front, from here on it is kept current by the callbacks
+        val alarms = alarmDao.alarms
+        topologyView.seed(alarms, nodeDao.nodes, edgeDao.edges)
+        alarms.forEach {
+            alarmFingerprints[it.id] = alarmFingerprint.of(it)
+            publishedAlarms[it.id] = it
+        }
+        writerExecutor = Executors.newScheduledThreadPool(writerThreads, namedThreadFactory("oia-ws-writer"))
+        frameBuffers = FrameBufferPool(writerThreads, MAX_POOLED_FRAME_CAPACITY)
+        partitions = PartitionedExecutor(partitionCount, namedThreadFactory("oia-ws-partition"), partitionRingSize,
+            routeStage) { Partition(it) }
+        encoderExecutor = if (encoderThreads > 0) {
+            Executors.newFixedThreadPool(encoderThreads, namedThreadFactory("oia-ws-encoder"))
+        } else null
+        nodeResolver = Executors.newFixedThreadPool(nodeResolverThreads, namedThreadFactory("oia-ws-node-resolver"))
+        journal = Journal(journalSize, journalMaxBytes, ::transcode)
+
+        // The drafts are fixed when the server is constructed, before the blueprint properties are set, so the ones
+        // reflecting the compression settings are handed out by the factory instead
+        val drafts = listOf(if (perMessageDeflate) Draft_6455(DeflateExtension(compressionThreshold, compressionLevel))
+            else Draft_6455())
+        setWebSocketFactory(object : DefaultWebSocketServerFactory() {
+            override fun createWebSocket(a: WebSocketAdapter, d: List<Draft>) = super.createWebSocket(a, drafts)
+        })
+
+        registerMXBean(serverObjectName(port), this, StreamingServerMXBean::class.java)
+        super.start()
+    }
+
+    override fun stop(timeout: Int) {
+        super.stop(timeout)
+        unregisterMXBean(serverObjectName(port))
+        sessionBeans.values.forEach { unregisterMXBean(it) }
+        sessionBeans.clear()
+        writerExecutor.shutdownNow()
+        partitions.shutdown()
+        nodeResolver.shutdownNow()
+        encoderExecutor?.shutdownNow()
+    }
+
+    private fun subscribeConnection(conn: WebSocket, request: StreamRequest) {
+        val filterCriteria = request.criteria ?: FilterCriteria()
+        val overflowPolicy = request.overflowPolicy ?: defaultOverflowPolicy
+        val codec = request.codec ?: Codec.JSON
+        // No point in compressing what the socket is going to deflate anyway
+        val compression = if (request.compress == true && !conn.isDeflated()) {
+            EnvelopeCompression(compressionThreshold, compressionLevel)
+        } else null
         require(subscribers[conn] == null)
-        log.info("Received subscribe request from connection '$conn' with criteria '$filterCriteria'")
-        subscribers[conn] = filterCriteria
+        val filter = subscribers.compile(filterCriteria)
+        filter.focus?.let { focus ->
+            synchronized(filter) {
+                if (filter.neighborhood == null) filter.neighborhood = topologyView.neighborhood(focus, filter.hops)
+            }
+        }
+        val normalize = request.normalize == true
+        val brief = request.brief == true
+        log.info("Received subscribe request from connection '$conn' with criteria '$filterCriteria', " +
+                "overflow policy '$overflowPolicy', codec '$codec', compression '${compression != null}', " +
+                "normalized '$normalize', brief '$brief' and resume from '${request.resumeFrom}'")
+
+        val outboundQueue = OutboundQueue(conn, overflowPolicy, codec, brief, queueCapacity, resyncThreshold,
+            socketBacklog, batchSize, batchDelayMs, compression, frameBuffers, writeStage, traffic, writerExecutor) {
+            generateTopology(filter, normalize)
+        }
+
+        if (brief) {
+            briefSessions.incrementAndGet()
+        }
+        journalLock.withLock {
+            // Focused sessions start over, their neighborhood may well have moved while they were away
+            val missed = request.resumeFrom?.takeIf { filter.focus == null }?.let { journal.since(it, seq, filter) }
+            if (missed != null) {
+                log.info("Resuming connection '$conn' with '${missed.size}' missed messages")
+                outboundQueue.resume(missed, seq)
+            } else {
+                // Send over the initial topology, anything published after this is queued behind it
+                outboundQueue.resync()
+            }
+            outboundQueues[conn] = outboundQueue
+            subscribers.subscribe(conn, filter)
+        }
 
-        // On subscribe send over the initial topology
-        conn.send(generateTopology(filterCriteria))
+        val remoteAddress = conn.remoteSocketAddress?.toString() ?: conn.toString()
+        val name = sessionObjectName(port, remoteAddress)
+        sessionBeans[conn] = name
+        registerMXBean(name, SessionBean(outboundQueue, remoteAddress, filterCriteria.toString()),
+            SessionMXBean::class.java)
     }
 
     private fun unsubscribeConnection(conn: WebSocket) {
         requireNotNull(subscribers[conn])
         log.info("Received unsubscribe request from connection '$conn'")
-        subscribers.remove(conn)
+        subscribers.unsubscribe(conn)
+        outboundQueues.remove(conn)?.let { outboundQueue ->
+            if (outboundQueue.brief) {
+                briefSessions.decrementAndGet()
+            }
+            outboundQueue.close()
+        }
+        sessionBeans.remove(conn)?.let { unregisterMXBean(it) }
+        partitions.executeAll {
+            val released = release(conn)
+            if (released > 0) {
+                log.debug("Released '$released' bytes of node tracking for connection '$conn'")
+            }
+        }
     }
 
-    private fun generateTopology(filterCriteria: FilterCriteria): ByteArray {
-        val alarms = alarmDao.alarms
-            .filter { filterAlarm(it, filterCriteria) }
-            .let { if (it.isNotEmpty()) it.toSet() else null }
-        val nodes = nodeDao.nodes
-            .filter { filterNode(it, filterCriteria) }
-            .let { if (it.isNotEmpty()) it.toSet() else null }
-        val edges = edgeDao.edges
-            .filter { filterEdge(it, filterCriteria) }
-            .let { if (it.isNotEmpty()) it.toSet() else null }
+    /**
+     * Queues the numbers of the session for it, behind whatever it has queued already.
+     */
+    private fun sendStats(conn: WebSocket) {
+        val outboundQueue = outboundQueues[conn]
+        if (outboundQueue == null) {
+            log.warn("Ignoring stats request from unsubscribed connection '$conn'")
+            return
+        }
 
-        val topology = topologyMessage(Topology(alarms = alarms, nodes = nodes, edges = edges))        
-        return mapper.writeValueAsBytes(topology)
+        val message = statsMessage(outboundQueue.stats())
+        outboundQueue.offer(OutboundMessage(null, message.type) { codec -> encode(message, codec) })
     }
 
-    private fun generateAlarmReceivers(alarm: Alarm): Set<WebSocket>? {
-        val receivers = generateReceivers(alarm.node.location)
-        log.trace("Receivers for alarm '$alarm' are '$receivers'")
+    /**
+     * Queues the whole of the alarm, node or event asked for behind whatever the session has queued already. Anything
+     * the session's filter wouldn't let through is answered as not found, as are events that are no longer cached.
+     */
+    private fun sendDetail(conn: WebSocket, request: StreamRequest) {
+        val outboundQueue = outboundQueues[conn]
+        val filter = subscribers[conn]
+        if (outboundQueue == null || filter == null) {
+            log.warn("Ignoring detail request from unsubscribed connection '$conn'")
+            return
+        }
+        val type = requireNotNull(request.detailType) { "Missing detail type" }
+        val id = requireNotNull(request.detailId) { "Missing detail id" }
+
+        val detail = when (type) {
+            DetailType.Alarm -> topologyView.alarm(id)
+                ?.takeIf { filter.matches(Subject.of(it)) }
+                ?.let { Detail(type, id, alarm = it) }
+            DetailType.Node -> id.toIntOrNull()?.let { topologyView.node(it) }
+                ?.takeIf { filter.matches(Subject.of(it)) }
+                ?.let { Detail(type, id, node = it) }
+            DetailType.Event -> id.toLongOrNull()?.let { journalLock.withLock { recentEvents[it] } }
+                ?.takeIf { event ->
+                    topologyView.node(event.nodeId)?.let { filter.matches(Subject.ofEvents(it, listOf(event.uei))) }
+                        ?: false
+                }
+                ?.let { Detail(type, id, event = it) }
+        } ?: Detail(type, id)
 
-        return receivers
+        val message = detailMessage(detail)
+        outboundQueue.offer(OutboundMessage(null, message.type) { codec ->
+            detailEncoders.getValue(codec).encode(message)
+        })
     }
 
-    private fun generateNodeReceivers(node: Node): Set<WebSocket>? {
-        val receivers = generateReceivers(node.location)?.filter {
-            return@filter nodeIdsBySession[it]?.let { nodes ->
-                !nodes.contains(node.id)
-            } ?: true
+    /**
+     * Stamps the message with the next sequence number, journals it and queues it for the receivers. Only the stamping
+     * and journaling are done under the journal lock, the receivers are resolved and offered the message outside of
+     * it, the offers taking their turn by sequence number.
+     *
+     * @param subject what the message is about, used to filter the journal on resume
+     * @param receivers resolved once the message is journaled, null when there are none
+     */
+    private fun publish(key: String?, message: StreamMessage, subject: Subject, receivers: () -> Set<WebSocket>?) =
+        publish(key, message, { it.matches(subject) }, receivers)
+
+    private fun publish(key: String?, message: StreamMessage, audience: (MessageFilter) -> Boolean,
+                        receivers: () -> Set<WebSocket>?) {
+        // Taken before the message is stamped, so that nothing can fail between a sequence number being handed out and
+        // it taking its turn below. Only taken while someone wants briefs, the others are sent the message whole.
+        val unstampedBrief = if (briefSessions.get() > 0) brief(message) else null
+
+        val (entry, outboundMessage) = journalLock.withLock {
+            val stamped = message.copy(seq = ++seq)
+            (message.payload as? InMemoryEvent)?.let { recentEvents[seq] = it }
+            val brief = unstampedBrief?.stamped(seq)?.let { brief ->
+                OutboundMessage(key, brief.type, seq = seq) { codec -> encode(brief, codec) }
+            }
+            val outboundMessage = OutboundMessage(key, message.type, brief = brief, seq = seq) { codec ->
+                encode(stamped, codec)
+            }
+            val entry = Journal.Entry(seq, outboundMessage, audience)
+            journal.append(entry)
+            entry to outboundMessage
         }
-            ?.toSet()
 
-        log.trace("Receivers for node '$node' are '$receivers'")
+        var sessions: Set<WebSocket>? = null
+        try {
+            sessions = receivers()
+            receiversPerBroadcast.record(sessions?.size?.toLong() ?: 0)
+            sessions?.let { encodeAhead(outboundMessage, it) }
+        } finally {
+            // Takes its turn even when there is no one to offer it to, the deltas after it would wait for it otherwise
+            val offeredTo = sessions
+            offers.dispatch(entry.seq) {
+                offeredTo?.forEach { outboundQueues[it]?.offer(outboundMessage) }
+            }
+        }
+        seal(entry, outboundMessage)
+    }
 
-        return receivers
+    private fun brief(message: StreamMessage) = try {
+        message.toBrief()
+    } catch (e: Exception) {
+        log.warn("Failed to take the brief of '${message.type}' message, sending it whole", e)
+        null
     }
 
-    private fun generateEdgeReceivers(edge: TopologyEdge, nodeCallback: ((Node?, Node?) -> Unit)?): Set<WebSocket>? {
-        var sourceNode: Node? = null
-        var targetNode: Node? = null
-        val edgeVisitor = object : TopologyEdge.EndpointVisitor {
-            override fun visitSource(node: Node) {
-                sourceNode = node
+    /**
+     * Has the journaled message encoded in JSON on the encoding stage, the journal keeps the encoding rather than the
+     * message from then on. Sessions using JSON share the encoding, so it mostly comes for free.
+     */
+    private fun seal(entry: Journal.Entry, message: OutboundMessage) {
+        val seal = Runnable {
+            try {
+                val json = message.bytes(Codec.JSON)
+                val briefJson = message.brief?.bytes(Codec.JSON)
+                journalLock.withLock { journal.seal(entry, json, briefJson) }
+            } catch (e: Exception) {
+                log.warn("Failed to seal journaled message '${entry.seq}'", e)
             }
+        }
+        encoderExecutor?.execute(seal) ?: seal.run()
+    }
 
-            override fun visitTarget(node: Node) {
-                targetNode = node
+    /**
+     * Re-encodes a message journaled in JSON for a session resuming with another codec.
+     */
+    private fun transcode(json: ByteArray, codec: Codec) =
+        encodeStages.getValue(codec).time { encoders.getValue(codec).encode(mapper.readTree(json)) }
+
+    private fun encode(message: StreamMessage, codec: Codec) =
+        encodeStages.getValue(codec).time { encoders.getValue(codec).encode(message) }
+
+    /**
+     * Has the message encoded on the encoding stage in the codecs its receivers use, so that the writers (which would
+     * otherwise encode it themselves) find it ready.
+     */
+    private fun encodeAhead(message: OutboundMessage, receivers: Set<WebSocket>) {
+        val executor = encoderExecutor ?: return
+        val forms = receivers.mapNotNullTo(HashSet()) { conn ->
+            outboundQueues[conn]?.let { it.form(message) to it.codec }
+        }
+        forms.forEach { (form, codec) ->
+            executor.execute {
+                try {
+                    form.bytes(codec)
+                } catch (e: Exception) {
+                    log.warn("Failed to encode message with codec '$codec'", e)
+                }
             }
         }
+    }
 
-        edge.visitEndpoints(edgeVisitor)
-        nodeCallback?.invoke(sourceNode, targetNode)
+    /**
+     * @param normalize whether to send the chunks as [NormalizedTopology]s, normalized in order so that each one only
+     * adds to the tables of the ones before it
+     */
+    private fun generateTopology(filter: MessageFilter, normalize: Boolean): Iterator<OutboundMessage> {
+        // Every delta up to here has already been applied to the view, so the snapshot is at least this current
+        val snapshotSeq = journalLock.withLock { seq }
+        val chunks = snapshotStage.time { topologyView.snapshot(filter, snapshotChunkSize) }
+        val begin = TopologyBegin(
+            nodes = chunks.sumBy { it.nodes?.size ?: 0 },
+            edges = chunks.sumBy { it.edges?.size ?: 0 },
+            alarms = chunks.sumBy { it.alarms?.size ?: 0 }
+        )
+
+        // Built (and normalized, in order) one chunk at a time as the writer gets to it. The encoding isn't cached, it
+        // is only ever written to this one session and let go of once it is.
+        val normalizer = if (normalize) TopologyNormalizer(projection) else null
+        val messages = sequenceOf(topologyBeginMessage(begin)) +
+                chunks.asSequence().map { chunk ->
+                    normalizer?.let { normalizedTopologyChunkMessage(it.normalize(chunk)) } ?: topologyChunkMessage(chunk)
+                } +
+                sequenceOf(topologyEndMessage(TopologyEnd(chunks.size)).copy(seq = snapshotSeq))
+        return messages
+            .map { message -> OutboundMessage(null, message.type, cached = false) { codec -> encode(message, codec) } }
+            .iterator()
+    }
 
-        val receivers = if (sourceNode == null || targetNode == null) null else {
-            subscribers
-                .filter { filterEdge(edge, it.value) }
-                .map { it.key }
-                .let { if (it.isNotEmpty()) it else null }
-                ?.toSet()
-        }
+    private fun generateAlarmReceivers(alarm: Alarm, subject: Subject): Set<WebSocket>? {
+        val receivers = generateReceivers(subject)
+        log.trace("Receivers for alarm '$alarm' are '$receivers'")
+
+        return receivers
+    }
+
+    private fun Partition.generateNodeReceivers(node: Node, subject: Subject): Set<WebSocket>? {
+        val receivers = generateReceivers(subject)?.filter { !hasSeen(it, node.id) }?.toSet()
+
+        log.trace("Receivers for node '$node' are '$receivers'")
+
+        return receivers
+    }
+
+    private fun generateEdgeReceivers(edge: TopologyEdge, subject: Subject): Set<WebSocket>? {
+        val receivers = generateReceivers(subject)
 
         log.trace("Receivers for edge '$edge' are '$receivers'")
 
         return receivers
     }
 
-    private fun generateReceivers(location: String): Set<WebSocket>? {
-        val receivers = subscribers.filter { it.value.locations?.contains(location) ?: true }
-            .map { it.key }
-            .toSet()
+    private fun generateReceivers(subject: Subject): Set<WebSocket>? {
+        val receivers = subscribers.receivers(subject)
 
         return if (receivers.isNotEmpty()) receivers else null
     }
 
-    private fun handleNode(node: Node) {
-        nodeLock.withLock {
-            generateNodeReceivers(node)?.let { receivers ->
-                nodeCache[node.id] = node
-                broadcast(mapper.writeValueAsBytes(nodeMessage(node)), receivers)
+    private fun Partition.handleNode(node: Node, immediate: Boolean = false) {
+        topologyView.putNode(node)
 
+        if (immediate) {
+            coalescer.emitNow(nodeKey(node.id)) { publishNode(node) }
+        } else {
+            coalescer.submit(nodeKey(node.id)) { publishNode(node) }
+        }
+    }
+
+    private fun Partition.publishNode(node: Node) {
+        val subject = Subject.of(node)
+        publish(nodeKey(node.id), nodeMessage(node), subject) {
+            generateNodeReceivers(node, subject)?.also { receivers ->
                 // Record that these receivers have seen this node
-                receivers.forEach {
-                    nodeIdsBySession.compute(it) { _, nodeIds -> (nodeIds ?: mutableSetOf()).apply { add(node.id) } }
-                }
+                receivers.forEach { markSeen(it, node.id) }
             }
         }
     }
@@ -182,8 +618,10 @@ class OiaWebSocketServer(
         val request = mapper.readValue<StreamRequest>(message)
 
         when (request.action) {
-            RequestAction.SUBSCRIBE -> subscribeConnection(conn, request.criteria ?: FilterCriteria())
+            RequestAction.SUBSCRIBE -> subscribeConnection(conn, request)
             RequestAction.UNSUBSCRIBE -> unsubscribeConnection(conn)
+            RequestAction.STATS -> sendStats(conn)
+            RequestAction.DETAIL -> sendDetail(conn, request)
         }
     }
 
@@ -196,40 +634,69 @@ class OiaWebSocketServer(
     }
 
     override fun handleDeletedAlarm(alarmId: Int, reductionKey: String?) {
-        requireNotNull(reductionKey)
+        if (reductionKey == null) {
+            log.warn("Ignoring deleted alarm '$alarmId' without a reduction key")
+            return
+        }
 
         log.trace("Received deleted alarm with reduction key '$reductionKey'")
 
-        if (subscribers.isEmpty()) {
-            log.debug("No subscribers to notify for alarm")
-            return
-        }
+        val partitionKey = alarmPartitionKeys.remove(alarmId)
+            ?: topologyView.alarm(alarmId)?.let { alarmPartitionKey(it) }
+            ?: return
+
+        partitions.execute(partitionKey) { deleteAlarm(alarmId, reductionKey) }
+    }
 
-        alarmLock.withLock {
-            alarmCache[alarmId]?.let { alarm ->
-                generateAlarmReceivers(alarm)?.let { receivers ->
+    private fun Partition.deleteAlarm(alarmId: Int, reductionKey: String) {
+        val alarm = topologyView.removeAlarm(alarmId) ?: return
+        alarmFingerprints.remove(alarmId)
+        // Only the sessions that were sent the alarm need to hear of it going away
+        val subject = Subject.of(publishedAlarms.remove(alarmId) ?: alarm)
+
+        // Deletes go out right away, dropping any update still waiting in the coalescing window. Everything is
+        // published even without subscribers, for the journal.
+        coalescer.emitNow(alarmKey(alarmId)) {
+            publish(alarmKey(alarmId), alarmDeleteMessage(reductionKey, alarm.isSituation), subject) {
+                generateAlarmReceivers(alarm, subject)?.also { receivers ->
                     log.debug("Broadcasting alarm delete for reduction key '$reductionKey' to receivers '$receivers'")
-                    broadcast(mapper.writeValueAsBytes(alarmDeleteMessage(reductionKey, alarm.isSituation)), receivers)
                 }
             }
-
-            alarmCache.remove(alarmId)
         }
     }
 
     override fun handleAlarmSnapshot(alarms: MutableList<Alarm>?) {
         requireNotNull(alarms)
 
-        alarmLock.withLock {
-            val existingAlarms = alarmCache.values.toSet()
-            val snapshotAlarms = alarms.toSet()
-
-            (snapshotAlarms - existingAlarms).forEach { handleNewOrUpdatedAlarm(it) }
-            (existingAlarms - snapshotAlarms).forEach { handleDeletedAlarm(it.id, it.reductionKey) }
-
-            alarmCache.clear()
-            alarmCache.putAll(alarms.map { it.id to it })
+        // Reconciled by id on each partition, once the updates already queued on it have landed in the view. The
+        // alarms of the partition that aren't in the snapshot are deleted there and then, ahead of anything queued
+        // after the snapshot. They are grouped by partition once, here, so that each partition only goes through its
+        // own. Those with updates still queued aren't in the view yet but their partition key is known already.
+        val snapshotIds = alarms.mapTo(HashSet(alarms.size * 2)) { it.id }
+        val missing = HashMap<Int, MutableList<Pair<Int, Int>>>()
+        val grouped = IntBitmap()
+        val group = { alarmId: Int, partitionKey: Int ->
+            if (alarmId !in snapshotIds && grouped.add(alarmId)) {
+                missing.getOrPut(partitions.partitionOf(partitionKey)) { ArrayList() }.add(alarmId to partitionKey)
+            }
         }
+        alarmPartitionKeys.forEach { (alarmId, partitionKey) -> group(alarmId, partitionKey) }
+        topologyView.alarms().forEach { group(it.id, alarmPartitionKey(it)) }
+
+        partitions.executeEach { partition ->
+            missing[partition]?.forEach { (alarmId, partitionKey) ->
+                val alarm = topologyView.alarm(alarmId) ?: return@forEach
+                val reductionKey = alarm.reductionKey
+                if (reductionKey == null) {
+                    log.warn("Ignoring alarm '$alarmId' without a reduction key missing from the snapshot")
+                    return@forEach
+                }
+                alarmPartitionKeys.remove(alarmId, partitionKey)
+                deleteAlarm(alarmId, reductionKey)
+            }
+        }
+        // Alarms in the snapshot that haven't changed are suppressed by their fingerprint
+        alarms.forEach { handleNewOrUpdatedAlarm(it) }
     }
 
     override fun handleNewOrUpdatedAlarm(alarm: Alarm?) {
@@ -237,35 +704,76 @@ class OiaWebSocketServer(
 
         log.trace("Received new or updated alarm '$alarm'")
 
-        if (subscribers.isEmpty()) {
-            log.debug("No subscribers to notify for alarm")
-            return
-        }
+        val partitionKey = alarmPartitionKey(alarm)
+        alarmPartitionKeys[alarm.id] = partitionKey
+
+        partitions.execute(partitionKey) {
+            val fingerprint = alarmFingerprint.of(alarm)
+            if (alarmFingerprints.put(alarm.id, fingerprint) == fingerprint) {
+                log.trace("Suppressing alarm '${alarm.id}' that clients wouldn't see a change in")
+                alarmUpdatesSuppressed.increment()
+                // Still the most recent one, for snapshots
+                topologyView.putAlarm(alarm)
+                return@execute
+            }
+
+            // Alarms at or above the bypass severity skip the coalescing window, along with their node
+            val immediate = alarm.severity != null && alarm.severity >= coalesceBypassSeverity
+
+            alarm.node?.let { handleNode(it, immediate) }
+            topologyView.putAlarm(alarm)
 
-        handleNode(alarm.node)
+            val publishAlarm: () -> Unit = {
+                alarmUpdatesSent.increment()
+                val subject = Subject.of(alarm)
+                publishedAlarms.put(alarm.id, alarm)?.let { publishAlarmDropped(it, Subject.of(it), subject) }
+                publish(alarmKey(alarm.id), alarmMessage(alarm), subject) {
+                    generateAlarmReceivers(alarm, subject)?.also { receivers ->
+                        log.debug("Broadcasting alarm '$alarm' to receivers '$receivers'")
+                    }
+                }
+            }
 
-        alarmLock.withLock {
-            alarmCache[alarm.id] = alarm
-            generateAlarmReceivers(alarm)?.let { receivers ->
-                log.debug("Broadcasting alarm '$alarm' to receivers '$receivers'")
-                broadcast(mapper.writeValueAsBytes(alarmMessage(alarm)), receivers)
+            if (immediate) {
+                coalescer.emitNow(alarmKey(alarm.id), publishAlarm)
+            } else {
+                coalescer.submit(alarmKey(alarm.id), publishAlarm)
             }
         }
     }
 
+    /**
+     * Sends a delete for the alarm to the sessions that were sent it as it was [before] but that don't want it as it is
+     * [after], e.g. because it dropped below their minimum severity.
+     */
+    private fun publishAlarmDropped(alarm: Alarm, before: Subject, after: Subject) {
+        publish(alarmKey(alarm.id), alarmDeleteMessage(alarm.reductionKey, alarm.isSituation),
+            { it.matches(before) && !it.matches(after) }) {
+            val receivers = generateReceivers(before)?.let { receivers ->
+                generateReceivers(after)?.let { receivers - it } ?: receivers
+            }
+            receivers?.takeIf { it.isNotEmpty() }?.also {
+                log.debug("Broadcasting alarm delete for reduction key '${alarm.reductionKey}' to receivers '$it' " +
+                        "that no longer match the alarm")
+            }
+        }
+    }
+
+    // Alarms are handled along with their node, if they have one
+    private fun alarmPartitionKey(alarm: Alarm) = alarm.node?.id ?: alarm.id
+
     override fun onEdgeDeleted(topologyEdge: TopologyEdge?) {
         requireNotNull(topologyEdge)
 
         log.trace("Received deleted edge '$topologyEdge'")
 
-        if (subscribers.isEmpty()) {
-            log.debug("No subscribers to notify for edge delete")
-            return
-        }
+        executeForEdge(topologyEdge, {}) { endpoints ->
+            topologyView.removeEdge(topologyEdge)
+            updateNeighborhoods(endpoints)
 
-        generateEdgeReceivers(topologyEdge, null)?.let { receivers ->
-            log.debug("Broadcasting edge delete '$topologyEdge' to receivers '$receivers'")
-            broadcast(mapper.writeValueAsBytes(edgeDeleteMessage(topologyEdge)), receivers)
+            coalescer.emitNow(edgeKey(topologyEdge)) {
+                publishEdge(topologyEdge, edgeDeleteMessage(topologyEdge), endpoints)
+            }
         }
     }
 
@@ -276,19 +784,110 @@ class OiaWebSocketServer(
 
         log.trace("Received new or updated edge '$topologyEdge'")
 
-        if (subscribers.isEmpty()) {
-            log.debug("No subscribers to notify for edge")
+        // The endpoints have to reach the subscribers before the edge that refers to them
+        executeForEdge(topologyEdge, { handleNode(it, true) }) { endpoints ->
+            topologyView.putEdge(topologyEdge)
+            updateNeighborhoods(endpoints)
+
+            coalescer.submit(edgeKey(topologyEdge)) {
+                publishEdge(topologyEdge, edgeMessage(topologyEdge), endpoints)
+            }
+        }
+    }
+
+    /**
+     * Runs [nodeTask] for each of the edge's node endpoints on the node's partition and then [task] on the partition
+     * of the last one, so that everything for the edge takes the same path and stays in order.
+     */
+    private fun executeForEdge(edge: TopologyEdge, nodeTask: Partition.(Node) -> Unit,
+                               task: Partition.(EdgeEndpoints) -> Unit) {
+        val endpoints = EdgeEndpoints.of(edge)
+        val nodes = listOfNotNull(endpoints.sourceNode, endpoints.targetNode)
+
+        fun executeFrom(i: Int) {
+            val node = nodes.getOrNull(i)
+            partitions.execute(node?.id ?: edgeKey(edge).hashCode()) {
+                node?.let { nodeTask(it) }
+                if (i + 1 < nodes.size) executeFrom(i + 1) else task(endpoints)
+            }
+        }
+
+        executeFrom(0)
+    }
+
+    private fun publishEdge(edge: TopologyEdge, message: StreamMessage, endpoints: EdgeEndpoints) {
+        val sourceNode = endpoints.sourceNode
+        val targetNode = endpoints.targetNode
+
+        // Edges that don't connect two nodes aren't streamed
+        if (sourceNode == null || targetNode == null) {
+            log.trace("Not publishing edge '$edge' without two node endpoints")
             return
         }
 
-        generateEdgeReceivers(topologyEdge) { sourceNode, targetNode ->
-            sourceNode?.let { handleNode(it) }
-            targetNode?.let { handleNode(it) }
+        val subject = Subject.of(edge, endpoints)
+        publish(edgeKey(edge), message, subject) {
+            generateEdgeReceivers(edge, subject)?.also { receivers ->
+                log.debug("Broadcasting ${message.type} '$edge' to receivers '$receivers'")
+            }
         }
-            ?.let { receivers ->
-                log.debug("Broadcasting edge '$topologyEdge' to receivers '$receivers'")
-                broadcast(mapper.writeValueAsBytes(edgeMessage(topologyEdge)), receivers)
+    }
+
+    /**
+     * Walks the neighborhoods of the focused subscriptions that include one of the edge's endpoints again, after the
+     * edge came or went. The sessions are sent the nodes that entered their neighborhood along with their edges and
+     * alarms, and told to drop the ones that left it.
+     */
+    private fun updateNeighborhoods(endpoints: EdgeEndpoints) {
+        val nodeIds = listOfNotNull(endpoints.sourceNode?.id, endpoints.targetNode?.id)
+        if (nodeIds.size < 2) {
+            // Not an edge between nodes, it doesn't figure in any neighborhood
+            return
+        }
+
+        subscribers.focusFilters().forEach { filter ->
+            synchronized(filter) {
+                val before = filter.neighborhood ?: return@synchronized
+                if (nodeIds.none { it in before }) {
+                    return@synchronized
+                }
+
+                val after = topologyView.neighborhood(filter.focus!!, filter.hops)
+                if (after == before) {
+                    return@synchronized
+                }
+
+                // Updated first, anything published from here on is matched against the new neighborhood
+                filter.neighborhood = after
+                val entered = after - before
+                val left = before - after
+                log.debug("Neighborhood of '$filter' changed, '${entered.size}' nodes entered and '${left.size}' left")
+
+                publishEntered(filter, entered)
+                left.forEach { publishLeft(filter, it) }
             }
+        }
+    }
+
+    private fun publishEntered(filter: MessageFilter, nodeIds: Set<Int>) {
+        val topology = topologyView.entered(nodeIds, filter)
+        val audience: (MessageFilter) -> Boolean = { it === filter }
+        val receivers = { subscribers.receivers(filter).let { if (it.isNotEmpty()) it else null } }
+
+        topology.nodes?.forEach { publish(nodeKey(it.id), nodeMessage(it), audience, receivers) }
+        topology.edges?.forEach { publish(edgeKey(it), edgeMessage(it), audience, receivers) }
+        topology.alarms?.forEach { publish(alarmKey(it.id), alarmMessage(it), audience, receivers) }
+    }
+
+    private fun publishLeft(filter: MessageFilter, nodeId: Int) {
+        val audience: (MessageFilter) -> Boolean = { it === filter }
+        val receivers = { subscribers.receivers(filter).let { if (it.isNotEmpty()) it else null } }
+
+        topologyView.alarmsOf(nodeId).forEach { alarm ->
+            publish(alarmKey(alarm.id), alarmDeleteMessage(alarm.reductionKey, alarm.isSituation), audience, receivers)
+        }
+        // Takes the node's edges with it
+        publish(nodeKey(nodeId), nodeDeleteMessage(nodeId), audience, receivers)
     }
 
     override fun getName() = "OiaWebSocketServer"
@@ -303,17 +902,91 @@ class OiaWebSocketServer(
             return
         }
 
-        log.info("Checking if node needs to be derived")
-        val node = nodeCache[event.nodeId] ?: run {
-            log.info("Attempting to derive node for id '${event.nodeId}'")
-            val foundNode = nodeDao.getNodeById(event.nodeId) ?: error("Could not find node with id '${event.nodeId}'")
-            handleNode(foundNode)
-            foundNode
+        partitions.execute(event.nodeId) {
+            val node = topologyView.node(event.nodeId)
+            if (node != null) {
+                events.submit(node, event)
+            } else {
+                resolveNode(event.nodeId, event)
+            }
         }
+    }
 
-        generateNodeReceivers(node)?.let { receivers ->
-            log.debug("Broadcasting event '$event' to receivers '$receivers'")
-            broadcast(mapper.writeValueAsBytes(eventMessage(event)), receivers)
+    /**
+     * Looks up a node that isn't in the view yet off of the partition, holding on to its events until it is found.
+     * Nodes that can't be found are not looked up again for [missingNodeTtlMs].
+     */
+    private fun Partition.resolveNode(nodeId: Int, event: InMemoryEvent) {
+        val now = System.currentTimeMillis()
+        if (missingNodes[nodeId]?.let { it > now } == true) {
+            log.trace("Ignoring event for missing node '$nodeId'")
+            return
+        }
+
+        unresolvedEvents[nodeId]?.let { pending ->
+            // Already being looked up
+            if (pending.size < MAX_UNRESOLVED_EVENTS) {
+                pending.add(event)
+            }
+            return
+        }
+        unresolvedEvents[nodeId] = mutableListOf(event)
+
+        log.debug("Looking up node '$nodeId'")
+        nodeResolver.execute {
+            val node = try {
+                nodeDao.getNodeById(nodeId)
+            } catch (e: Exception) {
+                log.warn("Failed to look up node '$nodeId'", e)
+                null
+            }
+            partitions.execute(nodeId) { nodeResolved(nodeId, node) }
+        }
+    }
+
+    private fun Partition.nodeResolved(nodeId: Int, node: Node?) {
+        val pending = unresolvedEvents.remove(nodeId) ?: mutableListOf()
+        if (node == null) {
+            log.warn("Could not find node with id '$nodeId', dropping '${pending.size}' events")
+            val now = System.currentTimeMillis()
+            if (missingNodes.size >= MAX_MISSING_NODES) {
+                missingNodes.values.removeIf { it <= now }
+            }
+            missingNodes[nodeId] = now + missingNodeTtlMs
+            return
+        }
+
+        handleNode(node)
+        pending.forEach { events.submit(node, it) }
+    }
+
+    private fun Partition.publishEvent(node: Node, message: StreamMessage, ueis: Collection<String>) {
+        // Make sure the node the event refers to is not still waiting in the coalescing window
+        coalescer.flush(nodeKey(node.id))
+
+        val subject = Subject.ofEvents(node, ueis)
+        publish(null, message, subject) {
+            generateReceivers(subject)?.also { receivers ->
+                log.debug("Broadcasting ${message.type} for node '${node.id}' to receivers '$receivers'")
+            }
         }
     }
-}
\ No newline at end of file
+
+    private companion object {
+        const val MAX_UNRESOLVED_EVENTS = 1000
+        const val MAX_MISSING_NODES = 10000
+        // Enough for a full batch of alarms, larger frames are left to the garbage collector
+        const val MAX_POOLED_FRAME_CAPACITY = 256 * 1024
+    }
+}
+
+private fun alarmKey(alarmId: Int) = "alarm:$alarmId"
+private fun nodeKey(nodeId: Int) = "node:$nodeId"
+private fun edgeKey(edge: TopologyEdge) = "edge:${TopologyView.edgeKey(edge)}"
+
+private fun WebSocket.isDeflated() = (draft as? Draft_6455)?.extension is PerMessageDeflateExtension
+
+internal fun namedThreadFactory(prefix: String): ThreadFactory {
+    val counter = AtomicInteger()
+    return ThreadFactory { runnable -> Thread(runnable, "$prefix-${counter.incrementAndGet()}").apply { isDaemon = true } }
+}
@@ -0,0 +1,448 @@
+package org.opennms.oia.streaming
+
+import org.java_websocket.WebSocket
+import org.java_websocket.WebSocketImpl
+import org.java_websocket.exceptions.WebsocketNotConnectedException
+import org.java_websocket.framing.CloseFrame
+import org.opennms.oia.streaming.model.Codec
+import org.opennms.oia.streaming.model.MessageType
+import org.opennms.oia.streaming.model.OverflowPolicy
+import org.opennms.oia.streaming.model.SessionStats
+import org.slf4j.LoggerFactory
+import java.io.ByteArrayOutputStream
+import java.util.*
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * A message waiting to be written to one or more sessions.
+ *
+ * The message is encoded once per codec, either ahead of time by the encoding stage or otherwise by the first writer
+ * that needs it, and the encoded form is then shared by every session using that codec. Either way the encoding cost
+ * is kept off of the thread that published it.
+ *
+ * @param key identifies the entity the message is about (if any) so that updates to the same entity can be conflated
+ * @param type what kind of message it is, null for snapshot markers
+ * @param brief the message to send instead to sessions that asked for briefs, if it has a brief form
+ * @param seq the sequence number it was published with, null for messages sent to a single session
+ * @param cached whether to keep the encodings, messages written to a single session once (i.e. snapshot chunks) are
+ * encoded as they are written instead
+ */
+internal class OutboundMessage(
+    val key: String?,
+    val type: MessageType?,
+    val isSnapshot: Boolean = false,
+    val brief: OutboundMessage? = null,
+    val seq: Long? = null,
+    val cached: Boolean = true,
+    private val encoder: (Codec) -> ByteArray
+) {
+    // For the latency of the stages the message goes through
+    val createdAt = System.nanoTime()
+
+    private val encoded = EnumMap<Codec, ByteArray>(Codec::class.java)
+    private val compressed = EnumMap<Codec, ByteArray>(Codec::class.java)
+
+    fun bytes(codec: Codec): ByteArray {
+        if (!cached) {
+            return encoder(codec)
+        }
+        return synchronized(encoded) { encoded.getOrPut(codec) { encoder(codec) } }
+    }
+
+    fun compressedBytes(codec: Codec, compression: EnvelopeCompression): ByteArray = synchronized(compressed) {
+        compressed.getOrPut(codec) { compression.apply(bytes(codec)) }
+    }
+}
+
+/**
+ * The bytes that turn a sequence of already encoded messages into a batch message in a given codec.
+ */
+private class BatchFraming(codec: Codec) {
+    val prefix: ByteArray
+    val separator: ByteArray = if (codec == Codec.JSON) byteArrayOf(','.toByte()) else ByteArray(0)
+    val suffix: ByteArray
+
+    init {
+        val out = ByteArrayOutputStream()
+        val generator = codec.newMapper().factory.createGenerator(out)
+
+        generator.writeStartObject()
+        generator.writeStringField("type", MessageType.Batch.name)
+        generator.writeFieldName("payload")
+        generator.writeStartArray()
+        generator.flush()
+        prefix = out.toByteArray()
+
+        out.reset()
+        generator.writeEndArray()
+        generator.writeEndObject()
+        generator.close()
+        suffix = out.toByteArray()
+    }
+}
+
+/**
+ * A bounded queue of outbound messages for a single session, drained by its own writer running on the shared writer
+ * executor. Publishers only ever enqueue so they are never held up by a slow client.
+ *
+ * When the queue is full the session's [OverflowPolicy] decides what is dropped. Once the session has fallen too far
+ * behind (queued plus dropped updates reaching [resyncThreshold]) the queued updates are discarded in favor of a fresh
+ * snapshot which is generated when the writer gets to it.
+ *
+ * A snapshot is a sequence of chunk messages that are written one per frame, ahead of anything queued after the
+ * snapshot. Each chunk is only built and encoded when it is about to be written and let go of once written, so the
+ * encoded snapshot is never held in memory as a whole. A session whose snapshot fails to be generated or written is
+ * closed, it would be left without a topology otherwise.
+ *
+ * Updates are written in batches of up to [batchSize] messages per frame. A batch is flushed once it is full or once
+ * [batchDelayMs] has passed since the writer was woken up, whichever comes first. Snapshots are always written on
+ * their own. Batches are put together in a buffer from [buffers] which is given back once the batch is sent.
+ *
+ * When [compression] is set, frames are put in the compressed envelope once they are large enough. When [brief] is set,
+ * messages with a brief form are queued in that form.
+ *
+ * @param metrics records how long messages take from being published to being handed to the socket, across sessions
+ * @param traffic counts the messages written, across sessions
+ */
+internal class OutboundQueue(
+    private val conn: WebSocket,
+    private val policy: OverflowPolicy,
+    val codec: Codec,
+    val brief: Boolean,
+    private val capacity: Int,
+    private val resyncThreshold: Int,
+    private val socketBacklog: Int,
+    private val batchSize: Int,
+    private val batchDelayMs: Long,
+    private val compression: EnvelopeCompression?,
+    private val buffers: FrameBufferPool,
+    private val metrics: StageMetrics,
+    private val traffic: MessageCounters,
+    private val executor: ScheduledExecutorService,
+    private val snapshot: () -> Iterator<OutboundMessage>
+) {
+    private val log = LoggerFactory.getLogger(OutboundQueue::class.java)
+
+    private class Slot(var message: OutboundMessage)
+
+    private val queue = ArrayDeque<Slot>()
+    private val pendingByKey = HashMap<String, Slot>()
+
+    private var dropped = 0
+    private var droppedTotal = 0L
+    private var resyncs = 0L
+    private var draining = false
+    private var pendingDrain: ScheduledFuture<*>? = null
+    private var closed = false
+    // Published messages up to this sequence number were replayed from the journal when the session resumed, those
+    // still on their way from their publishers when it did are not queued a second time
+    private var replayedThrough = Long.MIN_VALUE
+
+    private var snapshotMarker: OutboundMessage? = null
+    private var snapshotChunks: Iterator<OutboundMessage>? = null
+    // Whether the frame being written is a chunk of the snapshot, only touched by the writer
+    private var writingSnapshot = false
+
+    // The same as the metrics and traffic, for this session alone
+    private val sendLatency = StageMetrics("send")
+    private val sent = MessageCounters()
+
+    val depth: Int
+        get() = synchronized(this) { queue.size }
+
+    fun offer(offered: OutboundMessage) {
+        val message = form(offered)
+        synchronized(this) {
+            if (closed || offered.seq?.let { it <= replayedThrough } == true) {
+                return
+            }
+
+            if (policy == OverflowPolicy.CONFLATE && message.key != null) {
+                pendingByKey[message.key]?.let { slot ->
+                    slot.message = message
+                    return
+                }
+            }
+
+            if (queue.size >= capacity) {
+                if (policy == OverflowPolicy.DISCONNECT) {
+                    closeUnlocked()
+                    disconnect()
+                    return
+                }
+
+                dropOldest()
+            }
+
+            if (queue.size + dropped >= resyncThreshold) {
+                resyncs++
+                resyncUnlocked()
+            } else {
+                enqueue(message)
+            }
+        }
+    }
+
+    /**
+     * The message in the form this session is sent it.
+     */
+    fun form(message: OutboundMessage) = if (brief) message.brief ?: message else message
+
+    /**
+     * Queues the messages the session missed while it was away, which are those published up to and including
+     * [through].
+     */
+    fun resume(missed: List<OutboundMessage>, through: Long) = synchronized(this) {
+        missed.forEach { offer(it) }
+        replayedThrough = through
+    }
+
+    /**
+     * Discards anything queued and queues a fresh snapshot.
+     */
+    fun resync() = synchronized(this) {
+        if (!closed) {
+            resyncUnlocked()
+        }
+    }
+
+    fun close() = synchronized(this) { closeUnlocked() }
+
+    fun stats(): SessionStats {
+        val (depth, droppedTotal, resyncs) = synchronized(this) { Triple(queue.size, droppedTotal, resyncs) }
+        return SessionStats(
+            queueDepth = depth,
+            messagesSent = sent.totalMessages,
+            bytesSent = sent.totalBytes,
+            messagesDropped = droppedTotal,
+            resyncs = resyncs,
+            meanSendLatencyMicros = sendLatency.meanLatencyMicros,
+            p99SendLatencyMicros = sendLatency.p99LatencyMicros,
+            maxSendLatencyMicros = sendLatency.maxLatencyMicros,
+            messagesByType = sent.messagesByType()
+        )
+    }
+
+    private fun enqueue(message: OutboundMessage) {
+        val slot = Slot(message)
+        queue.addLast(slot)
+        message.key?.let { pendingByKey[it] = slot }
+
+        if (!draining) {
+            draining = true
+            if (batchSize > 1 && batchDelayMs > 0 && !message.isSnapshot) {
+                // Give the batch a chance to fill up before writing it
+                pendingDrain = executor.schedule(::drain, batchDelayMs, TimeUnit.MILLISECONDS)
+            } else {
+                executor.execute(::drain)
+            }
+        } else if (queue.size >= batchSize) {
+            // A full batch is ready, no need to wait out the deadline
+            pendingDrain?.let { if (it.cancel(false)) executor.execute(::drain) }
+            pendingDrain = null
+        }
+    }
+
+    private fun dropOldest() {
+        val iterator = queue.iterator()
+        while (iterator.hasNext()) {
+            val slot = iterator.next()
+            if (!slot.message.isSnapshot) {
+                iterator.remove()
+                forget(slot)
+                dropped++
+                droppedTotal++
+                return
+            }
+        }
+    }
+
+    private fun resyncUnlocked() {
+        log.debug("Replacing '${queue.size}' queued messages for connection '$conn' with a snapshot")
+        queue.clear()
+        pendingByKey.clear()
+        dropped = 0
+        snapshotChunks = null
+
+        // Stands in for the snapshot in the queue, the snapshot itself is generated once the writer gets to it
+        val marker = OutboundMessage(null, null, true) { error("Snapshot markers are never written") }
+        snapshotMarker = marker
+        enqueue(marker)
+    }
+
+    private fun closeUnlocked() {
+        closed = true
+        queue.clear()
+        pendingByKey.clear()
+        snapshotChunks = null
+    }
+
+    private fun forget(slot: Slot) {
+        slot.message.key?.let { if (pendingByKey[it] === slot) pendingByKey.remove(it) }
+    }
+
+    /**
+     * Takes the next frame worth of messages off of the queue, either the next chunk of the snapshot being written, a
+     * snapshot marker on its own or up to [batchSize] updates.
+     */
+    private fun poll(): List<OutboundMessage>? {
+        val chunks = synchronized(this) {
+            pendingDrain = null
+            snapshotChunks
+        }
+
+        // The chunk is built outside of the lock, only the writer walks the chunks
+        writingSnapshot = chunks != null
+        if (chunks != null) {
+            val chunk = if (chunks.hasNext()) chunks.next() else null
+            synchronized(this) {
+                // Unless a resync or close let go of the snapshot in the meantime
+                if (snapshotChunks === chunks) {
+                    if (chunk != null) {
+                        return listOf(chunk)
+                    }
+                    snapshotChunks = null
+                }
+            }
+        }
+        writingSnapshot = false
+
+        return synchronized(this) { pollQueued() }
+    }
+
+    private fun pollQueued(): List<OutboundMessage>? {
+        if (queue.isEmpty()) {
+            draining = false
+            return null
+        }
+
+        val messages = ArrayList<OutboundMessage>(minOf(queue.size, batchSize))
+        while (messages.size < batchSize) {
+            val slot = queue.peekFirst() ?: break
+            if (slot.message.isSnapshot && messages.isNotEmpty()) {
+                break
+            }
+            queue.pollFirst()
+            forget(slot)
+            messages.add(slot.message)
+            if (slot.message.isSnapshot) {
+                break
+            }
+        }
+        return messages
+    }
+
+    /**
+     * @return the encoded size of each of the messages
+     */
+    private fun send(messages: List<OutboundMessage>): IntArray {
+        if (messages.size == 1) {
+            val message = messages[0]
+            val bytes = message.bytes(codec)
+            conn.send(when {
+                compression == null -> bytes
+                message.cached -> message.compressedBytes(codec, compression)
+                else -> compression.apply(bytes)
+            })
+            return intArrayOf(bytes.size)
+        }
+
+        // The messages are already encoded (and shared with other sessions) so splice them into a batch rather than
+        // encoding them again. The batch is handed to the socket as is, it's copied into the frame as it's sent.
+        return buffers.use { buffer ->
+            val framing = BATCH_FRAMING.getValue(codec)
+            val sizes = IntArray(messages.size)
+            buffer.write(framing.prefix)
+            messages.forEachIndexed { i, message ->
+                if (i > 0) buffer.write(framing.separator)
+                val bytes = message.bytes(codec)
+                buffer.write(bytes)
+                sizes[i] = bytes.size
+            }
+            buffer.write(framing.suffix)
+            conn.send(compression?.apply(buffer) ?: buffer.byteBuffer())
+            sizes
+        }
+    }
+
+    private fun startSnapshot(marker: OutboundMessage) {
+        // Generated outside of the lock so that publishers aren't held up while the view is walked
+        val chunks = try {
+            snapshot()
+        } catch (e: Exception) {
+            failSnapshot(e)
+            return
+        }
+        synchronized(this) {
+            // A resync may have queued a newer snapshot in the meantime, in which case this one is stale
+            if (!closed && snapshotMarker === marker) {
+                snapshotChunks = chunks
+            }
+        }
+    }
+
+    private fun failSnapshot(e: Exception) {
+        log.warn("Failed to send snapshot to connection '$conn', closing it", e)
+        close()
+        executor.execute { conn.close(CloseFrame.UNEXPECTED_CONDITION, "Failed to send snapshot") }
+    }
+
+    private fun socketBacklogged() = ((conn as? WebSocketImpl)?.outQueue?.size ?: 0) > socketBacklog
+
+    private fun drain() {
+        try {
+            for (i in 0 until DRAIN_BATCH) {
+                if (socketBacklogged()) {
+                    // Let the socket catch up before handing it more, updates pile up (and get dropped) here instead
+                    executor.schedule(::drain, BACKLOG_RETRY_MS, TimeUnit.MILLISECONDS)
+                    return
+                }
+
+                val messages = poll() ?: return
+                if (messages[0].isSnapshot) {
+                    startSnapshot(messages[0])
+                } else {
+                    recordSent(messages, send(messages))
+                }
+            }
+
+            // Yield to the other sessions sharing the writer threads
+            executor.execute(::drain)
+        } catch (e: WebsocketNotConnectedException) {
+            log.debug("Connection '$conn' closed while writing")
+            close()
+        } catch (e: Exception) {
+            if (writingSnapshot) {
+                failSnapshot(e)
+                return
+            }
+            log.warn("Failed to write to connection '$conn'", e)
+            executor.execute(::drain)
+        }
+    }
+
+    private fun recordSent(messages: List<OutboundMessage>, sizes: IntArray) {
+        val now = System.nanoTime()
+        messages.forEachIndexed { i, message ->
+            metrics.record(now - message.createdAt)
+            sendLatency.record(now - message.createdAt)
+            message.type?.let { type ->
+                traffic.record(type, sizes[i])
+                sent.record(type, sizes[i])
+            }
+        }
+    }
+
+    private fun disconnect() {
+        log.warn("Disconnecting slow consumer '$conn' with '$capacity' queued messages")
+        executor.execute { conn.close(CloseFrame.POLICY_VALIDATION, "Slow consumer") }
+    }
+
+    private companion object {
+        const val DRAIN_BATCH = 64
+        const val BACKLOG_RETRY_MS = 10L
+        val BATCH_FRAMING = Codec.values().associate { it to BatchFraming(it) }
+    }
+}
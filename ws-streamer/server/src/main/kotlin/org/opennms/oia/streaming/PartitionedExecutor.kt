@@ -0,0 +1,145 @@
+package org.opennms.oia.streaming
+
+import org.slf4j.LoggerFactory
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Runs tasks on one of a fixed number of single threaded partitions picked by key, so that tasks for the same key run
+ * one at a time in the order they were submitted while tasks for different keys run in parallel.
+ *
+ * Each partition owns a piece of state of type [S] that only its own thread touches, which is how tasks get at it
+ * without locking.
+ *
+ * Tasks are handed over through a preallocated [RingBuffer] per partition, so submitting never takes a lock and the
+ * partition thread is only woken up when it has gone idle. The thread drains the ring in batches, in between the tasks
+ * the state schedules on it. Should a ring fill up, tasks overflow onto an unbounded queue rather than holding up the
+ * submitter (which may well be another partition), and keep going there until the partition has caught up.
+ *
+ * @param metrics records how long tasks take from being submitted to having run
+ */
+internal class PartitionedExecutor<S>(
+    partitionCount: Int,
+    threadFactory: ThreadFactory,
+    private val ringSize: Int = DEFAULT_RING_SIZE,
+    val metrics: StageMetrics = StageMetrics("route"),
+    newState: (ScheduledExecutorService) -> S
+) {
+    private val log = LoggerFactory.getLogger(PartitionedExecutor::class.java)
+
+    private inner class Partition(val executor: ScheduledExecutorService, val state: S) {
+        val ring = RingBuffer<S.() -> Unit>(ringSize)
+        private val overflow = ConcurrentLinkedQueue<Pair<S.() -> Unit, Long>>()
+        // Overflowed tasks not yet taken off the queue, while there are any the ring is skipped to keep the order
+        private val overflowing = AtomicInteger()
+        private val draining = AtomicBoolean()
+
+        fun submit(task: S.() -> Unit) {
+            val submitted = System.nanoTime()
+            if (overflowing.get() > 0 || !ring.offer(task, submitted)) {
+                overflowed.increment()
+                overflowing.incrementAndGet()
+                overflow.add(task to submitted)
+            }
+
+            if (draining.compareAndSet(false, true)) {
+                executor.execute(::drain)
+            }
+        }
+
+        private fun drain() {
+            var ran = 0
+            while (ran < DRAIN_BATCH) {
+                val drained = ring.drain(DRAIN_BATCH - ran) { task, submitted -> run(task, submitted) }
+                ran += drained
+                if (drained > 0) {
+                    continue
+                }
+
+                // Anything still in the ring once an overflowed task is seen was submitted before it
+                val next = overflow.peek() ?: break
+                if (ring.isEmpty()) {
+                    overflow.poll()
+                    overflowing.decrementAndGet()
+                    run(next.first, next.second)
+                    ran++
+                }
+            }
+
+            if (ran == DRAIN_BATCH) {
+                // Let the scheduled tasks have a go before carrying on
+                executor.execute(::drain)
+                return
+            }
+
+            draining.set(false)
+            // Unless a task was submitted after everything was found empty but before it was marked idle
+            if ((!ring.isEmpty() || overflow.isNotEmpty()) && draining.compareAndSet(false, true)) {
+                executor.execute(::drain)
+            }
+        }
+
+        private fun run(task: S.() -> Unit, submitted: Long) {
+            try {
+                state.task()
+            } catch (e: Exception) {
+                log.warn("Failed to run partitioned task", e)
+            }
+            metrics.record(System.nanoTime() - submitted)
+        }
+    }
+
+    init {
+        require(partitionCount > 0) { "At least one partition is needed" }
+    }
+
+    private val overflowed = LongAdder()
+
+    private val partitions = List(partitionCount) {
+        val executor = Executors.newSingleThreadScheduledExecutor(threadFactory)
+        Partition(executor, newState(executor))
+    }
+
+    /**
+     * Tasks that didn't fit in their partition's ring.
+     */
+    val overflows: Long
+        get() = overflowed.sum()
+
+    fun partitionOf(key: Int) = Math.floorMod(key, partitions.size)
+
+    fun execute(key: Int, task: S.() -> Unit) = partitions[partitionOf(key)].submit(task)
+
+    /**
+     * Runs the task once on every partition.
+     */
+    fun executeAll(task: S.() -> Unit) = partitions.forEach { it.submit(task) }
+
+    /**
+     * Runs the task once on every partition, given the partition it runs on as numbered by [partitionOf].
+     */
+    fun executeEach(task: S.(Int) -> Unit) =
+        partitions.forEachIndexed { partition, it -> it.submit { task(partition) } }
+
+    /**
+     * Waits for everything submitted so far to have run.
+     */
+    fun await() {
+        val latch = CountDownLatch(partitions.size)
+        executeAll { latch.countDown() }
+        latch.await()
+    }
+
+    fun shutdown() = partitions.forEach { it.executor.shutdownNow() }
+
+    private companion object {
+        const val DEFAULT_RING_SIZE = 1024
+        const val DRAIN_BATCH = 256
+    }
+}
@@ -0,0 +1,88 @@
+package org.opennms.oia.streaming
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * A bounded lock-free queue for any number of producers and a single consumer, backed by arrays allocated up front.
+ *
+ * Along the lines of Dmitry Vyukov's bounded queue: every slot carries a sequence number telling producers whether it
+ * is free for the lap they are on and telling the consumer whether it has been filled. Producers claim a position by
+ * CAS on the tail and then fill the slot, so a slow producer only ever holds up the consumer at its own slot.
+ *
+ * Each entry comes with a timestamp, kept in a parallel array rather than a wrapper so that offering allocates nothing.
+ */
+internal class RingBuffer<T : Any>(capacity: Int) {
+
+    private val size = Integer.highestOneBit(maxOf(capacity, 2) - 1) shl 1
+    private val mask = size - 1L
+
+    private val sequences = AtomicLongArray(size).apply { for (i in 0 until size) set(i, i.toLong()) }
+    private val items = arrayOfNulls<Any>(size)
+    private val stamps = LongArray(size)
+
+    private val tail = AtomicLong()
+    // Only ever touched by the consumer
+    private var head = 0L
+
+    val capacity: Int
+        get() = size
+
+    /**
+     * @return false if the buffer is full
+     */
+    fun offer(item: T, stamp: Long): Boolean {
+        var position = tail.get()
+        while (true) {
+            val index = (position and mask).toInt()
+            val available = sequences.get(index) - position
+            when {
+                available == 0L -> if (tail.compareAndSet(position, position + 1)) {
+                    items[index] = item
+                    stamps[index] = stamp
+                    // Publishes the slot to the consumer
+                    sequences.lazySet(index, position + 1)
+                    return true
+                } else {
+                    position = tail.get()
+                }
+                // The consumer hasn't freed the slot from the previous lap yet
+                available < 0L -> return false
+                // Another producer got there first
+                else -> position = tail.get()
+            }
+        }
+    }
+
+    /**
+     * Hands up to [max] entries to the [consumer] in the order they were offered. Consumer side only.
+     *
+     * @return the number of entries consumed
+     */
+    fun drain(max: Int, consumer: (T, Long) -> Unit): Int {
+        var drained = 0
+        while (drained < max) {
+            val index = (head and mask).toInt()
+            if (sequences.get(index) != head + 1) {
+                break
+            }
+
+            @Suppress("UNCHECKED_CAST")
+            val item = items[index] as T
+            val stamp = stamps[index]
+            items[index] = null
+            // Frees the slot for the next lap
+            sequences.lazySet(index, head + size)
+            head++
+            drained++
+
+            consumer(item, stamp)
+        }
+        return drained
+    }
+
+    /**
+     * Whether there is nothing left to consume. Consumer side only.
+     */
+    fun isEmpty() = sequences.get((head and mask).toInt()) != head + 1
+}
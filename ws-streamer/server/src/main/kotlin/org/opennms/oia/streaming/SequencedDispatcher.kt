@@ -0,0 +1,56 @@
+package org.opennms.oia.streaming
+
+import org.slf4j.LoggerFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Runs tasks in the order of their sequence numbers, whichever threads hand them over and in whatever order. A task
+ * handed over ahead of its turn is left for the thread that hands over the one it's waiting on, so no thread ever
+ * waits for another.
+ *
+ * Every sequence number from [first] on has to be handed over, exactly once, or the ones after it are never run.
+ */
+internal class SequencedDispatcher(first: Long) {
+    private val log = LoggerFactory.getLogger(SequencedDispatcher::class.java)
+
+    private val pending = ConcurrentHashMap<Long, () -> Unit>()
+    private val draining = AtomicBoolean()
+    @Volatile
+    private var next = first
+
+    /**
+     * The number of tasks handed over that are still waiting for their turn.
+     */
+    val waiting: Int
+        get() = pending.size
+
+    fun dispatch(seq: Long, task: () -> Unit) {
+        pending[seq] = task
+        drain()
+    }
+
+    private fun drain() {
+        while (draining.compareAndSet(false, true)) {
+            try {
+                while (true) {
+                    val task = pending.remove(next) ?: break
+                    next++
+                    try {
+                        task()
+                    } catch (e: Exception) {
+                        log.warn("Failed to run task '${next - 1}'", e)
+                    }
+                }
+            } finally {
+                draining.set(false)
+            }
+
+            // The next task may have been handed over after it was looked for but before the flag was cleared, in
+            // which case the thread that handed it over found the flag still set and left it for this one
+            if (!pending.containsKey(next)) {
+                return
+            }
+        }
+    }
+}
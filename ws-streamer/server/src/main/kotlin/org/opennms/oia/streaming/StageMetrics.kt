@@ -0,0 +1,49 @@
+package org.opennms.oia.streaming
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * What went through a stage of the server's pipeline and how long it took, from being handed to the stage to being
+ * done with it. Cheap enough to record from every thread of the stage at once.
+ */
+class StageMetrics(val name: String) {
+
+    private val started = System.nanoTime()
+    private val latencies = Histogram()
+
+    internal fun record(nanos: Long) = latencies.record(nanos)
+
+    /**
+     * Runs the block and records how long it took.
+     */
+    internal inline fun <T> time(block: () -> T): T {
+        val start = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            record(System.nanoTime() - start)
+        }
+    }
+
+    val processed: Long
+        get() = latencies.count
+
+    val meanLatencyMicros: Double
+        get() = latencies.mean / 1000
+
+    val p99LatencyMicros: Long
+        get() = TimeUnit.NANOSECONDS.toMicros(latencies.percentile(99.0))
+
+    val maxLatencyMicros: Long
+        get() = TimeUnit.NANOSECONDS.toMicros(latencies.max)
+
+    /**
+     * Processed per second on average since the stage was created.
+     */
+    val throughput: Double
+        get() = processed / maxOf(1e-9, (System.nanoTime() - started) / 1e9)
+
+    override fun toString() = "$name: processed=$processed, throughput=${"%.1f".format(throughput)}/s, " +
+            "meanLatency=${"%.1f".format(meanLatencyMicros)}us, p99Latency=${p99LatencyMicros}us, " +
+            "maxLatency=${maxLatencyMicros}us"
+}
@@ -0,0 +1,132 @@
+package org.opennms.oia.streaming
+
+import org.opennms.oia.streaming.model.SessionStats
+import org.slf4j.LoggerFactory
+import java.lang.management.ManagementFactory
+import javax.management.ObjectName
+import javax.management.StandardMBean
+
+/**
+ * The streaming server as seen over JMX, registered as `org.opennms.oia.streaming:type=Server,port=<port>`.
+ */
+interface StreamingServerMXBean {
+    val sessionCount: Int
+
+    /**
+     * The messages written to the sessions by type, the ones in batches counted one by one.
+     */
+    val messagesSentByType: Map<String, Long>
+
+    /**
+     * The encoded size of the messages written to the sessions by type, before any compression.
+     */
+    val bytesSentByType: Map<String, Long>
+
+    val sentAlarmUpdates: Long
+    val suppressedAlarmUpdates: Long
+
+    /**
+     * How many sessions each published message was queued for.
+     */
+    val meanReceiversPerBroadcast: Double
+    val p99ReceiversPerBroadcast: Long
+    val maxReceiversPerBroadcast: Long
+
+    /**
+     * Latency and throughput of routing, of encoding with each codec, of writing and of generating snapshots.
+     */
+    val stageMetrics: List<StageMetrics>
+    val partitionRingOverflows: Long
+
+    /**
+     * The number of entries in each of the server's caches.
+     */
+    val cacheSizes: Map<String, Int>
+    val nodeTrackingHeapBytes: Long
+}
+
+/**
+ * A subscribed session as seen over JMX, registered as
+ * `org.opennms.oia.streaming:type=Session,port=<port>,name=<remote address>`. See [SessionStats] for the numbers.
+ */
+interface SessionMXBean {
+    val remoteAddress: String
+    val codec: String
+    val criteria: String
+    val queueDepth: Int
+    val messagesSent: Long
+    val bytesSent: Long
+    val messagesDropped: Long
+    val resyncs: Long
+    val meanSendLatencyMicros: Double
+    val p99SendLatencyMicros: Long
+    val maxSendLatencyMicros: Long
+    val messagesSentByType: Map<String, Long>
+}
+
+internal class SessionBean(
+    private val queue: OutboundQueue,
+    override val remoteAddress: String,
+    override val criteria: String
+) : SessionMXBean {
+
+    override val codec: String
+        get() = queue.codec.name
+
+    override val queueDepth: Int
+        get() = queue.depth
+
+    override val messagesSent: Long
+        get() = queue.stats().messagesSent
+
+    override val bytesSent: Long
+        get() = queue.stats().bytesSent
+
+    override val messagesDropped: Long
+        get() = queue.stats().messagesDropped
+
+    override val resyncs: Long
+        get() = queue.stats().resyncs
+
+    override val meanSendLatencyMicros: Double
+        get() = queue.stats().meanSendLatencyMicros
+
+    override val p99SendLatencyMicros: Long
+        get() = queue.stats().p99SendLatencyMicros
+
+    override val maxSendLatencyMicros: Long
+        get() = queue.stats().maxSendLatencyMicros
+
+    override val messagesSentByType: Map<String, Long>
+        get() = queue.stats().messagesByType.mapKeys { it.key.name }
+}
+
+private val log = LoggerFactory.getLogger(StreamingServerMXBean::class.java)
+
+internal fun serverObjectName(port: Int) = ObjectName("org.opennms.oia.streaming:type=Server,port=$port")
+
+internal fun sessionObjectName(port: Int, remoteAddress: String) =
+    ObjectName("org.opennms.oia.streaming:type=Session,port=$port,name=${ObjectName.quote(remoteAddress)}")
+
+/**
+ * Registers the bean with the platform MBean server. Failing to do so only costs the visibility, so it is logged
+ * rather than thrown.
+ */
+internal fun <T> registerMXBean(name: ObjectName, bean: T, type: Class<T>) {
+    try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(StandardMBean(bean, type, true), name)
+    } catch (e: Exception) {
+        log.warn("Failed to register MBean '$name'", e)
+    }
+}
+
+internal fun unregisterMXBean(name: ObjectName) {
+    try {
+        val server = ManagementFactory.getPlatformMBeanServer()
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name)
+        }
+    } catch (e: Exception) {
+        log.warn("Failed to unregister MBean '$name'", e)
+    }
+}
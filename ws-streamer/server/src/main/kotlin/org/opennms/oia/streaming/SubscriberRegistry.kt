@@ -0,0 +1,128 @@
+package org.opennms.oia.streaming
+
+import org.java_websocket.WebSocket
+import org.opennms.oia.streaming.model.FilterCriteria
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Tracks the subscribed sessions along with an index from location to the sessions that should receive updates for
+ * that location.
+ *
+ * Sessions are grouped by their criteria, each distinct set of criteria being compiled into a [MessageFilter] once.
+ * The index is rebuilt on subscribe/unsubscribe (rare) so that lookups on the broadcast path (frequent) are a single
+ * map access returning a precomputed immutable set, plus one evaluation per distinct filter that goes beyond locations.
+ */
+internal class SubscriberRegistry {
+
+    private val subscribers = ConcurrentHashMap<WebSocket, MessageFilter>()
+
+    @Volatile
+    private var index = FilterIndex(emptyMap())
+
+    fun isEmpty() = subscribers.isEmpty()
+
+    val size: Int
+        get() = subscribers.size
+
+    /**
+     * The number of distinct filters the sessions are subscribed with.
+     */
+    val filterCount: Int
+        get() = index.sessionsByFilter.size
+
+    operator fun get(conn: WebSocket): MessageFilter? = subscribers[conn]
+
+    /**
+     * The filter for the given criteria, shared with the sessions already subscribed with the same criteria.
+     */
+    fun compile(filterCriteria: FilterCriteria): MessageFilter =
+        subscribers.values.firstOrNull { it.criteria == filterCriteria } ?: MessageFilter.compile(filterCriteria)
+
+    fun subscribe(conn: WebSocket, filter: MessageFilter) = synchronized(this) {
+        subscribers[conn] = filter
+        index = FilterIndex(subscribers.toMap())
+    }
+
+    fun unsubscribe(conn: WebSocket): MessageFilter? = synchronized(this) {
+        subscribers.remove(conn)?.also { index = FilterIndex(subscribers.toMap()) }
+    }
+
+    /**
+     * The sessions interested in the given message. Messages without a location are only of interest to sessions that
+     * are not filtering by location, as are edges with an endpoint without one.
+     */
+    fun receivers(subject: Subject): Set<WebSocket> = index.receivers(subject)
+
+    /**
+     * The sessions subscribed with the given filter.
+     */
+    fun receivers(filter: MessageFilter): Set<WebSocket> = index.sessionsByFilter[filter] ?: emptySet()
+
+    /**
+     * The filters with a focus node, whose neighborhoods have to be kept current.
+     */
+    fun focusFilters(): Collection<MessageFilter> = index.focusFilters
+}
+
+private class FilterIndex(subscribers: Map<WebSocket, MessageFilter>) {
+
+    /**
+     * The filters to consider for a location, split into the sessions whose filter is down to the location (which is
+     * a given here) and the filters that still need to be evaluated.
+     */
+    private class Bucket(filters: Map<MessageFilter, Set<WebSocket>>) {
+        val sessions: Set<WebSocket> = filters.filterKeys { it.isLocationOnly }.values.flatten().toSet()
+        val filtered: List<Pair<MessageFilter, Set<WebSocket>>> = filters.filterKeys { !it.isLocationOnly }.toList()
+
+        fun receivers(subject: Subject, sessions: Set<WebSocket> = this.sessions): Set<WebSocket> {
+            if (filtered.isEmpty()) {
+                return sessions
+            }
+
+            val matched = filtered.filter { (filter, _) -> filter.matches(subject) }
+            return if (matched.isEmpty()) sessions else sessions + matched.flatMap { it.second }
+        }
+    }
+
+    private val wildcard: Bucket
+
+    private val byLocation: Map<String, Bucket>
+
+    private val byLocationPair = ConcurrentHashMap<Pair<String, String>, Set<WebSocket>>()
+
+    val sessionsByFilter = subscribers.entries.groupBy({ it.value }, { it.key }).mapValues { it.value.toSet() }
+
+    val focusFilters = sessionsByFilter.keys.filter { it.focus != null }
+
+    init {
+        val wildcardFilters = sessionsByFilter.filterKeys { it.locations == null }
+        wildcard = Bucket(wildcardFilters)
+
+        val located = mutableMapOf<String, MutableMap<MessageFilter, Set<WebSocket>>>()
+        sessionsByFilter.forEach { (filter, conns) ->
+            filter.locations?.forEach { located.getOrPut(it) { HashMap(wildcardFilters) }[filter] = conns }
+        }
+        byLocation = located.mapValues { (_, filters) -> Bucket(filters) }
+    }
+
+    private fun bucket(location: String?) = location?.let { byLocation[it] } ?: wildcard
+
+    fun receivers(subject: Subject): Set<WebSocket> {
+        val locations = subject.locations
+        if (locations.size == 1 || locations.toSet().size == 1) {
+            return bucket(locations[0]).receivers(subject)
+        }
+
+        val sourceLocation = locations[0]
+        val targetLocation = locations[1]
+        if (sourceLocation == null || targetLocation == null) {
+            return wildcard.receivers(subject)
+        }
+
+        // The filters that need evaluating check the target location themselves
+        val sessions = byLocationPair.computeIfAbsent(sourceLocation to targetLocation) {
+            bucket(sourceLocation).sessions.intersect(bucket(targetLocation).sessions)
+        }
+        return bucket(sourceLocation).receivers(subject, sessions)
+    }
+}
@@ -41,6 +41,7 @@ class WsClient(serverURI: URI) : WebSocketClient(serverURI) {
             
             when(msg.type) {
                 MessageType.Topology -> println(msg.deserializePayload<Topology>())
+                else -> {}
             }
         } catch (e: Exception) {
             e.printStackTrace()
@@ -0,0 +1,311 @@
+package org.opennms.oia.streaming
+
+import org.opennms.integration.api.v1.model.Alarm
+import org.opennms.integration.api.v1.model.Node
+import org.opennms.integration.api.v1.model.TopologyEdge
+import org.opennms.oia.streaming.model.Topology
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+/**
+ * A server side materialized view of the nodes, edges and alarms known to OpenNMS.
+ *
+ * The view is seeded once from the DAOs and then kept current from the alarm and topology callbacks so that the
+ * initial topology for a new subscriber can be built without going back to the database. Entities are partitioned by
+ * location (edges by the pair of their endpoint locations) so that a location filtered snapshot only visits the
+ * partitions it needs. Entities without a location are kept in the null partition. Alarms are indexed by node and edges
+ * by the nodes they connect as well, for the neighborhoods of focused subscribers.
+ */
+internal class TopologyView {
+
+    private val lock = ReentrantReadWriteLock()
+
+    private val nodes = HashMap<Int, Node>()
+    private val nodesByLocation = HashMap<String?, HashMap<Int, Node>>()
+
+    private val alarms = HashMap<Int, Alarm>()
+    private val alarmsByLocation = HashMap<String?, HashMap<Int, Alarm>>()
+    private val alarmsByNode = HashMap<Int?, HashMap<Int, Alarm>>()
+    private val alarmsByReductionKey = HashMap<String, Alarm>()
+
+    private val edges = HashMap<String, TopologyEdge>()
+    private val edgesByLocation = HashMap<Pair<String?, String?>, HashMap<String, TopologyEdge>>()
+    private val adjacency = AdjacencyIndex()
+
+    fun seed(alarms: Collection<Alarm>, nodes: Collection<Node>, edges: Collection<TopologyEdge>) = lock.write {
+        this.nodes.clear()
+        nodesByLocation.clear()
+        this.alarms.clear()
+        alarmsByLocation.clear()
+        alarmsByNode.clear()
+        alarmsByReductionKey.clear()
+        this.edges.clear()
+        edgesByLocation.clear()
+        adjacency.clear()
+
+        nodes.forEach { putNodeUnlocked(it) }
+        alarms.forEach { putAlarmUnlocked(it) }
+        edges.forEach { putEdgeUnlocked(it) }
+    }
+
+    val nodeCount: Int
+        get() = lock.read { nodes.size }
+
+    val edgeCount: Int
+        get() = lock.read { edges.size }
+
+    val alarmCount: Int
+        get() = lock.read { alarms.size }
+
+    fun node(id: Int): Node? = lock.read { nodes[id] }
+
+    fun alarm(id: Int): Alarm? = lock.read { alarms[id] }
+
+    fun alarm(reductionKey: String): Alarm? = lock.read { alarmsByReductionKey[reductionKey] }
+
+    fun alarms(): List<Alarm> = lock.read { alarms.values.toList() }
+
+    fun putNode(node: Node) = lock.write { putNodeUnlocked(node) }
+
+    fun putAlarm(alarm: Alarm) = lock.write { putAlarmUnlocked(alarm) }
+
+    fun removeAlarm(id: Int): Alarm? = lock.write { removeAlarmUnlocked(id) }
+
+    fun putEdge(edge: TopologyEdge) = lock.write { putEdgeUnlocked(edge) }
+
+    fun removeEdge(edge: TopologyEdge): TopologyEdge? = lock.write {
+        val key = edgeKey(edge)
+        edges.remove(key)?.also {
+            removeFromPartition(edgesByLocation, edgeLocations(it), key)
+            removeAdjacency(key, it)
+        }
+    }
+
+    /**
+     * The ids of the nodes at most [hops] edges away from the given one, itself included.
+     */
+    fun neighborhood(nodeId: Int, hops: Int): Set<Int> = lock.read { adjacency.neighborhood(nodeId, hops) }
+
+    /**
+     * The given nodes along with their alarms and their edges that a subscriber with the given filter gets to see, for
+     * when the nodes enter its neighborhood.
+     */
+    fun entered(nodeIds: Collection<Int>, filter: MessageFilter): Topology = lock.read {
+        val edgeKeys = nodeIds.flatMapTo(LinkedHashSet()) { adjacency.edges(it) }
+        Topology(
+            nodes = nodeIds.mapNotNull { nodes[it] }.filterTo(nodeSet()) { filter.matches(Subject.of(it)) },
+            edges = edgeKeys.mapNotNull { edges[it] }
+                .filterTo(edgeSet()) { filter.matches(Subject.of(it, EdgeEndpoints.of(it))) },
+            alarms = nodeIds.flatMap { alarmsByNode[it]?.values ?: emptyList<Alarm>() }
+                .filterTo(alarmSet()) { filter.matches(Subject.of(it)) }
+        )
+    }
+
+    /**
+     * The alarms on the given node.
+     */
+    fun alarmsOf(nodeId: Int): List<Alarm> = lock.read { alarmsByNode[nodeId]?.values?.toList() ?: emptyList() }
+
+    /**
+     * Builds the initial topology for a subscriber with the given filter, split into chunks of at most [chunkSize]
+     * nodes, edges and alarms.
+     *
+     * Alarmed nodes come first (most severe first) followed by the rest by decreasing degree. Each node is followed by
+     * its alarms and those of its edges that haven't been included yet, so the part of the network that matters most
+     * can be shown before the rest arrives. Edges and alarms that aren't tied to any of the nodes come last.
+     */
+    fun snapshot(filter: MessageFilter, chunkSize: Int): List<Topology> = lock.read {
+        val locations = filter.locations
+        val neighborhood = filter.neighborhood
+
+        // The partitions (or the neighborhood) take care of the locations, anything else is down to the filter. Each
+        // entity is in a single partition so none of them turn up twice, no need to hash them (deeply) into sets.
+        val nodes = when {
+            neighborhood != null -> neighborhood.mapNotNull { nodes[it] }
+            locations != null -> locations.flatMap { nodesByLocation[it]?.values ?: emptyList<Node>() }
+            else -> nodes.values.toList()
+        }.let { if (filter.isLocationOnly) it else it.filter { filter.matches(Subject.of(it)) } }
+        val alarms = when {
+            neighborhood != null -> neighborhood.flatMap { alarmsByNode[it]?.values ?: emptyList<Alarm>() }
+            locations != null -> locations.flatMap { alarmsByLocation[it]?.values ?: emptyList<Alarm>() }
+            else -> alarms.values.toList()
+        }.let { if (filter.isLocationOnly) it else it.filter { filter.matches(Subject.of(it)) } }
+        val edgeCandidates = when {
+            neighborhood != null -> neighborhood.flatMapTo(HashSet()) { adjacency.edges(it) }.mapNotNull { edges[it] }
+            locations != null -> edgesByLocation
+                .filterKeys { (source, target) -> source in locations && target in locations }
+                .flatMap { it.value.values }
+            else -> edges.values
+        }
+
+        val edges = ArrayList<TopologyEdge>()
+        val edgesByNode = HashMap<Int, MutableList<TopologyEdge>>()
+        edgeCandidates.forEach { edge ->
+            val endpoints = EdgeEndpoints.of(edge)
+            if (!filter.isLocationOnly && !filter.matches(Subject.of(edge, endpoints))) {
+                return@forEach
+            }
+            edges.add(edge)
+            listOfNotNull(endpoints.sourceNode?.id, endpoints.targetNode?.id).distinct().forEach { nodeId ->
+                edgesByNode.getOrPut(nodeId) { ArrayList() }.add(edge)
+            }
+        }
+        val alarmsByNode = alarms.filter { it.node != null }.groupBy { it.node.id }
+
+        val orderedNodes = nodes.sortedWith(
+            compareByDescending<Node> { node -> alarmsByNode[node.id]?.mapNotNull { it.severity }?.max()?.ordinal ?: -1 }
+                .thenByDescending { edgesByNode[it.id]?.size ?: 0 }
+                .thenBy { it.id })
+
+        val chunks = ChunkBuilder(chunkSize)
+        val includedEdges = HashSet<String>()
+        val includedAlarms = IntBitmap()
+        orderedNodes.forEach { node ->
+            chunks.add(node)
+            alarmsByNode[node.id]?.forEach { chunks.add(it); includedAlarms.add(it.id) }
+            edgesByNode[node.id]?.forEach { if (includedEdges.add(edgeKey(it))) chunks.add(it) }
+        }
+        edges.forEach { if (includedEdges.add(edgeKey(it))) chunks.add(it) }
+        alarms.forEach { if (includedAlarms.add(it.id)) chunks.add(it) }
+
+        chunks.build()
+    }
+
+    private fun putNodeUnlocked(node: Node) {
+        nodes.put(node.id, node)?.let { previous ->
+            if (previous.location != node.location) {
+                removeFromPartition(nodesByLocation, previous.location, node.id)
+            }
+        }
+        nodesByLocation.getOrPut(node.location) { HashMap() }[node.id] = node
+    }
+
+    private fun putAlarmUnlocked(alarm: Alarm) {
+        alarms.put(alarm.id, alarm)?.let { previous ->
+            if (previous.node?.location != alarm.node?.location) {
+                removeFromPartition(alarmsByLocation, previous.node?.location, alarm.id)
+            }
+            if (previous.node?.id != alarm.node?.id) {
+                removeFromPartition(alarmsByNode, previous.node?.id, alarm.id)
+            }
+            if (previous.reductionKey != alarm.reductionKey) {
+                previous.reductionKey?.let { alarmsByReductionKey.remove(it) }
+            }
+        }
+        alarm.reductionKey?.let { alarmsByReductionKey[it] = alarm }
+        alarmsByLocation.getOrPut(alarm.node?.location) { HashMap() }[alarm.id] = alarm
+        alarmsByNode.getOrPut(alarm.node?.id) { HashMap() }[alarm.id] = alarm
+    }
+
+    private fun removeAlarmUnlocked(id: Int): Alarm? = alarms.remove(id)?.also {
+        removeFromPartition(alarmsByLocation, it.node?.location, id)
+        removeFromPartition(alarmsByNode, it.node?.id, id)
+        it.reductionKey?.let { reductionKey -> alarmsByReductionKey.remove(reductionKey, it) }
+    }
+
+    private fun putEdgeUnlocked(edge: TopologyEdge) {
+        val key = edgeKey(edge)
+        val partitionKey = edgeLocations(edge)
+        edges.put(key, edge)?.let { previous ->
+            val previousPartitionKey = edgeLocations(previous)
+            if (previousPartitionKey != partitionKey) {
+                removeFromPartition(edgesByLocation, previousPartitionKey, key)
+            }
+            removeAdjacency(key, previous)
+        }
+        edgesByLocation.getOrPut(partitionKey) { HashMap() }[key] = edge
+
+        val endpoints = EdgeEndpoints.of(edge)
+        val source = endpoints.sourceNode
+        val target = endpoints.targetNode
+        if (source != null && target != null) {
+            adjacency.add(key, source.id, target.id)
+        }
+    }
+
+    private fun removeAdjacency(key: String, edge: TopologyEdge) {
+        val endpoints = EdgeEndpoints.of(edge)
+        val source = endpoints.sourceNode
+        val target = endpoints.targetNode
+        if (source != null && target != null) {
+            adjacency.remove(key, source.id, target.id)
+        }
+    }
+
+    private fun <P, K, V> removeFromPartition(partitions: HashMap<P, HashMap<K, V>>, partitionKey: P, key: K) {
+        partitions[partitionKey]?.let { partition ->
+            partition.remove(key)
+            if (partition.isEmpty()) partitions.remove(partitionKey)
+        }
+    }
+
+    private fun edgeLocations(edge: TopologyEdge): Pair<String?, String?> {
+        val endpoints = EdgeEndpoints.of(edge)
+        return endpoints.sourceNode?.location to endpoints.targetNode?.location
+    }
+
+    companion object {
+        fun edgeKey(edge: TopologyEdge) = "${edge.id}-${edge.protocol}"
+
+        fun nodeSet() = IdSet<Int, Node> { it.id }
+
+        fun edgeSet() = IdSet(::edgeKey)
+
+        fun alarmSet() = IdSet<Int, Alarm> { it.id }
+    }
+}
+
+/**
+ * Collects nodes, edges and alarms into topology chunks of a bounded size, in the order they are added.
+ */
+private class ChunkBuilder(private val chunkSize: Int) {
+    private val chunks = ArrayList<Topology>()
+
+    private var nodes = TopologyView.nodeSet()
+    private var edges = TopologyView.edgeSet()
+    private var alarms = TopologyView.alarmSet()
+    private var size = 0
+
+    fun add(node: Node) {
+        nodes.add(node)
+        added()
+    }
+
+    fun add(edge: TopologyEdge) {
+        edges.add(edge)
+        added()
+    }
+
+    fun add(alarm: Alarm) {
+        alarms.add(alarm)
+        added()
+    }
+
+    fun build(): List<Topology> {
+        flush()
+        return chunks
+    }
+
+    private fun added() {
+        if (++size >= chunkSize) {
+            flush()
+        }
+    }
+
+    private fun flush() {
+        if (size == 0) {
+            return
+        }
+
+        chunks.add(Topology(
+            nodes = if (nodes.isNotEmpty()) nodes else null,
+            edges = if (edges.isNotEmpty()) edges else null,
+            alarms = if (alarms.isNotEmpty()) alarms else null
+        ))
+        nodes = TopologyView.nodeSet()
+        edges = TopologyView.edgeSet()
+        alarms = TopologyView.alarmSet()
+        size = 0
+    }
+}
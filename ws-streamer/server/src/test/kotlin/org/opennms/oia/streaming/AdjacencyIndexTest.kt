@@ -0,0 +1,42 @@
+package org.opennms.oia.streaming
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class AdjacencyIndexTest {
+
+    private val index = AdjacencyIndex().apply {
+        // 1 - 2 - 3 - 4, with 5 hanging off of 2
+        add("1-2", 1, 2)
+        add("2-3", 2, 3)
+        add("3-4", 3, 4)
+        add("2-5", 5, 2)
+    }
+
+    @Test
+    fun walksNeighborhoodUpToHops() {
+        assertEquals(setOf(1), index.neighborhood(1, 0))
+        assertEquals(setOf(1, 2), index.neighborhood(1, 1))
+        assertEquals(setOf(1, 2, 3, 5), index.neighborhood(1, 2))
+        assertEquals(setOf(1, 2, 3, 4, 5), index.neighborhood(1, 10))
+        // Nodes without edges are a neighborhood of their own
+        assertEquals(setOf(6), index.neighborhood(6, 2))
+    }
+
+    @Test
+    fun removesEdges() {
+        index.remove("2-3", 2, 3)
+
+        assertEquals(setOf(1, 2, 5), index.neighborhood(1, 10))
+        assertEquals(setOf("1-2", "2-5"), index.edges(2))
+    }
+
+    @Test
+    fun keepsParallelEdgesApart() {
+        index.add("1-2-other", 2, 1)
+        index.remove("1-2", 1, 2)
+
+        assertEquals(setOf(1, 2), index.neighborhood(1, 1))
+        assertEquals(setOf("1-2-other"), index.edges(1))
+    }
+}
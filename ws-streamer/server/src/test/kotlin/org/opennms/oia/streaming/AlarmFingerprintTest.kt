@@ -0,0 +1,92 @@
+package org.opennms.oia.streaming
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotEquals
+import org.junit.Test
+import org.opennms.integration.api.serializer.Projection
+import org.opennms.integration.api.v1.model.Severity
+import org.opennms.integration.api.v1.model.immutables.ImmutableAlarm
+import org.opennms.integration.api.v1.model.immutables.ImmutableNode
+import java.util.*
+
+class AlarmFingerprintTest {
+
+    private val fingerprint = AlarmFingerprint(Projection.NONE)
+
+    private val node = ImmutableNode.newBuilder()
+        .setId(1)
+        .setLabel("node-1")
+        .setLocation("Ottawa")
+        .build()
+
+    private val alarm = ImmutableAlarm.newBuilder()
+        .setId(10)
+        .setReductionKey("alarm-10")
+        .setSeverity(Severity.MAJOR)
+        .setDescription("Something broke")
+        .setLastEventTime(Date(1000))
+        .setNode(node)
+        .build()
+
+    @Test
+    fun ignoresFieldsClientsDontSee() {
+        val copy = ImmutableAlarm.newBuilderFrom(alarm)
+            .setManagedObjectInstance("instance")
+            .setAttributes(mapOf("key" to "value"))
+            .build()
+
+        assertEquals(fingerprint.of(alarm), fingerprint.of(copy))
+    }
+
+    @Test
+    fun changesWithFieldsClientsSee() {
+        val changes = listOf(
+            ImmutableAlarm.newBuilderFrom(alarm).setSeverity(Severity.CRITICAL),
+            ImmutableAlarm.newBuilderFrom(alarm).setDescription("Something else broke"),
+            ImmutableAlarm.newBuilderFrom(alarm).setLastEventTime(Date(2000)),
+            ImmutableAlarm.newBuilderFrom(alarm).setFirstEventTime(Date(500)),
+            ImmutableAlarm.newBuilderFrom(alarm).setNode(ImmutableNode.newBuilderFrom(node).setLocation("Raleigh").build()),
+            ImmutableAlarm.newBuilderFrom(alarm).setNode(ImmutableNode.newBuilderFrom(node).setLabel("node-one").build()),
+            ImmutableAlarm.newBuilderFrom(alarm).setNode(ImmutableNode.newBuilderFrom(node).setForeignSource("fs").build())
+        )
+
+        val fingerprints = (changes.map { fingerprint.of(it.build()) } + fingerprint.of(alarm)).toSet()
+        assertEquals(changes.size + 1, fingerprints.size)
+    }
+
+    @Test
+    fun changesWithIncludedFields() {
+        val included = AlarmFingerprint(Projection.parse("Alarm.attributes,Alarm.managedObjectInstance"))
+        val changes = listOf(
+            ImmutableAlarm.newBuilderFrom(alarm).setAttributes(mapOf("key" to "value")),
+            ImmutableAlarm.newBuilderFrom(alarm).setManagedObjectInstance("instance")
+        )
+
+        val fingerprints = (changes.map { included.of(it.build()) } + included.of(alarm)).toSet()
+        assertEquals(changes.size + 1, fingerprints.size)
+        // Equal values hash the same, whichever instance they are
+        assertEquals(included.of(changes[0].build()), included.of(changes[0].build()))
+    }
+
+    @Test
+    fun changesWithRelatedAlarms() {
+        val situation = ImmutableAlarm.newBuilder()
+            .setId(20)
+            .setReductionKey("situation-20")
+            .setRelatedAlarms(listOf(alarm))
+            .build()
+        val updated = ImmutableAlarm.newBuilderFrom(situation)
+            .setRelatedAlarms(listOf(ImmutableAlarm.newBuilderFrom(alarm).setSeverity(Severity.CLEARED).build()))
+            .build()
+
+        assertNotEquals(fingerprint.of(situation), fingerprint.of(updated))
+    }
+
+    @Test
+    fun separatesAdjacentFields() {
+        val first = ImmutableAlarm.newBuilderFrom(alarm).setDescription("ab").setLogMessage("c").build()
+        val second = ImmutableAlarm.newBuilderFrom(alarm).setDescription("a").setLogMessage("bc").build()
+
+        assertNotEquals(fingerprint.of(first), fingerprint.of(second))
+    }
+}
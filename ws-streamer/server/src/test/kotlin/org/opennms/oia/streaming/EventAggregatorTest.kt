@@ -0,0 +1,116 @@
+package org.opennms.oia.streaming
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.opennms.integration.api.v1.model.InMemoryEvent
+import org.opennms.integration.api.v1.model.immutables.ImmutableInMemoryEvent
+import org.opennms.integration.api.v1.model.immutables.ImmutableNode
+import org.opennms.oia.streaming.model.EventSummary
+import java.lang.reflect.Proxy
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+
+class EventAggregatorTest {
+
+    private val scheduler = Executors.newSingleThreadScheduledExecutor()
+
+    private var now = 0L
+    private val events = mutableListOf<InMemoryEvent>()
+    private val summaries = mutableListOf<EventSummary>()
+
+    // Long enough that the scheduled rolls never get to run, the windows are rolled by moving the clock instead
+    private val aggregator = EventAggregator(WINDOW_MS, 3, scheduler, { _, event -> events.add(event) },
+        { _, summary -> summaries.add(summary) }, { now })
+
+    private val node = ImmutableNode.newBuilder().setId(1).setLabel("node-1").setLocation("Ottawa").build()
+
+    @After
+    fun tearDown() {
+        scheduler.shutdownNow()
+    }
+
+    @Test
+    fun passesEventsThroughBelowThreshold() {
+        repeat(3) { aggregator.submit(node, event("uei-a")) }
+        now += WINDOW_MS
+        repeat(3) { aggregator.submit(node, event("uei-a")) }
+
+        assertEquals(6, events.size)
+        assertEquals(0, summaries.size)
+    }
+
+    @Test
+    fun summarizesEventsAboveThreshold() {
+        repeat(5) { aggregator.submit(node, event("uei-a")) }
+        repeat(2) { aggregator.submit(node, event("uei-b")) }
+
+        // Up to the threshold go through, the rest wait for the end of the window
+        assertEquals(3, events.size)
+        assertEquals(0, summaries.size)
+
+        now += WINDOW_MS
+        aggregator.submit(node, event("uei-a"))
+
+        assertEquals(listOf(EventSummary(1, 0, WINDOW_MS, mapOf("uei-a" to 2, "uei-b" to 2))), summaries)
+        // Still summarizing, the previous window was over the threshold
+        assertEquals(3, events.size)
+    }
+
+    @Test
+    fun passesEventsThroughAgainOnceQuiet() {
+        repeat(4) { aggregator.submit(node, event("uei-a")) }
+        now += WINDOW_MS
+        aggregator.submit(node, event("uei-a"))
+        now += WINDOW_MS
+        aggregator.submit(node, event("uei-a"))
+
+        assertEquals(listOf(1, 1), summaries.map { it.counts.getValue("uei-a") })
+        assertEquals(4, events.size)
+    }
+
+    @Test
+    fun rollsWindowsOfQuietNodesOnTheScheduler() {
+        val rolls = mutableListOf<Runnable>()
+        val scheduler = Proxy.newProxyInstance(javaClass.classLoader, arrayOf(ScheduledExecutorService::class.java)) {
+                _, method, args ->
+            when (method.name) {
+                "schedule" -> rolls.add(args[0] as Runnable).let { null }
+                else -> throw UnsupportedOperationException(method.name)
+            }
+        } as ScheduledExecutorService
+        val aggregator = EventAggregator(WINDOW_MS, 3, scheduler, { _, event -> events.add(event) },
+            { _, summary -> summaries.add(summary) }, { now })
+
+        // Over the threshold and then nothing more from the node
+        repeat(5) { aggregator.submit(node, event("uei-a")) }
+        now += WINDOW_MS
+        rolls.removeAt(0).run()
+        assertEquals(listOf(EventSummary(1, 0, WINDOW_MS, mapOf("uei-a" to 2))), summaries)
+        assertEquals(1, aggregator.windowCount)
+
+        // A quiet window in summary mode ends summarizing, the node no longer needs a window
+        now += WINDOW_MS
+        rolls.removeAt(0).run()
+        assertEquals(1, summaries.size)
+        assertEquals(0, aggregator.windowCount)
+
+        // Nor does one that stayed below the threshold
+        aggregator.submit(node, event("uei-a"))
+        assertEquals(1, aggregator.windowCount)
+        now += WINDOW_MS
+        rolls.removeAt(0).run()
+        assertEquals(0, aggregator.windowCount)
+        assertEquals(emptyList<Runnable>(), rolls)
+    }
+
+    private fun event(uei: String) = ImmutableInMemoryEvent.newBuilder()
+        .setUei(uei)
+        .setSource("test")
+        .setNodeId(node.id)
+        .build()
+
+    private companion object {
+        const val WINDOW_MS = 60000L
+    }
+}
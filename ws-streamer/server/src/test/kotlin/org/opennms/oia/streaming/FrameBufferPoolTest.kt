@@ -0,0 +1,147 @@
+package org.opennms.oia.streaming
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import org.opennms.integration.api.serializer.oiaSerializers
+import org.opennms.integration.api.v1.model.Alarm
+import org.opennms.integration.api.v1.model.Severity
+import org.opennms.integration.api.v1.model.immutables.ImmutableAlarm
+import org.opennms.integration.api.v1.model.immutables.ImmutableNode
+import org.opennms.oia.streaming.model.Codec
+import org.opennms.oia.streaming.model.FrameBuffer
+import org.opennms.oia.streaming.model.PooledEncoder
+import org.opennms.oia.streaming.model.alarmDeleteMessage
+import org.opennms.oia.streaming.model.alarmMessage
+import org.opennms.oia.streaming.model.nodeDeleteMessage
+import java.lang.management.ManagementFactory
+import java.util.Date
+
+class FrameBufferPoolTest {
+
+    @Test
+    fun reusesReleasedBuffers() {
+        val pool = FrameBufferPool(2, FrameBuffer.DEFAULT_CAPACITY)
+        val first = pool.acquire()
+        first.write(ByteArray(100))
+        pool.release(first)
+
+        val second = pool.acquire()
+        assertSame(first, second)
+        assertEquals(0, second.size)
+        assertEquals(1, pool.allocated)
+    }
+
+    @Test
+    fun keepsAtMostMaxPooled() {
+        val pool = FrameBufferPool(2, FrameBuffer.DEFAULT_CAPACITY)
+        val buffers = (0 until 3).map { pool.acquire() }
+        buffers.forEach { pool.release(it) }
+        repeat(3) { pool.acquire() }
+        assertEquals(4, pool.allocated)
+    }
+
+    @Test
+    fun dropsBuffersThatGrewTooLarge() {
+        val pool = FrameBufferPool(2, FrameBuffer.DEFAULT_CAPACITY)
+        val large = pool.use { buffer ->
+            buffer.write(ByteArray(FrameBuffer.DEFAULT_CAPACITY + 1))
+            buffer
+        }
+        assertNotSame(large, pool.acquire())
+    }
+
+    @Test
+    fun encodesLikeTheMapper() {
+        val messages = listOf(alarmMessage(alarm(1)), nodeDeleteMessage(2), alarmDeleteMessage("key", false),
+            alarmMessage(alarm(3)).copy(seq = 42))
+        Codec.values().forEach { codec ->
+            val mapper = codec.newMapper().registerModule(oiaSerializers())
+            val encoder = PooledEncoder(mapper)
+            // Twice over, the second time with the generator and buffer of the first
+            (messages + messages).forEach { message ->
+                assertArrayEquals("$codec ${message.type}", mapper.writeValueAsBytes(message), encoder.encode(message))
+            }
+        }
+    }
+
+    @Test
+    fun encodesAfterFailing() {
+        val mapper = Codec.JSON.newMapper().registerModule(oiaSerializers())
+        val encoder = PooledEncoder(mapper)
+        try {
+            encoder.encode(mapOf("type" to "Alarm", "payload" to Failing()))
+            fail("Expected the encoding to fail")
+        } catch (e: Exception) {
+        }
+
+        val message = alarmMessage(alarm(1))
+        assertArrayEquals(mapper.writeValueAsBytes(message), encoder.encode(message))
+    }
+
+    @Test
+    fun allocatesLessThanTheMapper() {
+        val threads = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean
+        assumeTrue(threads?.isThreadAllocatedMemorySupported == true)
+        threads!!.isThreadAllocatedMemoryEnabled = true
+
+        fun allocatedBy(block: () -> Unit): Long {
+            // Warm up first so that what is measured is the steady state
+            repeat(ITERATIONS) { block() }
+            val id = Thread.currentThread().id
+            val before = threads.getThreadAllocatedBytes(id)
+            repeat(ITERATIONS) { block() }
+            return (threads.getThreadAllocatedBytes(id) - before) / ITERATIONS
+        }
+
+        val mapper = Codec.JSON.newMapper().registerModule(oiaSerializers())
+        val encoder = PooledEncoder(mapper)
+        val message = alarmMessage(alarm(1))
+        val size = mapper.writeValueAsBytes(message).size
+
+        val mapperBytes = allocatedBy { mapper.writeValueAsBytes(message) }
+        val encoderBytes = allocatedBy { encoder.encode(message) }
+        assertTrue("Encoder allocated '$encoderBytes' bytes per message, the mapper '$mapperBytes'",
+            encoderBytes < mapperBytes)
+
+        // Splicing a batch into a pooled buffer allocates little more than the view of it that is sent
+        val pool = FrameBufferPool(1, 256 * 1024)
+        val encoded = (1..100).map { encoder.encode(alarmMessage(alarm(it))) }
+        val frameBytes = allocatedBy {
+            pool.use { buffer ->
+                encoded.forEach { buffer.write(it) }
+                buffer.byteBuffer()
+            }
+        }
+        assertTrue("Splicing allocated '$frameBytes' bytes per frame of '${encoded.sumBy { it.size }}'",
+            frameBytes < size)
+    }
+
+    private class Failing {
+        @Suppress("unused")
+        val severity: Severity
+            get() = throw IllegalStateException("Failing on purpose")
+    }
+
+    private fun alarm(id: Int): Alarm {
+        val node = ImmutableNode.newBuilder().setId(id).setLabel("node-$id").setLocation("Default").build()
+        return ImmutableAlarm.newBuilder()
+            .setId(id)
+            .setReductionKey("uei.opennms.org/nodes/nodeDown::$id")
+            .setNode(node)
+            .setSeverity(Severity.MAJOR)
+            .setLogMessage("Node ${node.label} is down.")
+            .setDescription("All interfaces on node ${node.label} are down.")
+            .setLastEventTime(Date(id * 1000L))
+            .build()
+    }
+
+    private companion object {
+        const val ITERATIONS = 10000
+    }
+}
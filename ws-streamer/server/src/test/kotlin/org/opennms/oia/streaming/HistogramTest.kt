@@ -0,0 +1,40 @@
+package org.opennms.oia.streaming
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class HistogramTest {
+
+    @Test
+    fun isEmptyUntilRecorded() {
+        val histogram = Histogram()
+
+        assertEquals(0, histogram.count)
+        assertEquals(0.0, histogram.mean, 0.0)
+        assertEquals(0, histogram.percentile(99.0))
+    }
+
+    @Test
+    fun estimatesPercentilesByBucket() {
+        val histogram = Histogram()
+        (1..100L).forEach { histogram.record(it) }
+
+        assertEquals(100, histogram.count)
+        assertEquals(50.5, histogram.mean, 0.001)
+        assertEquals(100, histogram.max)
+        // 50 falls in the bucket of 32 to 63, 99 in the one of 64 to 127 which is capped by the max
+        assertEquals(63, histogram.percentile(50.0))
+        assertEquals(100, histogram.percentile(99.0))
+        assertEquals(1, histogram.percentile(1.0))
+    }
+
+    @Test
+    fun countsZeros() {
+        val histogram = Histogram()
+        repeat(9) { histogram.record(0) }
+        histogram.record(1000)
+
+        assertEquals(0, histogram.percentile(90.0))
+        assertEquals(1000, histogram.percentile(100.0))
+    }
+}
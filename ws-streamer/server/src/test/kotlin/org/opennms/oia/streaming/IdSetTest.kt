@@ -0,0 +1,52 @@
+package org.opennms.oia.streaming
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.opennms.integration.api.v1.model.Node
+import org.opennms.integration.api.v1.model.immutables.ImmutableNode
+import java.lang.reflect.Proxy
+
+class IdSetTest {
+
+    @Test
+    fun keepsTheFirstOfEachIdInOrder() {
+        val nodes = IdSet<Int, TestNode> { it.id }
+        assertTrue(nodes.add(TestNode(2, "b")))
+        assertTrue(nodes.add(TestNode(1, "a")))
+        assertFalse(nodes.add(TestNode(2, "c")))
+
+        assertEquals(listOf(TestNode(2, "b"), TestNode(1, "a")), nodes.toList())
+        assertTrue(TestNode(2, "b") in nodes)
+        assertFalse(TestNode(2, "c") in nodes)
+    }
+
+    @Test
+    fun neverHashesTheElements() {
+        val nodes = TopologyView.nodeSet()
+        (1..3).forEach { nodes.add(unhashable(it)) }
+
+        assertEquals(3, nodes.size)
+        assertEquals(listOf(1, 2, 3), nodes.map { it.id })
+    }
+
+    @Test
+    fun equalsOtherSetsOfTheSameElements() {
+        val node = ImmutableNode.newBuilder().setId(1).setLabel("node-1").build()
+        val nodes = TopologyView.nodeSet().apply { add(node) }
+
+        assertEquals(setOf(node), nodes)
+        assertEquals(nodes, setOf(node))
+    }
+
+    private data class TestNode(val id: Int, val label: String)
+
+    private fun unhashable(id: Int) = Proxy.newProxyInstance(javaClass.classLoader, arrayOf(Node::class.java)) {
+            _, method, _ ->
+        when (method.name) {
+            "getId" -> id
+            else -> throw UnsupportedOperationException(method.name)
+        }
+    } as Node
+}
@@ -0,0 +1,49 @@
+package org.opennms.oia.streaming
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.*
+
+class IntBitmapTest {
+
+    @Test
+    fun addsAndContains() {
+        val bitmap = IntBitmap()
+        val values = listOf(0, 1, 65535, 65536, 1000000, Int.MAX_VALUE, -1)
+
+        values.forEach { assertTrue(bitmap.add(it)) }
+        values.forEach { assertFalse(bitmap.add(it)) }
+
+        values.forEach { assertTrue(it in bitmap) }
+        assertFalse(2 in bitmap)
+        assertFalse(65537 in bitmap)
+        assertEquals(values.size, bitmap.size)
+    }
+
+    @Test
+    fun matchesHashSetAcrossContainerKinds() {
+        val random = Random(42)
+        val bitmap = IntBitmap()
+        val expected = HashSet<Int>()
+
+        // Enough values in the first bucket for it to switch to a bitmap, while the others stay sparse
+        repeat(20000) {
+            val value = if (it % 4 == 0) random.nextInt(1 shl 20) else random.nextInt(1 shl 16)
+            assertEquals(expected.add(value), bitmap.add(value))
+        }
+
+        assertEquals(expected.size, bitmap.size)
+        (0 until (1 shl 20)).forEach { assertEquals(it in expected, it in bitmap) }
+    }
+
+    @Test
+    fun staysSmallForDenseIds() {
+        val bitmap = IntBitmap()
+        (1..100000).forEach { bitmap.add(it) }
+
+        // Two 8 KiB buckets rather than an entry per id
+        assertTrue(bitmap.sizeInBytes() < 20 * 1024)
+    }
+}
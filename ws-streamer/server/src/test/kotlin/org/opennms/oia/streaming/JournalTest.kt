@@ -0,0 +1,72 @@
+package org.opennms.oia.streaming
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Test
+import org.opennms.oia.streaming.model.Codec
+import org.opennms.oia.streaming.model.FilterCriteria
+import org.opennms.oia.streaming.model.MessageType
+
+class JournalTest {
+
+    private val everyone = MessageFilter.compile(FilterCriteria())
+
+    @Test
+    fun replaysSealedEntriesFromTheirEncodings() {
+        val journal = Journal(10, 1000) { json, codec -> "$codec:${String(json)}".toByteArray() }
+        val brief = OutboundMessage("alarm:1", MessageType.AlarmBrief, seq = 1) { error("Encoded again") }
+        val entry = Journal.Entry(1, OutboundMessage("alarm:1", MessageType.Alarm, brief = brief, seq = 1) {
+            error("Encoded again")
+        }) { true }
+        journal.append(entry)
+        journal.seal(entry, "alarm".toByteArray(), "brief".toByteArray())
+        assertEquals(10, journal.bytes)
+
+        // Built from the encodings alone, in the form and codec the resuming session asks for
+        val replayed = journal.since(0, 1, everyone)!!.single()
+        assertEquals(MessageType.Alarm, replayed.type)
+        assertEquals(1L, replayed.seq)
+        assertArrayEquals("alarm".toByteArray(), replayed.bytes(Codec.JSON))
+        assertArrayEquals("CBOR:alarm".toByteArray(), replayed.bytes(Codec.CBOR))
+        assertEquals(MessageType.AlarmBrief, replayed.brief!!.type)
+        assertArrayEquals("SMILE:brief".toByteArray(), replayed.brief.bytes(Codec.SMILE))
+    }
+
+    @Test
+    fun evictsPastMaxBytes() {
+        val journal = Journal(100, 25) { json, _ -> json }
+        val entries = (1L..5L).map { seq -> Journal.Entry(seq, message(seq)) { true } }
+        entries.forEach { journal.append(it) }
+        // Not counted until sealed
+        assertEquals(5, journal.count)
+        assertEquals(0, journal.bytes)
+
+        entries.forEach { journal.seal(it, ByteArray(10), null) }
+        assertEquals(2, journal.count)
+        assertEquals(20, journal.bytes)
+
+        assertNull(journal.since(1, 5, everyone))
+        assertEquals(listOf(4L, 5L), journal.since(3, 5, everyone)!!.map { it.seq })
+    }
+
+    @Test
+    fun evictsPastCapacity() {
+        val journal = Journal(2, 1000) { json, _ -> json }
+        val entries = (1L..3L).map { seq -> Journal.Entry(seq, message(seq)) { true } }
+        entries.forEach { journal.append(it) }
+        assertEquals(2, journal.count)
+
+        // Sealing an entry that is gone already leaves the journal as is
+        journal.seal(entries[0], ByteArray(10), null)
+        assertEquals(0, journal.bytes)
+        entries.drop(1).forEach { journal.seal(it, ByteArray(10), null) }
+        assertEquals(20, journal.bytes)
+
+        assertNull(journal.since(0, 3, everyone))
+        assertNotNull(journal.since(1, 3, everyone))
+    }
+
+    private fun message(seq: Long) = OutboundMessage("node:$seq", MessageType.Node, seq = seq) { ByteArray(10) }
+}
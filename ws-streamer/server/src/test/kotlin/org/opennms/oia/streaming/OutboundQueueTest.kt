@@ -0,0 +1,104 @@
+package org.opennms.oia.streaming
+
+import org.java_websocket.WebSocket
+import org.java_websocket.framing.CloseFrame
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.opennms.oia.streaming.model.Codec
+import org.opennms.oia.streaming.model.FrameBuffer
+import org.opennms.oia.streaming.model.MessageType
+import org.opennms.oia.streaming.model.OverflowPolicy
+import java.lang.reflect.Proxy
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class OutboundQueueTest {
+
+    private val executor = Executors.newSingleThreadScheduledExecutor()
+    private val sent = Collections.synchronizedList(mutableListOf<String>())
+    private val closed = CountDownLatch(1)
+    @Volatile
+    private var closeCode = 0
+
+    private val conn = Proxy.newProxyInstance(javaClass.classLoader, arrayOf(WebSocket::class.java)) {
+            proxy, method, args ->
+        when (method.name) {
+            "send" -> sent.add(String(args[0] as ByteArray))
+            "close" -> {
+                closeCode = args?.get(0) as? Int ?: 0
+                closed.countDown()
+            }
+            "hashCode" -> System.identityHashCode(proxy)
+            "equals" -> proxy === args[0]
+            "toString" -> "test"
+            else -> throw UnsupportedOperationException(method.name)
+        }
+    } as WebSocket
+
+    @After
+    fun tearDown() {
+        executor.shutdownNow()
+    }
+
+    @Test
+    fun buildsAndEncodesChunksAsTheyAreWritten() {
+        val built = AtomicInteger()
+        val encoded = AtomicInteger()
+        val chunks = (1..5).asSequence().map { i ->
+            built.incrementAndGet()
+            OutboundMessage(null, MessageType.Topology, cached = false) {
+                encoded.incrementAndGet()
+                "chunk-$i".toByteArray()
+            }
+        }
+
+        val queue = queue { chunks.iterator() }
+        queue.resync()
+        awaitSent(5)
+
+        assertEquals((1..5).map { "chunk-$it" }, sent)
+        // Each of them once, and none kept from being encoded again
+        assertEquals(5, built.get())
+        assertEquals(5, encoded.get())
+        assertEquals(5L, queue.stats().messagesSent)
+    }
+
+    @Test
+    fun closesSessionWhenSnapshotFails() {
+        val queue = queue { throw IllegalStateException("Failing on purpose") }
+        queue.resync()
+
+        assertTrue(closed.await(10, TimeUnit.SECONDS))
+        assertEquals(CloseFrame.UNEXPECTED_CONDITION, closeCode)
+    }
+
+    @Test
+    fun closesSessionWhenChunkFails() {
+        val chunks = sequenceOf(
+            OutboundMessage(null, MessageType.Topology, cached = false) { "chunk-1".toByteArray() },
+            OutboundMessage(null, MessageType.Topology, cached = false) { error("Failing on purpose") })
+
+        val queue = queue { chunks.iterator() }
+        queue.resync()
+
+        assertTrue(closed.await(10, TimeUnit.SECONDS))
+        assertEquals(listOf("chunk-1"), sent)
+        assertEquals(CloseFrame.UNEXPECTED_CONDITION, closeCode)
+    }
+
+    private fun queue(snapshot: () -> Iterator<OutboundMessage>) = OutboundQueue(conn, OverflowPolicy.DROP_OLDEST,
+        Codec.JSON, false, 100, 1000, 64, 10, 0, null, FrameBufferPool(1, FrameBuffer.DEFAULT_CAPACITY),
+        StageMetrics("write"), MessageCounters(), executor, snapshot)
+
+    private fun awaitSent(count: Int) {
+        val deadline = System.currentTimeMillis() + 10000
+        while (sent.size < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.opennms.oia.streaming
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class PartitionedExecutorTest {
+
+    private class State {
+        val seen = mutableMapOf<Int, MutableList<Int>>()
+    }
+
+    private val executor = PartitionedExecutor(4, namedThreadFactory("test-partition")) { State() }
+
+    @After
+    fun tearDown() {
+        executor.shutdown()
+    }
+
+    @Test
+    fun keepsOrderPerKey() {
+        val keys = 0 until 50
+        val tasksPerKey = 200
+
+        // Submitted from several threads at once, each owning its own keys
+        val submitters = keys.groupBy { it % 5 }.values.map { ownKeys ->
+            Thread {
+                for (i in 0 until tasksPerKey) {
+                    ownKeys.forEach { key -> executor.execute(key) { seen.getOrPut(key) { mutableListOf() }.add(i) } }
+                }
+            }
+        }
+        submitters.forEach { it.start() }
+        submitters.forEach { it.join() }
+        executor.await()
+
+        val collected = mutableMapOf<Int, List<Int>>()
+        val latch = CountDownLatch(4)
+        executor.executeAll {
+            synchronized(collected) { collected.putAll(seen) }
+            latch.countDown()
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS))
+
+        assertEquals(keys.toSet(), collected.keys)
+        keys.forEach { assertEquals("Order for key $it", (0 until tasksPerKey).toList(), collected[it]) }
+    }
+
+    @Test
+    fun runsPartitionsInParallel() {
+        val released = CountDownLatch(1)
+        val finished = CountDownLatch(1)
+
+        // Only completes if the other partition gets to run while this one is blocked
+        executor.execute(0) {
+            released.await(10, TimeUnit.SECONDS)
+            finished.countDown()
+        }
+        executor.execute(1) { released.countDown() }
+
+        assertTrue(finished.await(10, TimeUnit.SECONDS))
+    }
+
+    @Test
+    fun overflowsFullRing() {
+        val small = PartitionedExecutor(1, namedThreadFactory("test-small-partition"), 4) { State() }
+        try {
+            val released = CountDownLatch(1)
+            val ran = CountDownLatch(10)
+
+            // Everything still runs once the blocked partition gets going again, some of it past the ring
+            small.execute(0) { released.await(10, TimeUnit.SECONDS) }
+            repeat(10) { small.execute(0) { ran.countDown() } }
+            released.countDown()
+
+            assertTrue(ran.await(10, TimeUnit.SECONDS))
+            assertTrue(small.overflows > 0)
+            small.await()
+            // The task await leaves behind may not have been recorded yet
+            assertTrue(small.metrics.processed >= 11)
+        } finally {
+            small.shutdown()
+        }
+    }
+
+    @Test
+    fun runsEachPartitionWithItsNumber() {
+        val keys = 0 until 20
+        keys.forEach { key -> executor.execute(key) { seen.getOrPut(key) { mutableListOf() } } }
+
+        // Each partition finds the keys it ran by the number it's given
+        val owned = mutableMapOf<Int, Set<Int>>()
+        val latch = CountDownLatch(4)
+        executor.executeEach { partition ->
+            synchronized(owned) { owned[partition] = seen.keys.toSet() }
+            latch.countDown()
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS))
+
+        assertEquals(setOf(0, 1, 2, 3), owned.keys)
+        owned.forEach { (partition, ownKeys) ->
+            assertEquals(keys.filter { executor.partitionOf(it) == partition }.toSet(), ownKeys)
+        }
+    }
+
+    @Test
+    fun keepsRunningAfterFailedTask() {
+        val ran = CountDownLatch(1)
+
+        executor.execute(0) { error("Boom") }
+        executor.execute(0) { ran.countDown() }
+
+        assertTrue(ran.await(10, TimeUnit.SECONDS))
+    }
+}
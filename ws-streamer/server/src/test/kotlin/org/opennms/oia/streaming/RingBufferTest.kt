@@ -0,0 +1,66 @@
+package org.opennms.oia.streaming
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class RingBufferTest {
+
+    @Test
+    fun roundsCapacityUpToPowerOfTwo() {
+        assertEquals(1024, RingBuffer<Int>(1000).capacity)
+        assertEquals(1024, RingBuffer<Int>(1024).capacity)
+        assertEquals(2, RingBuffer<Int>(1).capacity)
+    }
+
+    @Test
+    fun refusesOffersWhenFullUntilDrained() {
+        val ring = RingBuffer<Int>(4)
+        repeat(4) { assertTrue(ring.offer(it, it * 10L)) }
+        assertFalse(ring.offer(4, 40))
+
+        val drained = mutableListOf<Pair<Int, Long>>()
+        assertEquals(2, ring.drain(2) { item, stamp -> drained.add(item to stamp) })
+        assertEquals(listOf(0 to 0L, 1 to 10L), drained)
+
+        // Wraps around into the freed slots
+        assertTrue(ring.offer(4, 40))
+        assertTrue(ring.offer(5, 50))
+        assertFalse(ring.offer(6, 60))
+
+        ring.drain(10) { item, _ -> drained.add(item to 0L) }
+        assertEquals(listOf(0, 1, 2, 3, 4, 5), drained.map { it.first })
+        assertTrue(ring.isEmpty())
+    }
+
+    @Test
+    fun keepsOrderPerProducer() {
+        val ring = RingBuffer<Long>(64)
+        val producers = 4
+        val perProducer = 20000
+
+        val threads = (0 until producers).map { producer ->
+            Thread {
+                for (i in 0 until perProducer) {
+                    // Producer in the high bits, sequence in the low ones
+                    while (!ring.offer(producer.toLong() shl 32 or i.toLong(), 0)) Thread.yield()
+                }
+            }
+        }
+        threads.forEach { it.start() }
+
+        val next = IntArray(producers)
+        var consumed = 0
+        while (consumed < producers * perProducer) {
+            consumed += ring.drain(16) { item, _ ->
+                val producer = (item ushr 32).toInt()
+                assertEquals(next[producer]++, item.toInt())
+            }
+        }
+        threads.forEach { it.join() }
+
+        assertTrue(next.all { it == perProducer })
+        assertTrue(ring.isEmpty())
+    }
+}
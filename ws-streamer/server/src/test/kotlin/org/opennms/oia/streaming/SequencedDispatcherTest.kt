@@ -0,0 +1,63 @@
+package org.opennms.oia.streaming
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.util.concurrent.atomic.AtomicLong
+
+class SequencedDispatcherTest {
+
+    @Test
+    fun runsInSequenceWhateverTheOrderHandedOver() {
+        val dispatcher = SequencedDispatcher(10)
+        val ran = mutableListOf<Long>()
+
+        listOf(12L, 11L, 14L).forEach { seq -> dispatcher.dispatch(seq) { ran.add(seq) } }
+        assertEquals(emptyList<Long>(), ran)
+        assertEquals(3, dispatcher.waiting)
+
+        dispatcher.dispatch(10) { ran.add(10) }
+        assertEquals(listOf(10L, 11L, 12L), ran)
+        assertEquals(1, dispatcher.waiting)
+
+        dispatcher.dispatch(13) { ran.add(13) }
+        assertEquals(listOf(10L, 11L, 12L, 13L, 14L), ran)
+        assertEquals(0, dispatcher.waiting)
+    }
+
+    @Test
+    fun keepsGoingAfterAFailingTask() {
+        val dispatcher = SequencedDispatcher(0)
+        val ran = mutableListOf<Long>()
+
+        dispatcher.dispatch(1) { ran.add(1) }
+        dispatcher.dispatch(0) { throw IllegalStateException("Failing on purpose") }
+        assertEquals(listOf(1L), ran)
+    }
+
+    @Test
+    fun runsInSequenceAcrossThreads() {
+        val dispatcher = SequencedDispatcher(0)
+        val next = AtomicLong()
+        val threads = 8
+        val tasks = 20000
+        val ran = ArrayList<Long>(tasks)
+
+        // Each thread takes the next sequence number and hands it over after a while, like publishers on different
+        // partitions do
+        val publishers = (0 until threads).map {
+            Thread {
+                while (true) {
+                    val seq = next.getAndIncrement()
+                    if (seq >= tasks) break
+                    if (seq % 7 == 0L) Thread.yield()
+                    dispatcher.dispatch(seq) { ran.add(seq) }
+                }
+            }
+        }
+        publishers.forEach { it.start() }
+        publishers.forEach { it.join() }
+
+        assertEquals((0 until tasks.toLong()).toList(), ran)
+        assertEquals(0, dispatcher.waiting)
+    }
+}
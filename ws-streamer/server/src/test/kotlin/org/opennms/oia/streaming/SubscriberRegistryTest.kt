@@ -0,0 +1,135 @@
+package org.opennms.oia.streaming
+
+import org.java_websocket.WebSocket
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.opennms.integration.api.v1.model.Node
+import org.opennms.integration.api.v1.model.Severity
+import org.opennms.integration.api.v1.model.TopologyProtocol
+import org.opennms.integration.api.v1.model.immutables.ImmutableAlarm
+import org.opennms.integration.api.v1.model.immutables.ImmutableNode
+import org.opennms.integration.api.v1.model.immutables.ImmutableTopologyEdge
+import org.opennms.integration.api.v1.model.immutables.ImmutableTopologySegment
+import org.opennms.oia.streaming.model.FilterCriteria
+import org.opennms.oia.streaming.model.VertexType
+import java.lang.reflect.Proxy
+
+class SubscriberRegistryTest {
+
+    private val registry = SubscriberRegistry()
+
+    private val ottawa = node(1, "Ottawa", "servers")
+    private val raleigh = node(2, "Raleigh", "routers")
+
+    @Test
+    fun indexesByLocation() {
+        val everything = subscribe("everything", FilterCriteria())
+        val ottawaOnly = subscribe("ottawa", FilterCriteria(setOf("Ottawa")))
+        val both = subscribe("both", FilterCriteria(setOf("Ottawa", "Raleigh")))
+
+        assertEquals(setOf(everything, ottawaOnly, both), registry.receivers(Subject.of(ottawa)))
+        assertEquals(setOf(everything, both), registry.receivers(Subject.of(raleigh)))
+        assertEquals(setOf(everything, both), registry.receivers(Subject.of(edge(ottawa, raleigh), ottawa, raleigh)))
+        assertEquals(setOf(everything), registry.receivers(Subject.of(ImmutableAlarm.newBuilder()
+            .setId(1)
+            .setReductionKey("no-node")
+            .build())))
+    }
+
+    @Test
+    fun evaluatesFiltersBeyondLocations() {
+        val everything = subscribe("everything", FilterCriteria())
+        val major = subscribe("major", FilterCriteria(setOf("Ottawa"), Severity.MAJOR))
+        val routers = subscribe("routers", FilterCriteria(foreignSources = setOf("routers")))
+
+        assertEquals(setOf(everything, major), registry.receivers(Subject.of(alarm(ottawa, Severity.CRITICAL))))
+        assertEquals(setOf(everything), registry.receivers(Subject.of(alarm(ottawa, Severity.MINOR))))
+        assertEquals(setOf(everything, routers), registry.receivers(Subject.of(alarm(raleigh, Severity.MINOR))))
+        // The severity doesn't apply to nodes
+        assertEquals(setOf(everything, major), registry.receivers(Subject.of(ottawa)))
+        // Both ends of an edge have to match
+        assertEquals(setOf(everything), registry.receivers(Subject.of(edge(ottawa, raleigh), ottawa, raleigh)))
+    }
+
+    @Test
+    fun sharesFiltersBetweenSessionsWithTheSameCriteria() {
+        subscribe("first", FilterCriteria(minSeverity = Severity.MAJOR))
+
+        assertSame(registry.compile(FilterCriteria(minSeverity = Severity.MAJOR)),
+            registry.compile(FilterCriteria(minSeverity = Severity.MAJOR)))
+    }
+
+    @Test
+    fun matchesEventsByUeiPrefix() {
+        val filter = MessageFilter.compile(FilterCriteria(ueiPrefixes = setOf("uei.opennms.org/nodes/")))
+
+        assertTrue(filter.matches(Subject.ofEvents(ottawa, listOf("uei.opennms.org/nodes/nodeDown"))))
+        assertFalse(filter.matches(Subject.ofEvents(ottawa, listOf("uei.opennms.org/internal/reloadDaemonConfig"))))
+        // A summary goes out if any of the events it counts would have
+        assertTrue(filter.matches(Subject.ofEvents(ottawa,
+            listOf("uei.opennms.org/internal/reloadDaemonConfig", "uei.opennms.org/nodes/nodeUp"))))
+        assertTrue(filter.matches(Subject.of(alarm(ottawa, Severity.MINOR))))
+    }
+
+    @Test
+    fun matchesEdgesByProtocolAndVertexType() {
+        val filter = MessageFilter.compile(FilterCriteria(edgeProtocols = setOf(TopologyProtocol.LLDP),
+            vertexTypes = setOf(VertexType.Node)))
+
+        assertTrue(filter.matches(Subject.of(edge(ottawa, raleigh, TopologyProtocol.LLDP), ottawa, raleigh)))
+        assertFalse(filter.matches(Subject.of(edge(ottawa, raleigh, TopologyProtocol.CDP), ottawa, raleigh)))
+
+        val toSegment = ImmutableTopologyEdge.newBuilder()
+            .setId("to-segment")
+            .setProtocol(TopologyProtocol.LLDP)
+            .setSource(ottawa)
+            .setTarget(ImmutableTopologySegment.newBuilder()
+                .setId("segment")
+                .setProtocol(TopologyProtocol.LLDP)
+                .build())
+            .build()
+        assertFalse(filter.matches(Subject.of(toSegment, EdgeEndpoints.of(toSegment))))
+    }
+
+    private fun subscribe(name: String, criteria: FilterCriteria): WebSocket {
+        val conn = Proxy.newProxyInstance(javaClass.classLoader, arrayOf(WebSocket::class.java)) { proxy, method, args ->
+            when (method.name) {
+                "hashCode" -> System.identityHashCode(proxy)
+                "equals" -> proxy === args[0]
+                "toString" -> name
+                else -> throw UnsupportedOperationException(method.name)
+            }
+        } as WebSocket
+        registry.subscribe(conn, registry.compile(criteria))
+        return conn
+    }
+
+    private fun node(id: Int, location: String, foreignSource: String) = ImmutableNode.newBuilder()
+        .setId(id)
+        .setLabel("node-$id")
+        .setLocation(location)
+        .setForeignSource(foreignSource)
+        .setForeignId("$id")
+        .build()
+
+    private fun alarm(node: Node, severity: Severity) = ImmutableAlarm.newBuilder()
+        .setId(node.id * 10)
+        .setReductionKey("alarm-${node.id}")
+        .setSeverity(severity)
+        .setNode(node)
+        .build()
+
+    private fun edge(source: Node, target: Node, protocol: TopologyProtocol = TopologyProtocol.USERDEFINED) =
+        ImmutableTopologyEdge.newBuilder()
+            .setId("${source.id}-${target.id}")
+            .setProtocol(protocol)
+            .setSource(source)
+            .setTarget(target)
+            .build()
+
+    private fun Subject.Companion.of(edge: ImmutableTopologyEdge, source: Node, target: Node) =
+        of(edge, EdgeEndpoints.of(edge)).also { assertEquals(listOf(source.location, target.location), it.locations) }
+}